@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * BenchTargets hands the benchmarks the code they time. JMH won't run
+ * benchmarks in the default package and the file store lives there, so the
+ * benchmarks look this class up by name once and get back plain java.util
+ * functions that call straight into the file store.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class BenchTargets {
+  private BenchTargets() {
+  }
+
+  /**
+   * starts one replica that isn't bound anywhere, for timing its local storage
+   *
+   * @param ports the replica's port and then its peers' ports
+   * @return the replica
+   * @throws IOException if its log can't be opened or replayed
+   */
+  public static Object replica(int[] ports) throws IOException {
+    new File(System.getProperty("user.dir"), "ServerFiles" + ports[0]).mkdirs();
+    FileStoreImpl replica = new FileStoreImpl(ports);
+    replica.recover();
+    return replica;
+  }
+
+  /**
+   * starts a replica for each port, each with its own ServerFiles directory
+   * and bound on an RMI registry of its own, and on NIO too if the transport
+   * is on, like PaxosServer does
+   *
+   * @param ports ports of all the replicas
+   * @return the replicas
+   * @throws Exception if one can't be started
+   */
+  public static Object[] cluster(int[] ports) throws Exception {
+    PaxosCluster cluster = new PaxosCluster(ports, false);
+    Object[] replicas = new Object[ports.length];
+    for (int i = 0; i < ports.length; i++) {
+      replicas[i] = PaxosServer.start(cluster.serverArr(ports[i]));
+    }
+    return replicas;
+  }
+
+  /**
+   * stops taking calls on replicas, over NIO too
+   *
+   * @param replicas replicas from replica or cluster
+   */
+  public static void close(Object[] replicas) {
+    for (Object replica : replicas) {
+      try {
+        UnicastRemoteObject.unexportObject((FileStoreImpl) replica, true);
+      } catch (RemoteException e) {
+        // not exported any more
+      }
+      if (((FileStoreImpl) replica).nio != null) {
+        ((FileStoreImpl) replica).nio.close();
+      }
+      ((FileStoreImpl) replica).antiEntropy.stop();
+      ((FileStoreImpl) replica).lease.stop();
+    }
+  }
+
+  /**
+   * @param replica a replica
+   * @return writes a file, name and contents in, status out, each write with
+   *         the next version
+   */
+  public static BiFunction<String, String, String> writer(Object replica) {
+    FileStoreImpl r = (FileStoreImpl) replica;
+    return (fileName, contents) -> r.writeFile(fileName, contents, r.index.version(fileName) + 1);
+  }
+
+  /**
+   * @param replica a replica
+   * @return reads a file, name in, name and contents out
+   */
+  public static UnaryOperator<String> reader(Object replica) {
+    FileStoreImpl r = (FileStoreImpl) replica;
+    return r::readFile;
+  }
+
+  /**
+   * @param replica a replica
+   * @return removes a file, name in, status out
+   */
+  public static UnaryOperator<String> remover(Object replica) {
+    FileStoreImpl r = (FileStoreImpl) replica;
+    return fileName -> r.deleteFile(fileName, r.index.version(fileName) + 1);
+  }
+
+  /**
+   * @param replica a replica
+   * @return sends a client request to the replica as the client would
+   */
+  public static UnaryOperator<String> clientRequest(Object replica) {
+    FileStoreImpl r = (FileStoreImpl) replica;
+    return r::clientRequest;
+  }
+
+  /**
+   * points the client's quorum reads at a cluster
+   *
+   * @param ports ports of the cluster's replicas
+   * @return a majority read through PaxosClient.tryGet, request in, agreed
+   *         answer out
+   */
+  public static UnaryOperator<String> quorumRead(int[] ports) {
+    PaxosClient.serverArr = ports;
+    return request -> PaxosClient.tryGet(ports, request);
+  }
+
+  /**
+   * @param codec name of a codec
+   * @return packs contents with the codec
+   */
+  public static Function<byte[], byte[]> packer(String codec) {
+    Codec c = Codecs.forName(codec);
+    return plain -> Codecs.pack(plain, 0, plain.length, c);
+  }
+
+  /**
+   * @return unpacks anything a packer packed
+   */
+  public static UnaryOperator<byte[]> unpacker() {
+    return packed -> {
+      try {
+        return Codecs.unpack(packed);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times whole operations against five replicas in this JVM, each on its own
+ * RMI registry: an upload through clientRequest, which runs a full round of
+ * consensus, and a majority read through the client's tryGet. Runs over RMI
+ * and the NIO transport, in classic and Multi-Paxos mode.
+ *
+ * Batching shows in the concurrent upload, so every run is made with no batch
+ * window (0) and with a 2 ms one.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ClusterBenchmark {
+  static final int[] PORTS = { 19190, 19191, 19192, 19193, 19194 };
+
+  @Param({ "rmi", "nio" })
+  String transport;
+
+  @Param({ "false", "true" })
+  String multi;
+
+  @Param({ "1024" })
+  int size;
+
+  // millis a batch waits for more writes, paxos.batch.window
+  @Param({ "0", "2" })
+  String batchWindow;
+
+  private File home;
+  private Object[] replicas;
+  private UnaryOperator<String> request;
+  private UnaryOperator<String> quorumRead;
+  private String contents;
+  private final AtomicLong files = new AtomicLong();
+
+  @Setup
+  public void start() throws Exception {
+    // read when the classes first load, and this is a fresh fork
+    System.setProperty("paxos.transport", transport);
+    System.setProperty("paxos.multi", multi);
+    System.setProperty("paxos.batch.window", batchWindow);
+    home = Targets.home();
+    replicas = Targets.call("cluster", (Object) PORTS);
+    request = Targets.call("clientRequest", replicas[0]);
+    quorumRead = Targets.call("quorumRead", (Object) PORTS);
+    contents = Targets.text(size);
+    String res = request.apply("upload read.txt " + contents);
+    if (!res.contains("Successful")) {
+      throw new IllegalStateException("cluster didn't take a write: " + res);
+    }
+  }
+
+  @TearDown
+  public void stop() throws Exception {
+    Targets.call("close", (Object) replicas);
+    Targets.remove(home);
+  }
+
+  @Benchmark
+  public String upload() {
+    return request.apply("upload f" + files.incrementAndGet() + ".txt " + contents);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String uploadConcurrent() {
+    return request.apply("upload f" + files.incrementAndGet() + ".txt " + contents);
+  }
+
+  @Benchmark
+  public String quorumRead() {
+    return quorumRead.apply("download read.txt");
+  }
+}
@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times packing and unpacking contents with each codec, the cost added to
+ * every chunk, replicated write and log record.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+  @Param({ "1024", "65536", "1048576" })
+  int size;
+
+  @Param({ "deflate", "none" })
+  String codec;
+
+  private Function<byte[], byte[]> pack;
+  private UnaryOperator<byte[]> unpack;
+  private byte[] plain;
+  private byte[] packed;
+
+  @Setup
+  public void start() throws Exception {
+    pack = Targets.call("packer", codec);
+    unpack = Targets.call("unpacker");
+    plain = Targets.text(size).getBytes(StandardCharsets.UTF_8);
+    packed = pack.apply(plain);
+  }
+
+  @Benchmark
+  public byte[] pack() {
+    return pack.apply(plain);
+  }
+
+  @Benchmark
+  public byte[] unpack() {
+    return unpack.apply(packed);
+  }
+}
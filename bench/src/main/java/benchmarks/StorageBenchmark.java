@@ -0,0 +1,122 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times one replica's local writes, reads and removes, the work every replica
+ * does for each committed operation, across file sizes from 1 KB to 1 GB and
+ * codecs and with the content cache on (4096 files) and off (0). The reads
+ * are compared with a Scanner reading the file line by line, the way the
+ * store first read files.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StorageBenchmark {
+  @Param({ "1024", "65536", "1048576", "16777216", "134217728", "1073741824" })
+  int size;
+
+  @Param({ "deflate", "none" })
+  String codec;
+
+  @Param({ "4096", "0" })
+  String cache;
+
+  private File home;
+  private Object replica;
+  private BiFunction<String, String, String> write;
+  private UnaryOperator<String> read;
+  private UnaryOperator<String> remove;
+  private String contents;
+  private File plain;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    System.setProperty("paxos.codec", codec);
+    System.setProperty("paxos.cache.entries", cache);
+    home = Targets.home();
+    replica = Targets.call("replica", (Object) new int[] { 19090, 19091, 19092, 19093, 19094 });
+    write = Targets.call("writer", replica);
+    read = Targets.call("reader", replica);
+    remove = Targets.call("remover", replica);
+    contents = Targets.text(size);
+    write.apply("read.txt", contents);
+    // the stored copy may be sealed by the codec, the scanner reads this one
+    plain = new File(home, "plain.txt");
+    Files.write(plain.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() throws Exception {
+    Targets.call("close", (Object) new Object[] { replica });
+    Targets.remove(home);
+  }
+
+  /**
+   * a file for each remove to remove, written outside the timing
+   */
+  @State(Scope.Thread)
+  public static class Victim {
+    @Setup(Level.Invocation)
+    public void write(StorageBenchmark b) {
+      b.write.apply("remove.txt", b.contents);
+    }
+  }
+
+  @Benchmark
+  public String writeFile() {
+    return write.apply("write.txt", contents);
+  }
+
+  @Benchmark
+  public String readFile() {
+    return read.apply("read.txt");
+  }
+
+  /**
+   * the first read the store had, with the string built in a StringBuilder
+   * instead of by += so the large sizes finish
+   */
+  @Benchmark
+  public String scannerReadFile() throws IOException {
+    StringBuilder data = new StringBuilder("read.txt ");
+    try (Scanner in = new Scanner(plain, StandardCharsets.UTF_8.name())) {
+      while (in.hasNextLine()) {
+        data.append(in.nextLine()).append('\n');
+      }
+    }
+    // removes the trailing new line character
+    return data.substring(0, data.length() - 1);
+  }
+
+  @Benchmark
+  public String deleteFile(Victim victim) {
+    return remove.apply("remove.txt");
+  }
+}
@@ -0,0 +1,79 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Targets calls the static methods of BenchTargets, which is in the default
+ * package with the file store and so can't be named from here. Only used while
+ * setting up, the functions it returns are called directly.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+final class Targets {
+  private Targets() {
+  }
+
+  /**
+   * @param method name of a BenchTargets method
+   * @param args   its arguments
+   * @return what it returned
+   * @throws Exception whatever it threw
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T call(String method, Object... args) throws Exception {
+    for (Method m : Class.forName("BenchTargets").getMethods()) {
+      if (m.getName().equals(method) && m.getParameterCount() == args.length) {
+        try {
+          return (T) m.invoke(null, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+    }
+    throw new NoSuchMethodException(method);
+  }
+
+  /**
+   * makes an empty directory and points user.dir at it, the file store keeps
+   * its ServerFiles and ServerLog directories there
+   *
+   * @return the directory
+   * @throws IOException if it can't be made
+   */
+  static File home() throws IOException {
+    File home = Files.createTempDirectory("paxos-bench").toFile();
+    System.setProperty("user.dir", home.getAbsolutePath());
+    return home;
+  }
+
+  /**
+   * @param home a directory from home
+   * @throws IOException if it can't be removed
+   */
+  static void remove(File home) throws IOException {
+    try (Stream<Path> paths = Files.walk(home.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  /**
+   * @param size number of characters
+   * @return text that compresses about as well as source code
+   */
+  static String text(int size) {
+    StringBuilder s = new StringBuilder(size);
+    for (int line = 0; s.length() < size; line++) {
+      s.append("line ").append(line).append(": the quick brown fox jumps over the lazy dog ").append(line * 31 % 97)
+          .append('\n');
+    }
+    return s.substring(0, size);
+  }
+}
@@ -0,0 +1,174 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission limits how many client requests a server works on at once. Up to
+ * the in-flight limit run, up to the queue limit more wait their turn, and
+ * anything past that is turned away at once with BUSY instead of piling up
+ * threads. The client takes BUSY as a cue to try another server or try again
+ * a little later.
+ *
+ * An admitted request runs on the thread that received it, an RMI thread or
+ * a NIO worker, with no hand off to another pool. NIO workers are virtual
+ * threads when the JVM has them, and a queued request on one waits as long as
+ * it takes, since a parked virtual thread costs next to nothing. A request on
+ * a platform thread only waits paxos.admit.wait millis for a running one to
+ * finish and then gets BUSY, so a full queue doesn't hold hundreds of RMI
+ * threads.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Admission {
+  // answer to a request that didn't fit, the client retries it
+  static final String BUSY = "busy, try again";
+  // Thread.isVirtual, null before java 21
+  private static final Method IS_VIRTUAL = isVirtual();
+
+  private final int maxInFlight;
+  private final int maxQueued;
+  // millis a request on a platform thread waits for its turn
+  private final long maxWait;
+  // requests running or queued
+  private final Semaphore admitted;
+  // requests running
+  private final Semaphore running;
+
+  final AtomicLong accepted = new AtomicLong();
+  final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Constructor for a limit with nothing admitted yet
+   *
+   * @param maxInFlight most requests running at once
+   * @param maxQueued   most requests waiting to run
+   * @param maxWait     millis a request on a platform thread waits to run
+   */
+  Admission(int maxInFlight, int maxQueued, long maxWait) {
+    this.maxInFlight = Math.max(1, maxInFlight);
+    this.maxQueued = Math.max(0, maxQueued);
+    this.maxWait = Math.max(0, maxWait);
+    this.admitted = new Semaphore(this.maxInFlight + this.maxQueued);
+    this.running = new Semaphore(this.maxInFlight);
+  }
+
+  /**
+   * @return a limit set up from the paxos.admit system properties
+   */
+  static Admission fromProperties() {
+    return new Admission(Integer.getInteger("paxos.admit.inflight", 64),
+        Integer.getInteger("paxos.admit.queue", 256), Long.getLong("paxos.admit.wait", 100));
+  }
+
+  /**
+   * @return true if the calling thread is a virtual thread
+   */
+  static boolean onVirtualThread() {
+    try {
+      return IS_VIRTUAL != null && (Boolean) IS_VIRTUAL.invoke(Thread.currentThread());
+    } catch (ReflectiveOperationException e) {
+      return false;
+    }
+  }
+
+  private static Method isVirtual() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      // before java 21
+      return null;
+    }
+  }
+
+  /**
+   * @param name     names the threads
+   * @param fallback size of the platform thread pool used when there are no
+   *                 virtual threads, 0 for a cached pool
+   * @return an executor that starts a virtual thread per task if the JVM has
+   *         them
+   */
+  static ExecutorService newExecutor(String name, int fallback) {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      // before java 21
+    }
+    if (fallback > 0) {
+      return Executors.newFixedThreadPool(fallback, r -> daemon(r, name));
+    }
+    return Executors.newCachedThreadPool(r -> daemon(r, name));
+  }
+
+  private static Thread daemon(Runnable r, String name) {
+    Thread t = new Thread(r, name);
+    t.setDaemon(true);
+    return t;
+  }
+
+  /**
+   * runs a request on the calling thread if there is room for it, waiting
+   * its turn if the in-flight limit is reached. A platform thread only waits
+   * maxWait millis.
+   *
+   * @param request the request
+   * @return the request's answer, or BUSY if it wasn't admitted
+   */
+  String call(Callable<String> request) {
+    if (!admitted.tryAcquire()) {
+      rejected.incrementAndGet();
+      return BUSY;
+    }
+    try {
+      boolean turn;
+      if (onVirtualThread()) {
+        running.acquire();
+        turn = true;
+      } else {
+        turn = running.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+      }
+      if (!turn) {
+        admitted.release();
+        rejected.incrementAndGet();
+        return BUSY;
+      }
+    } catch (InterruptedException e) {
+      admitted.release();
+      Thread.currentThread().interrupt();
+      return ("Aborted.");
+    }
+    accepted.incrementAndGet();
+    try {
+      return request.call();
+    } catch (Exception e) {
+      e.printStackTrace();
+      return ("Aborted.");
+    } finally {
+      running.release();
+      admitted.release();
+    }
+  }
+
+  /**
+   * @param response a server's answer
+   * @return true if the server was too busy to take the request
+   */
+  static boolean busy(String response) {
+    return BUSY.equals(response);
+  }
+
+  /**
+   * @return the limits and counters in a human readable form
+   */
+  public String toString() {
+    int run = maxInFlight - running.availablePermits();
+    int queued = Math.max(0, maxInFlight + maxQueued - admitted.availablePermits() - run);
+    return "admission running=" + run + "/" + maxInFlight + " queued=" + queued + "/" + maxQueued + " accepted="
+        + accepted.get() + " rejected=" + rejected.get();
+  }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AntiEntropy repairs a replica in the background, whatever made it drift:
+ * a write it missed that catch-up wasn't asked for, or a file changed or lost
+ * on disk while it was down. Every interval the replica picks the next peer
+ * and compares Merkle trees with it, starting at the root and only going down
+ * into the nodes whose hashes differ. At the leaves it gets the peer's
+ * metadata for the files there and copies each file the peer has a newer
+ * version of, the same way catch-up does.
+ *
+ * Comparing two replicas costs a few hashes for each level of every file they
+ * disagree on, so it stays cheap however many files agree. Each replica only
+ * pulls, a file we have newer is repaired when the peer's own round gets to
+ * us. Two replicas with the same version of a file but different contents
+ * can't be settled by versions, so they are only logged and counted.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class AntiEntropy {
+  // seconds between rounds, 0 turns anti-entropy off
+  static final long INTERVAL = Long.getLong("paxos.antientropy.interval", 30);
+  // most nodes asked about in one call
+  static final int BATCH = 4096;
+  // most leaves listed in one call
+  static final int LEAVES = 256;
+
+  private final FileStoreImpl replica;
+  private final ScheduledExecutorService timer;
+  private final SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
+  private int next = 0;
+
+  private final Histogram latency;
+  private final AtomicLong rounds;
+  private final AtomicLong hashes;
+  private final AtomicLong repaired;
+  private final AtomicLong conflicts;
+
+  /**
+   * Constructor for a replica's anti-entropy, nothing runs until it is started
+   *
+   * @param replica the replica to repair
+   */
+  AntiEntropy(FileStoreImpl replica) {
+    this.replica = replica;
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "antientropy-" + replica.serverArr[0]);
+      t.setDaemon(true);
+      return t;
+    });
+    this.latency = replica.metrics.histogram("antientropy");
+    this.rounds = replica.metrics.counter("antientropy.rounds");
+    this.hashes = replica.metrics.counter("antientropy.hashes");
+    this.repaired = replica.metrics.counter("antientropy.repaired");
+    this.conflicts = replica.metrics.counter("antientropy.conflicts");
+  }
+
+  /**
+   * starts the rounds, unless anti-entropy is off or there are no peers
+   */
+  void start() {
+    if (INTERVAL <= 0 || replica.serverArr.length < 2) {
+      return;
+    }
+    timer.scheduleWithFixedDelay(this::run, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+  }
+
+  /**
+   * stops the rounds, a round already running is interrupted
+   */
+  void stop() {
+    timer.shutdownNow();
+  }
+
+  /**
+   * compares with the next peer, never throws so the timer thread lives on
+   */
+  private void run() {
+    int peer = replica.serverArr[1 + next++ % (replica.serverArr.length - 1)];
+    long start = System.nanoTime();
+    FileStore source = null;
+    try {
+      source = replica.stubs.get(peer);
+      int copied = repair(peer, source);
+      latency.recordSince(start);
+      rounds.incrementAndGet();
+      if (copied > 0) {
+        System.out.println(date.format(new Date()) + ": anti-entropy repaired " + copied + " files from " + peer);
+      }
+    } catch (IOException e) {
+      replica.stubs.failed(peer, source, e);
+      System.out.println(date.format(new Date()) + ": anti-entropy with " + peer + " failed: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      System.err.println(date.format(new Date()) + ": anti-entropy with " + peer + " failed: " + e);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * finds the leaves we disagree with a peer on and copies the files there
+   * the peer has newer
+   *
+   * @param peer   port of the peer
+   * @param source the peer's stub
+   * @return number of files copied
+   */
+  private int repair(int peer, FileStore source) throws IOException, InterruptedException {
+    List<Integer> nodes = Collections.singletonList(0);
+    for (int level = 0;; level++) {
+      nodes = differing(source, level, nodes);
+      if (nodes.isEmpty() || level == MerkleTree.DEPTH) {
+        break;
+      }
+      List<Integer> children = new ArrayList<Integer>(nodes.size() * MerkleTree.FANOUT);
+      for (int node : nodes) {
+        for (int i = 0; i < MerkleTree.FANOUT; i++) {
+          children.add(node * MerkleTree.FANOUT + i);
+        }
+      }
+      nodes = children;
+    }
+
+    int copied = 0;
+    for (int from = 0; from < nodes.size(); from += LEAVES) {
+      for (FileMeta theirs : source.merkleLeaves(
+          new ArrayList<Integer>(nodes.subList(from, Math.min(nodes.size(), from + LEAVES))))) {
+        FileMeta ours = replica.index.entry(theirs.fileName);
+        long version = ours == null ? 0 : ours.version;
+        if (theirs.version > version) {
+          if (replica.catchUp.copy(source, theirs)) {
+            repaired.incrementAndGet();
+            copied++;
+          }
+        } else if (theirs.version == version && !Objects.equals(theirs.digest, ours.digest)) {
+          conflicts.incrementAndGet();
+          System.out.println(date.format(new Date()) + ": " + theirs.fileName + " version " + version
+              + " has different contents on " + peer);
+        }
+      }
+    }
+    return copied;
+  }
+
+  /**
+   * @param source the peer
+   * @param level  level of the nodes
+   * @param nodes  indexes of the nodes within the level
+   * @return the nodes whose hashes differ from the peer's
+   */
+  private List<Integer> differing(FileStore source, int level, List<Integer> nodes) throws IOException {
+    List<Integer> differ = new ArrayList<Integer>();
+    for (int from = 0; from < nodes.size(); from += BATCH) {
+      List<Integer> batch = nodes.subList(from, Math.min(nodes.size(), from + BATCH));
+      List<Long> theirs = source.merkleHashes(level, new ArrayList<Integer>(batch));
+      hashes.addAndGet(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        if (theirs.get(i) != replica.index.tree.hash(level, batch.get(i))) {
+          differ.add(batch.get(i));
+        }
+      }
+    }
+    return differ;
+  }
+
+  /**
+   * @return counts of the rounds and repairs, in a human readable form
+   */
+  public String toString() {
+    return "anti-entropy: " + rounds.get() + " rounds, " + hashes.get() + " hashes, " + repaired.get()
+        + " repaired, " + conflicts.get() + " conflicts";
+  }
+}
@@ -0,0 +1,391 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CatchUp brings a replica back in line after it was down or missed commits.
+ * The replica compares what it has with a peer and pulls what it is missing:
+ * in multi-paxos mode it sends its applied slot and gets back the chosen log
+ * entries after it. If the peer no longer keeps those entries, the replica
+ * copies every file the peer has a newer version of, moves its applied slot up
+ * to the slot the copy started at, and then replays the entries chosen since.
+ * Classic mode has no log, so the replica compares file versions with each
+ * peer and copies the files it is behind on. Removed files keep their
+ * version, so removes are caught up too.
+ *
+ * Catch-up runs on one background thread and the replica keeps serving while
+ * it does. Everything pulled goes through a byte rate limit, so a replica far
+ * behind doesn't take the peer's disk and network away from client requests.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class CatchUp {
+  // bytes a second pulled from peers, 0 for no limit
+  static final long RATE = Long.getLong("paxos.catchup.rate", 8L << 20);
+  // bytes in one file chunk and log entries in one batch pulled from a peer
+  static final int CHUNK = Integer.getInteger("paxos.catchup.chunk", 256 * 1024);
+  static final int BATCH = Integer.getInteger("paxos.catchup.batch", 256);
+  // millis between a request and the catch-up, requests in between share it
+  static final long DELAY = Long.getLong("paxos.catchup.delay", 1000);
+  // files compared in one page of a peer's manifest
+  static final int PAGE = 1000;
+  // times a snapshot is taken again if the peer moved on too far meanwhile
+  static final int SNAPSHOT_TRIES = 3;
+
+  private final FileStoreImpl replica;
+  private final Throttle throttle = new Throttle(RATE);
+  private final AtomicBoolean pending = new AtomicBoolean();
+  private final AtomicLong copies = new AtomicLong();
+  private final ScheduledExecutorService timer;
+  private final SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
+
+  private final Histogram latency;
+  private final AtomicLong entries;
+  private final AtomicLong files;
+  private final AtomicLong bytes;
+  private final AtomicLong snapshots;
+
+  /**
+   * Constructor for a replica's catch-up, nothing runs until it is requested
+   *
+   * @param replica the replica to bring up to date
+   */
+  CatchUp(FileStoreImpl replica) {
+    this.replica = replica;
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "catchup-" + replica.serverArr[0]);
+      t.setDaemon(true);
+      return t;
+    });
+    this.latency = replica.metrics.histogram("catchup");
+    this.entries = replica.metrics.counter("catchup.entries");
+    this.files = replica.metrics.counter("catchup.files");
+    this.bytes = replica.metrics.counter("catchup.bytes");
+    this.snapshots = replica.metrics.counter("catchup.snapshots");
+  }
+
+  /**
+   * asks for a catch-up soon, unless one is already waiting to run
+   *
+   * @param reason why, for the log
+   */
+  void request(String reason) {
+    if (!pending.compareAndSet(false, true)) {
+      return;
+    }
+    System.out.println(date.format(new Date()) + ": catch-up requested, " + reason);
+    timer.schedule(() -> {
+      pending.set(false);
+      run();
+    }, DELAY, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * copies one file we couldn't write from a peer soon, because the push of
+   * its upload hadn't reached us when the commit did. Catch-up would not
+   * redo a slot we already applied, so the file is copied on its own.
+   *
+   * @param fileName name of the file
+   * @param uploadId id of the upload, whatever of it the push still writes
+   *                 here is dropped once the file is copied
+   */
+  void missed(String fileName, String uploadId) {
+    System.out.println(date.format(new Date()) + ": missed the upload of " + fileName + ", copying it");
+    timer.schedule(() -> {
+      copyFile(fileName);
+      replica.stagedFile(uploadId).delete();
+    }, DELAY, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * copies one file from the first peer with a newer version of it, never
+   * throws so the timer thread lives on
+   */
+  private void copyFile(String fileName) {
+    for (int i = 1; i < replica.serverArr.length; i++) {
+      int peer = replica.serverArr[i];
+      FileStore source = null;
+      try {
+        source = replica.stubs.get(peer);
+        FileMeta meta = source.stat(fileName);
+        if (meta != null && meta.version > replica.index.version(fileName) && copy(source, meta)) {
+          files.incrementAndGet();
+          System.out.println(date.format(new Date()) + ": copied " + fileName + " from " + peer);
+          return;
+        }
+      } catch (IOException e) {
+        replica.stubs.failed(peer, source, e);
+        System.out.println(date.format(new Date()) + ": copying " + fileName + " from " + peer + " failed: " + e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        System.err.println(date.format(new Date()) + ": copying " + fileName + " failed: " + e);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * catches up from the peers, never throws so the timer thread lives on
+   */
+  private void run() {
+    long start = System.nanoTime();
+    try {
+      if (replica.multiPaxos) {
+        catchUpLog();
+      } else {
+        for (int i = 1; i < replica.serverArr.length; i++) {
+          FileStore source = null;
+          try {
+            source = replica.stubs.get(replica.serverArr[i]);
+            copyNewer(replica.serverArr[i], source);
+          } catch (IOException e) {
+            replica.stubs.failed(replica.serverArr[i], source, e);
+            System.out.println(date.format(new Date()) + ": catch-up from " + replica.serverArr[i] + " failed: " + e);
+          }
+        }
+      }
+      latency.recordSince(start);
+    } catch (IOException e) {
+      System.out.println(date.format(new Date()) + ": catch-up failed: " + e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      System.err.println(date.format(new Date()) + ": catch-up failed: " + e);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * multi-paxos catch-up from the leader, or the peer that applied the most
+   * if we don't know the leader
+   */
+  private void catchUpLog() throws IOException, InterruptedException {
+    int peer = source();
+    if (peer == -1) {
+      return;
+    }
+    FileStore source = replica.stubs.get(peer);
+    long from = replica.log.applied();
+    System.out.println(date.format(new Date()) + ": catching up from " + peer + " after slot " + from);
+
+    for (int tries = 0;;) {
+      List<LogEntry> batch = source.entriesAfter(from, BATCH);
+      if (batch == null) {
+        // too far behind for the peer's log, copy its files instead
+        if (++tries > SNAPSHOT_TRIES) {
+          System.out.println(date.format(new Date()) + ": peer " + peer + " keeps moving past its log, giving up");
+          return;
+        }
+        long slot = source.appliedSlot();
+        snapshots.incrementAndGet();
+        System.out.println(date.format(new Date()) + ": copying a snapshot at slot " + slot + " from " + peer);
+        copyNewer(peer, source);
+        replica.skipTo(slot);
+        from = Math.max(from, slot);
+        continue;
+      }
+      if (batch.isEmpty()) {
+        break;
+      }
+
+      for (LogEntry entry : batch) {
+        for (Operation op : entry.ops) {
+          throttle.acquire(op.contents == null ? 64 : op.contents.length());
+          if (op.staged != null && !replica.stagedFile(op.staged).exists()) {
+            // we missed the push of a chunked upload, get the file itself if
+            // the peer still has that version
+            FileMeta meta = source.stat(op.fileName);
+            if (meta != null && meta.version == op.version) {
+              pull(source, meta, replica.stagedFile(op.staged));
+            }
+          }
+        }
+      }
+      replica.learnEntries(batch);
+      entries.addAndGet(batch.size());
+      from = batch.get(batch.size() - 1).slot;
+    }
+    System.out.println(date.format(new Date()) + ": caught up to slot " + replica.log.applied());
+  }
+
+  /**
+   * @return port of the peer to catch up from, -1 if none is ahead of us
+   */
+  private int source() {
+    int leader = replica.leaderPort;
+    if (leader != -1 && leader != replica.serverArr[0]) {
+      return leader;
+    }
+    int best = -1;
+    long bestSlot = replica.log.applied();
+    for (int i = 1; i < replica.serverArr.length; i++) {
+      int port = replica.serverArr[i];
+      FileStore stub = null;
+      try {
+        stub = replica.stubs.get(port);
+        long slot = stub.appliedSlot();
+        if (slot > bestSlot) {
+          best = port;
+          bestSlot = slot;
+        }
+      } catch (Exception e) {
+        replica.stubs.failed(port, stub, e);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * copies every file a peer has a newer version of than we do, and removes
+   * the files the peer removed later than we last wrote them
+   *
+   * @param peer   port of the peer
+   * @param source the peer's stub
+   */
+  private void copyNewer(int peer, FileStore source) throws IOException, InterruptedException {
+    long copied = 0;
+    String after = null;
+    while (true) {
+      List<FileMeta> page = source.manifest(after, PAGE);
+      throttle.acquire(page.size() * 128L);
+      for (FileMeta meta : page) {
+        if (meta.version > replica.index.version(meta.fileName) && copy(source, meta)) {
+          files.incrementAndGet();
+          copied++;
+        }
+      }
+      if (page.size() < PAGE) {
+        break;
+      }
+      after = page.get(page.size() - 1).fileName;
+    }
+    if (copied > 0) {
+      System.out.println(date.format(new Date()) + ": copied " + copied + " files from " + peer);
+    }
+  }
+
+  /**
+   * copies one file from a peer, or removes it if the peer removed it. The
+   * copy is only applied if it is still newer than ours once it arrives.
+   *
+   * @param source the peer
+   * @param meta   the peer's metadata for the file
+   * @return true if the copy was made
+   * @throws IOException          if the peer can't be reached
+   * @throws InterruptedException if the thread is interrupted while throttled
+   */
+  boolean copy(FileStore source, FileMeta meta) throws IOException, InterruptedException {
+    Operation op;
+    if (meta.removed()) {
+      op = new Operation("remove", meta.fileName, null, null, 0, meta.version);
+    } else {
+      String id = "catchup-" + replica.serverArr[0] + "-" + copies.incrementAndGet();
+      File staged = replica.stagedFile(id);
+      if (!pull(source, meta, staged)) {
+        // changed or removed while we copied it, the next round gets it
+        staged.delete();
+        return false;
+      }
+      op = new Operation("upload", meta.fileName, null, id, meta.size, meta.version);
+    }
+    String res = replica.commitIfNewer(Collections.singletonList(op)).get(0);
+    if (op.staged != null) {
+      // only left behind if a newer write got there first
+      replica.stagedFile(op.staged).delete();
+    }
+    // a remove reports failed when we never had the file, it still took
+    return !res.equals("already newer") && !res.equals("write failed");
+  }
+
+  /**
+   * streams one file from a peer into a local file chunk by chunk
+   *
+   * @param source the peer
+   * @param meta   the peer's metadata for the file
+   * @param to     where to write it
+   * @return true if what arrived matches the metadata
+   */
+  private boolean pull(FileStore source, FileMeta meta, File to) throws IOException, InterruptedException {
+    try (FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      long offset = 0;
+      while (offset < meta.size) {
+        throttle.acquire(Math.min(CHUNK, meta.size - offset));
+        byte[] packed = source.downloadChunk(meta.fileName, offset, CHUNK, Codecs.configured().name());
+        if (packed == null) {
+          return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Codecs.unpack(packed));
+        if (!buf.hasRemaining()) {
+          return false;
+        }
+        while (buf.hasRemaining()) {
+          offset += out.write(buf, offset);
+        }
+        bytes.addAndGet(buf.capacity());
+      }
+      out.force(true);
+    }
+    return to.length() == meta.size && FileIndex.digest(to).equals(meta.digest);
+  }
+
+  /**
+   * @return counts of what was caught up, in a human readable form
+   */
+  public String toString() {
+    return "catch-up: " + snapshots.get() + " snapshots, " + entries.get() + " entries, " + files.get() + " files, "
+        + bytes.get() + " bytes";
+  }
+
+  /**
+   * paces transfers to a number of bytes a second. Each transfer waits until
+   * the ones before it would have finished at that rate.
+   */
+  static class Throttle {
+    private final long rate;
+    private long next = System.nanoTime();
+
+    /**
+     * @param rate bytes a second, 0 for no limit
+     */
+    Throttle(long rate) {
+      this.rate = rate;
+    }
+
+    /**
+     * park until the rate allows some more bytes
+     *
+     * @param bytes bytes about to be transferred
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    void acquire(long bytes) throws InterruptedException {
+      if (rate <= 0) {
+        return;
+      }
+      long wait;
+      synchronized (this) {
+        long now = System.nanoTime();
+        next = Math.max(next, now);
+        wait = next - now;
+        next += bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+      }
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+    }
+  }
+}
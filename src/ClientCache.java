@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * ClientCache remembers which version of each file in the 'ClientFiles'
+ * directory the client downloaded, in 'ClientFiles/.versions'. A download of
+ * a file we already have at the version the servers agree on is answered
+ * without moving the contents.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class ClientCache {
+  private final File dir;
+  private final File versions;
+  private final Properties entries = new Properties();
+
+  /**
+   * Constructor loading the saved versions
+   *
+   * @param dir the client's file directory
+   */
+  ClientCache(File dir) {
+    this.dir = dir;
+    this.versions = new File(dir, ".versions");
+    if (versions.exists()) {
+      try (InputStream in = new FileInputStream(versions)) {
+        entries.load(in);
+      } catch (IOException e) {
+        // a lost cache only costs a download
+        entries.clear();
+      }
+    }
+  }
+
+  /**
+   * @param fileName name of a file
+   * @param digest   digest the servers agree the file has
+   * @return version of our copy of the file, or -1 if we have no copy with
+   *         that digest
+   */
+  synchronized long version(String fileName, String digest) {
+    String entry = entries.getProperty(fileName);
+    if (entry == null) {
+      return -1;
+    }
+    // version digest size modified
+    String[] parts = entry.split(" ");
+    File f = new File(dir, fileName);
+    // a copy that was changed locally since we downloaded it doesn't count
+    if (parts.length != 4 || !parts[1].equals(digest) || f.length() != Long.parseLong(parts[2])
+        || f.lastModified() != Long.parseLong(parts[3])) {
+      return -1;
+    }
+    return Long.parseLong(parts[0]);
+  }
+
+  /**
+   * records the version of a file we just downloaded
+   *
+   * @param meta the file's metadata
+   */
+  synchronized void put(FileMeta meta) {
+    long modified = new File(dir, meta.fileName).lastModified();
+    entries.setProperty(meta.fileName, meta.version + " " + meta.digest + " " + meta.size + " " + modified);
+    save();
+  }
+
+  /**
+   * writes the versions out, replacing the old ones in one atomic move
+   */
+  private void save() {
+    File tmp = new File(dir, ".versions.tmp");
+    try {
+      try (OutputStream out = new FileOutputStream(tmp)) {
+        entries.store(out, "versions of downloaded files");
+      }
+      Files.move(tmp.toPath(), versions.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,39 @@
+import java.io.IOException;
+
+/**
+ * Codec compresses file contents on the wire and on disk. Each codec has a
+ * name used to ask for it and a one byte id written in front of packed data,
+ * see Codecs.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+interface Codec {
+  /**
+   * @return id written in front of data packed with this codec
+   */
+  byte id();
+
+  /**
+   * @return name used to ask for this codec
+   */
+  String name();
+
+  /**
+   * @param plain the contents
+   * @param off   start of the contents in the array
+   * @param len   bytes of contents
+   * @return the contents encoded
+   */
+  byte[] encode(byte[] plain, int off, int len);
+
+  /**
+   * @param encoded     encoded contents
+   * @param off         start of the encoded contents in the array
+   * @param len         bytes of encoded contents
+   * @param plainLength bytes in the contents once decoded
+   * @return the contents
+   * @throws IOException if the data isn't valid for this codec
+   */
+  byte[] decode(byte[] encoded, int off, int len, int plainLength) throws IOException;
+}
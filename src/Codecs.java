@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Codecs knows every codec by name and by id and packs contents for the wire.
+ * Packed data starts with the id of the codec that encoded it, so the reader
+ * always knows how to unpack it whatever the writer chose.
+ *
+ * Contents smaller than paxos.codec.min bytes aren't worth compressing and go
+ * through the noop codec, as does anything that doesn't get smaller.
+ *
+ * Files are sealed on disk the same way behind a signature. The index keeps
+ * which codec each file is stored with, the signature only checks a file is
+ * read the way it was written. Only files up to paxos.codec.max bytes are
+ * sealed, bigger ones are always stored plain.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Codecs {
+  // contents are only compressed between these sizes
+  static final long MIN_SIZE = Long.getLong("paxos.codec.min", 512);
+  static final long MAX_SIZE = Long.getLong("paxos.codec.max", 4L << 20);
+
+  // starts every sealed file, followed by the codec id and the plain length
+  static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'X', 'Z', '\r', '\n', 0x1a, '\n' };
+  static final int HEADER = SIGNATURE.length + 1 + 8;
+
+  private static final Map<String, Codec> byName = new ConcurrentHashMap<String, Codec>();
+  private static final Codec[] byId = new Codec[256];
+
+  static {
+    register(NoopCodec.INSTANCE);
+    register(new DeflateCodec(Integer.getInteger("paxos.codec.level", 6)));
+  }
+
+  private Codecs() {
+  }
+
+  /**
+   * makes a codec available to forName and unpack
+   *
+   * @param codec the codec
+   */
+  static synchronized void register(Codec codec) {
+    byName.put(codec.name(), codec);
+    byId[codec.id() & 0xff] = codec;
+  }
+
+  /**
+   * @param name name of a codec
+   * @return the codec, or the noop codec if we don't know the name
+   */
+  static Codec forName(String name) {
+    Codec codec = name == null ? null : byName.get(name);
+    return codec == null ? NoopCodec.INSTANCE : codec;
+  }
+
+  /**
+   * @return the codec chosen with -Dpaxos.codec, deflate by default
+   */
+  static Codec configured() {
+    return forName(System.getProperty("paxos.codec", "deflate"));
+  }
+
+  /**
+   * @param codec a codec we would like to use
+   * @param size  bytes of contents
+   * @return the codec, or the noop codec if the contents are outside the
+   *         compression thresholds
+   */
+  static Codec forSize(Codec codec, long size) {
+    return size < MIN_SIZE || size > MAX_SIZE ? NoopCodec.INSTANCE : codec;
+  }
+
+  /**
+   * encodes contents and puts the codec id and plain length in front. Falls
+   * back to the noop codec if compressing doesn't pay.
+   *
+   * @param plain the contents
+   * @param off   start of the contents in the array
+   * @param len   bytes of contents
+   * @param codec codec to try
+   * @return [id byte][plain length int][encoded contents]
+   */
+  static byte[] pack(byte[] plain, int off, int len, Codec codec) {
+    codec = forSize(codec, len);
+    byte[] encoded = codec.encode(plain, off, len);
+    if (encoded.length >= len && codec != NoopCodec.INSTANCE) {
+      codec = NoopCodec.INSTANCE;
+      encoded = codec.encode(plain, off, len);
+    }
+    return ByteBuffer.allocate(5 + encoded.length).put(codec.id()).putInt(len).put(encoded).array();
+  }
+
+  /**
+   * @param packed data from pack
+   * @return the contents
+   * @throws IOException if the data is damaged or the codec is unknown
+   */
+  static byte[] unpack(byte[] packed) throws IOException {
+    if (packed.length < 5) {
+      throw new IOException("packed data too short");
+    }
+    Codec codec = byId[packed[0] & 0xff];
+    if (codec == null) {
+      throw new IOException("unknown codec " + packed[0]);
+    }
+    int plainLength = ByteBuffer.wrap(packed, 1, 4).getInt();
+    return codec.decode(packed, 5, packed.length - 5, plainLength);
+  }
+
+  /**
+   * encodes a file's contents to be stored on disk
+   *
+   * @param plain the contents
+   * @param codec codec to try
+   * @return the sealed contents, or null if they are better stored plain
+   */
+  static byte[] seal(byte[] plain, Codec codec) {
+    codec = forSize(codec, plain.length);
+    if (codec == NoopCodec.INSTANCE) {
+      return null;
+    }
+    byte[] encoded = codec.encode(plain, 0, plain.length);
+    if (encoded.length + HEADER >= plain.length) {
+      return null;
+    }
+    return ByteBuffer.allocate(HEADER + encoded.length).put(SIGNATURE).put(codec.id()).putLong(plain.length)
+        .put(encoded).array();
+  }
+
+  /**
+   * reads a file sealed by seal. The codec and length come from the index,
+   * never from the file, so a plain file that happens to start with the
+   * signature isn't taken for a sealed one, and nothing is allocated until
+   * the header matches them.
+   *
+   * @param in          a stored file
+   * @param codec       the codec the index says the file was sealed with
+   * @param plainLength bytes of contents the index says the file holds
+   * @return the file's contents
+   * @throws IOException if the file can't be read or isn't sealed that way
+   */
+  static byte[] readSealed(FileChannel in, Codec codec, long plainLength) throws IOException {
+    long size = in.size();
+    // seal only keeps encodings smaller than the contents
+    if (size < HEADER || size - HEADER >= plainLength || plainLength > Integer.MAX_VALUE - 16) {
+      throw new IOException("not sealed with " + codec.name());
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    while (header.hasRemaining() && in.read(header, header.position()) > 0) {
+    }
+    for (int i = 0; i < SIGNATURE.length; i++) {
+      if (header.get(i) != SIGNATURE[i]) {
+        throw new IOException("not sealed with " + codec.name());
+      }
+    }
+    if (header.get(SIGNATURE.length) != codec.id() || header.getLong(SIGNATURE.length + 1) != plainLength) {
+      throw new IOException("not sealed with " + codec.name());
+    }
+    ByteBuffer encoded = ByteBuffer.allocate((int) (size - HEADER));
+    while (encoded.hasRemaining() && in.read(encoded, HEADER + encoded.position()) > 0) {
+    }
+    return codec.decode(encoded.array(), 0, encoded.position(), (int) plainLength);
+  }
+}
@@ -0,0 +1,148 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ContentCache keeps the contents of recently read files in memory so repeated
+ * downloads of the same files don't go to disk. It is bounded by both total
+ * bytes and number of files, and the least recently used file is evicted
+ * first. Files bigger than the per file limit are never cached.
+ *
+ * Each entry is tagged with the version of the file it was read at and only
+ * returned for that version, so a write that lands while a reader is filling
+ * the cache can't leave stale contents behind. Writes still update or drop
+ * their entry to free the memory right away.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class ContentCache {
+  /**
+   * cached contents of one version of a file
+   */
+  private static class Entry {
+    final long version;
+    final byte[] bytes;
+
+    Entry(long version, byte[] bytes) {
+      this.version = version;
+      this.bytes = bytes;
+    }
+  }
+
+  private final long maxBytes;
+  private final int maxEntries;
+  private final long maxFile;
+
+  // access ordered, so the eldest entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long bytes = 0;
+
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Constructor for an empty cache
+   *
+   * @param maxBytes   most bytes of contents held
+   * @param maxEntries most files held
+   * @param maxFile    biggest file that is cached
+   */
+  ContentCache(long maxBytes, int maxEntries, long maxFile) {
+    this.maxBytes = maxBytes;
+    this.maxEntries = maxEntries;
+    this.maxFile = Math.min(maxFile, maxBytes);
+  }
+
+  /**
+   * @return a cache set up from the paxos.cache system properties
+   */
+  static ContentCache fromProperties() {
+    return new ContentCache(Long.getLong("paxos.cache.bytes", 64L << 20),
+        Integer.getInteger("paxos.cache.entries", 4096), Long.getLong("paxos.cache.file", 4L << 20));
+  }
+
+  /**
+   * @param size bytes in a file
+   * @return true if a file this big is cached
+   */
+  boolean fits(long size) {
+    return size <= maxFile && maxEntries > 0;
+  }
+
+  /**
+   * @param fileName name of a file
+   * @param version  the file's current version
+   * @return the file's contents, or null if that version isn't cached
+   */
+  synchronized byte[] get(String fileName, long version) {
+    Entry entry = entries.get(fileName);
+    if (entry == null || entry.version != version) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.bytes;
+  }
+
+  /**
+   * caches the contents of a file, evicting the least recently used files to
+   * make room
+   *
+   * @param fileName name of the file
+   * @param version  version the contents were read at
+   * @param contents the file's contents
+   */
+  synchronized void put(String fileName, long version, byte[] contents) {
+    if (!fits(contents.length)) {
+      return;
+    }
+    Entry old = entries.put(fileName, new Entry(version, contents));
+    bytes += contents.length - (old == null ? 0 : old.bytes.length);
+
+    Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+    while ((bytes > maxBytes || entries.size() > maxEntries) && eldest.hasNext()) {
+      Map.Entry<String, Entry> e = eldest.next();
+      if (e.getKey().equals(fileName)) {
+        continue;
+      }
+      bytes -= e.getValue().bytes.length;
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * a write of a file, replaces the cached contents only if the file is
+   * cached already
+   *
+   * @param fileName name of the file
+   * @param version  version of the write
+   * @param contents the new contents
+   */
+  synchronized void update(String fileName, long version, byte[] contents) {
+    if (entries.containsKey(fileName)) {
+      invalidate(fileName);
+      put(fileName, version, contents);
+    }
+  }
+
+  /**
+   * drops a file from the cache
+   *
+   * @param fileName name of the file
+   */
+  synchronized void invalidate(String fileName) {
+    Entry old = entries.remove(fileName);
+    if (old != null) {
+      bytes -= old.bytes.length;
+    }
+  }
+
+  public synchronized String toString() {
+    return "cache hits=" + hits.get() + " misses=" + misses.get() + " evictions=" + evictions.get() + " files="
+        + entries.size() + " bytes=" + bytes;
+  }
+}
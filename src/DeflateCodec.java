@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DeflateCodec compresses with the JDK's Deflater. Our files are mostly text
+ * logs and configs, which deflate shrinks several times over.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class DeflateCodec implements Codec {
+  private final int level;
+
+  /**
+   * Constructor for a deflate codec
+   *
+   * @param level deflate level, 1 is fastest and 9 smallest
+   */
+  DeflateCodec(int level) {
+    this.level = level;
+  }
+
+  public byte id() {
+    return 1;
+  }
+
+  public String name() {
+    return "deflate";
+  }
+
+  public byte[] encode(byte[] plain, int off, int len) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(plain, off, len);
+      deflater.finish();
+      // incompressible data grows a little, pack falls back to noop for it
+      byte[] out = new byte[len + len / 1000 + 64];
+      int size = 0;
+      while (!deflater.finished()) {
+        if (size == out.length) {
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        size += deflater.deflate(out, size, out.length - size);
+      }
+      return Arrays.copyOf(out, size);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public byte[] decode(byte[] encoded, int off, int len, int plainLength) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(encoded, off, len);
+      byte[] out = new byte[plainLength];
+      int size = 0;
+      while (size < plainLength && !inflater.finished()) {
+        int n = inflater.inflate(out, size, plainLength - size);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        size += n;
+      }
+      if (size != plainLength) {
+        throw new IOException("expected " + plainLength + " bytes, inflated " + size);
+      }
+      return out;
+    } catch (DataFormatException e) {
+      throw new IOException("bad deflate data", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,325 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delta sends a new version of a stored file as the changes from the old one,
+ * the way rsync does. The server splits its copy into blocks and sends a weak
+ * rolling checksum and a strong hash of each. The client slides a window over
+ * its file and, wherever the window's weak checksum and then its strong hash
+ * match a block, writes an instruction to copy that block instead of the
+ * bytes. Everything in between is sent as is. An edit of a few lines of a
+ * large file then costs the checksums and a block or two.
+ *
+ * A delta starts with the version it was made against, the block size, and
+ * the size and digest of the new file, then holds copy and data records. The
+ * coordinator and every replica rebuild the new file from the delta and their
+ * own copy of that version, and only keep it if it matches the digest.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Delta {
+  // smallest file sent as a delta, 0 turns delta uploads off
+  static final long MIN = Long.getLong("paxos.delta.min", 64 * 1024);
+  // smallest and largest block, a file of n bytes gets blocks of about sqrt(n)
+  static final int MIN_BLOCK = 1024;
+  static final int MAX_BLOCK = 128 * 1024;
+  // most bytes in one data record
+  static final int MAX_DATA = 1 << 20;
+
+  // answer to a delta the server couldn't rebuild the file from
+  static final String STALE = "delta failed, upload the whole file";
+
+  // record types
+  private static final int END = 0;
+  private static final int COPY = 1;
+  private static final int DATA = 2;
+
+  /**
+   * reads part of the old version of a file
+   */
+  interface Source {
+    /**
+     * @param offset position to read from
+     * @param length most bytes to read
+     * @return the bytes read, shorter at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    byte[] read(long offset, int length) throws IOException;
+  }
+
+  /**
+   * @param size bytes in the file
+   * @return the block size to split it with
+   */
+  static int blockSize(long size) {
+    int sqrt = (int) Math.min(MAX_BLOCK, Math.sqrt(size));
+    return Math.max(MIN_BLOCK, Integer.highestOneBit(Math.max(1, sqrt)));
+  }
+
+  /**
+   * checksums of every block of a file, the last one may be short
+   *
+   * @param source    the file
+   * @param size      bytes in the file
+   * @param blockSize bytes in a block
+   * @return the weak and then the strong checksum of each block
+   * @throws IOException if the file can't be read
+   */
+  static List<Long> sums(Source source, long size, int blockSize) throws IOException {
+    List<Long> sums = new ArrayList<Long>((int) (2 * ((size + blockSize - 1) / blockSize)));
+    MessageDigest md = FileIndex.sha256();
+    int per = Math.max(1, FileStoreImpl.CHUNK / blockSize) * blockSize;
+    for (long offset = 0; offset < size; offset += per) {
+      byte[] bytes = source.read(offset, (int) Math.min(per, size - offset));
+      for (int from = 0; from < bytes.length; from += blockSize) {
+        int len = Math.min(blockSize, bytes.length - from);
+        sums.add((long) weak(bytes, from, len));
+        sums.add(strong(md, bytes, from, len));
+      }
+    }
+    return sums;
+  }
+
+  /**
+   * writes a delta of a file against the checksums of the old version
+   *
+   * @param file        the new version
+   * @param digest      hex sha-256 of the new version
+   * @param baseVersion the version the checksums are of
+   * @param blockSize   bytes in a block
+   * @param sums        weak and strong checksum of each block of the old version
+   * @param to          where to write the delta
+   * @return bytes copied from the old version instead of sent
+   * @throws IOException if either file can't be read or written
+   */
+  static long encode(File file, String digest, long baseVersion, int blockSize, List<Long> sums, File to)
+      throws IOException {
+    // a short last block never matches a whole window, so it is sent as data
+    Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+    for (int i = 0; i + 1 < sums.size(); i += 2) {
+      blocks.computeIfAbsent(sums.get(i).intValue(), w -> new ArrayList<Integer>()).add(i / 2);
+    }
+
+    long copied = 0;
+    MessageDigest md = FileIndex.sha256();
+    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(to)))) {
+      int n = (int) in.size();
+      MappedByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, n);
+      out.writeLong(baseVersion);
+      out.writeInt(blockSize);
+      out.writeLong(n);
+      out.writeUTF(digest);
+
+      byte[] window = new byte[blockSize];
+      int literal = 0;
+      int i = 0;
+      int runStart = -1;
+      int runLength = 0;
+      int a = 0;
+      int b = 0;
+      boolean rolled = false;
+      while (i + blockSize <= n) {
+        if (!rolled) {
+          a = 0;
+          b = 0;
+          for (int k = 0; k < blockSize; k++) {
+            int x = data.get(i + k) & 0xff;
+            a += x;
+            b += (blockSize - k) * x;
+          }
+          rolled = true;
+        }
+        int match = -1;
+        List<Integer> candidates = blocks.get(((b & 0xffff) << 16) | (a & 0xffff));
+        if (candidates != null) {
+          data.position(i);
+          data.get(window);
+          long hash = strong(md, window, 0, blockSize);
+          for (int block : candidates) {
+            if (sums.get(2 * block + 1) == hash) {
+              match = block;
+              break;
+            }
+          }
+        }
+        if (match == -1) {
+          // roll the window one byte on
+          int out0 = data.get(i) & 0xff;
+          int in0 = i + blockSize < n ? data.get(i + blockSize) & 0xff : 0;
+          a += in0 - out0;
+          b += a - blockSize * out0;
+          i++;
+          continue;
+        }
+
+        if (literal < i) {
+          writeRun(out, runStart, runLength);
+          runStart = -1;
+          runLength = 0;
+          writeData(out, data, literal, i);
+        }
+        if (runStart != -1 && runStart + runLength == match) {
+          runLength++;
+        } else {
+          writeRun(out, runStart, runLength);
+          runStart = match;
+          runLength = 1;
+        }
+        copied += blockSize;
+        i += blockSize;
+        literal = i;
+        rolled = false;
+      }
+      writeRun(out, runStart, runLength);
+      writeData(out, data, literal, n);
+      out.writeByte(END);
+    }
+    return copied;
+  }
+
+  /**
+   * rebuilds a file from a delta and the old version
+   *
+   * @param delta   the delta
+   * @param version version of our copy of the file, checked against the one
+   *                the delta was made against
+   * @param source  our copy of the file
+   * @param to      where to write the new version
+   * @return true if the new version was rebuilt and matches the digest
+   * @throws IOException if a file can't be read or written
+   */
+  static boolean rebuild(File delta, long version, Source source, File to) throws IOException {
+    MessageDigest md = FileIndex.sha256();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(delta)));
+        FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      if (in.readLong() != version) {
+        return false;
+      }
+      int blockSize = in.readInt();
+      long length = in.readLong();
+      String digest = in.readUTF();
+      if (blockSize < 1) {
+        return false;
+      }
+
+      long offset = 0;
+      int type;
+      while ((type = in.readByte()) != END) {
+        if (type == COPY) {
+          long from = (long) in.readInt() * blockSize;
+          long end = from + (long) in.readInt() * blockSize;
+          while (from < end) {
+            byte[] bytes = source.read(from, (int) Math.min(FileStoreImpl.CHUNK, end - from));
+            if (bytes == null || bytes.length == 0) {
+              return false;
+            }
+            offset = write(out, md, bytes, offset);
+            from += bytes.length;
+          }
+        } else if (type == DATA) {
+          int len = in.readInt();
+          if (len < 0 || len > MAX_DATA) {
+            return false;
+          }
+          byte[] bytes = new byte[len];
+          in.readFully(bytes);
+          offset = write(out, md, bytes, offset);
+        } else {
+          return false;
+        }
+        if (offset > length) {
+          return false;
+        }
+      }
+      return offset == length && FileIndex.hex(md.digest()).equals(digest);
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * writes a copy record for a run of consecutive blocks, if there is one
+   */
+  private static void writeRun(DataOutputStream out, int start, int length) throws IOException {
+    if (start != -1) {
+      out.writeByte(COPY);
+      out.writeInt(start);
+      out.writeInt(length);
+    }
+  }
+
+  /**
+   * writes data records for a range of the new version
+   */
+  private static void writeData(DataOutputStream out, ByteBuffer data, int from, int to) throws IOException {
+    byte[] buf = new byte[Math.min(MAX_DATA, Math.max(0, to - from))];
+    while (from < to) {
+      int len = Math.min(MAX_DATA, to - from);
+      data.position(from);
+      data.get(buf, 0, len);
+      out.writeByte(DATA);
+      out.writeInt(len);
+      out.write(buf, 0, len);
+      from += len;
+    }
+  }
+
+  /**
+   * @return the offset after the bytes written
+   */
+  private static long write(FileChannel out, MessageDigest md, byte[] bytes, long offset) throws IOException {
+    md.update(bytes);
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    while (buf.hasRemaining()) {
+      offset += out.write(buf, offset);
+    }
+    return offset;
+  }
+
+  /**
+   * the rsync rolling checksum of a block, two 16 bit sums
+   */
+  private static int weak(byte[] bytes, int from, int len) {
+    int a = 0;
+    int b = 0;
+    for (int k = 0; k < len; k++) {
+      int x = bytes[from + k] & 0xff;
+      a += x;
+      b += (len - k) * x;
+    }
+    return ((b & 0xffff) << 16) | (a & 0xffff);
+  }
+
+  /**
+   * @return the first 64 bits of a sha-256 of a block
+   */
+  private static long strong(MessageDigest md, byte[] bytes, int from, int len) {
+    md.reset();
+    md.update(bytes, from, len);
+    byte[] d = md.digest();
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (d[i] & 0xff);
+    }
+    return h;
+  }
+}
@@ -0,0 +1,310 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * FileIndex keeps the metadata of every file in 'ServerFiles<port>' in memory,
+ * sorted by name: its size, digest, the version of its last committed write,
+ * when that write was applied and the codec it is stored with. Removed files keep their version so a file
+ * written again carries on from it. Listings are served from here instead of
+ * scanning the directory.
+ *
+ * A write's version comes from the round of consensus that decided it, and a
+ * replica never moves a file's version backwards, so replicas that applied the
+ * same writes agree on every version. A Merkle tree of the names, versions and
+ * digests is kept up to date alongside, for replicas to compare themselves
+ * with each other. The index is saved to
+ * 'ServerLog<port>/index' at each checkpoint of the write ahead log and the
+ * commits logged after it are replayed on top at startup.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class FileIndex {
+  private final File dataDir;
+  private final File snapshot;
+  private final ConcurrentSkipListMap<String, FileMeta> files = new ConcurrentSkipListMap<String, FileMeta>();
+  final MerkleTree tree = new MerkleTree();
+
+  /**
+   * Constructor for an empty index
+   *
+   * @param dataDir  the file directory being indexed
+   * @param snapshot where the index is saved
+   */
+  FileIndex(File dataDir, File snapshot) {
+    this.dataDir = dataDir;
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * @param fileName name of a file
+   * @return metadata of the file, or null if there is no such file
+   */
+  FileMeta get(String fileName) {
+    FileMeta meta = files.get(fileName);
+    return meta == null || meta.removed() ? null : meta;
+  }
+
+  /**
+   * @param fileName name of a file
+   * @return metadata of the file, removed or not, or null if it was never
+   *         written
+   */
+  FileMeta entry(String fileName) {
+    return files.get(fileName);
+  }
+
+  /**
+   * @param fileName name of a file
+   * @return version of the last write of the file, 0 if it was never written
+   */
+  long version(String fileName) {
+    FileMeta meta = files.get(fileName);
+    return meta == null ? 0 : meta.version;
+  }
+
+  /**
+   * records a write applied to the file directory. The file gets exactly the
+   * version decided for the write, a write at or below the version the file
+   * already has is ignored. Versions are never made up here, two replicas
+   * giving one write different versions could never be compared again.
+   * Writes of the same file must not be recorded from two threads at once,
+   * the file store's write locks see to that.
+   *
+   * @param fileName name of the file
+   * @param version  version decided for the write
+   * @param size     bytes in the file
+   * @param digest   hex digest of the contents, null for a remove
+   * @param codec    name of the codec the file is stored with
+   * @param stored   bytes the file takes on disk
+   * @return the metadata of the file, unchanged if the write was ignored
+   */
+  FileMeta update(String fileName, long version, long size, String digest, String codec, long stored) {
+    FileMeta current = files.get(fileName);
+    if (current != null && current.version >= version) {
+      return current;
+    }
+    FileMeta meta = new FileMeta(fileName, size, version, System.currentTimeMillis(), digest, codec, stored);
+    files.put(fileName, meta);
+    tree.update(meta);
+    return meta;
+  }
+
+  /**
+   * one page of the files in name order. Only the page is visited, so the
+   * cost doesn't grow with the number of files.
+   *
+   * @param prefix only names starting with this are listed
+   * @param after  only names after this cursor are listed, null for the start
+   * @param limit  most files in the page
+   * @return the files in the page
+   */
+  List<FileMeta> list(String prefix, String after, int limit) {
+    String from = after != null && after.compareTo(prefix) >= 0 ? after : prefix;
+    boolean inclusive = after == null || after.compareTo(prefix) < 0;
+    List<FileMeta> page = new ArrayList<FileMeta>(Math.min(limit, 64));
+    for (FileMeta meta : files.tailMap(from, inclusive).values()) {
+      if (page.size() >= limit || !meta.fileName.startsWith(prefix)) {
+        break;
+      }
+      if (!meta.removed()) {
+        page.add(meta);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * one page of every file in name order, removed ones included, for a
+   * replica catching up to compare versions against
+   *
+   * @param after only names after this cursor are listed, null for the start
+   * @param limit most files in the page
+   * @return the files in the page
+   */
+  List<FileMeta> page(String after, int limit) {
+    List<FileMeta> page = new ArrayList<FileMeta>(Math.min(limit, 64));
+    for (FileMeta meta : (after == null ? files : files.tailMap(after, false)).values()) {
+      if (page.size() >= limit) {
+        break;
+      }
+      page.add(meta);
+    }
+    return page;
+  }
+
+  /**
+   * loads the saved index and checks it against the file directory. Files
+   * changed or added behind our back get a fresh digest and version 0, so
+   * any committed version on another replica replaces them. Files gone from
+   * the directory are marked removed, also at version 0 so a replica that
+   * still has them gives them back.
+   *
+   * @throws IOException if the directory can't be read
+   */
+  void load() throws IOException {
+    files.clear();
+    if (snapshot.exists()) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          String name = in.readUTF();
+          long size = in.readLong();
+          long version = in.readLong();
+          long modified = in.readLong();
+          String digest = in.readUTF();
+          String codec = in.readUTF();
+          long stored = in.readLong();
+          files.put(name,
+              new FileMeta(name, size, version, modified, digest.isEmpty() ? null : digest, codec, stored));
+        }
+      }
+    }
+
+    String[] names = dataDir.list();
+    if (names == null) {
+      names = new String[0];
+    }
+    for (String name : names) {
+      File f = new File(dataDir, name);
+      FileMeta meta = files.get(name);
+      if (meta == null || meta.removed() || meta.stored != f.length() || f.lastModified() > meta.modified) {
+        FileMeta found = meta == null ? describe(f, 0, null, 0) : describe(f, 0, meta.codec, meta.size);
+        if (meta != null && found.digest.equals(meta.digest)) {
+          // only touched, the contents are still the committed ones
+          found = new FileMeta(name, found.size, meta.version, found.modified, found.digest, found.codec,
+              found.stored);
+        }
+        files.put(name, found);
+      }
+    }
+    for (FileMeta meta : files.values()) {
+      if (!meta.removed() && !new File(dataDir, meta.fileName).exists()) {
+        files.put(meta.fileName, new FileMeta(meta.fileName, 0, 0, meta.modified, null,
+            NoopCodec.INSTANCE.name(), 0));
+      }
+    }
+    tree.clear();
+    for (FileMeta meta : files.values()) {
+      tree.update(meta);
+    }
+  }
+
+  /**
+   * works out the metadata of a file from its contents on disk
+   *
+   * @param f       a stored file, sealed or plain
+   * @param version version to give it
+   * @param codec   name of the codec the file should be sealed with, null if
+   *                it should be plain
+   * @param size    bytes of contents the file should hold if it is sealed
+   * @return the file's metadata, as a plain file if it isn't sealed the way
+   *         it should be
+   * @throws IOException if the file can't be read
+   */
+  static FileMeta describe(File f, long version, String codec, long size) throws IOException {
+    Codec sealedWith = Codecs.forName(codec);
+    if (sealedWith != NoopCodec.INSTANCE) {
+      try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+        byte[] plain = Codecs.readSealed(in, sealedWith, size);
+        return new FileMeta(f.getName(), plain.length, version, f.lastModified(), digest(plain), sealedWith.name(),
+            in.size());
+      } catch (IOException e) {
+        // changed behind our back, it is taken as it is
+      }
+    }
+    return new FileMeta(f.getName(), f.length(), version, f.lastModified(), digest(f), NoopCodec.INSTANCE.name(),
+        f.length());
+  }
+
+  /**
+   * writes the index to disk, replacing the last save in one atomic move
+   *
+   * @throws IOException if the index can't be written
+   */
+  void save() throws IOException {
+    File tmp = new File(snapshot.getPath() + ".tmp");
+    try (FileOutputStream stream = new FileOutputStream(tmp)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+      out.writeInt(files.size());
+      for (FileMeta meta : files.values()) {
+        out.writeUTF(meta.fileName);
+        out.writeLong(meta.size);
+        out.writeLong(meta.version);
+        out.writeLong(meta.modified);
+        out.writeUTF(meta.digest == null ? "" : meta.digest);
+        out.writeUTF(meta.codec);
+        out.writeLong(meta.stored);
+      }
+      out.flush();
+      stream.getFD().sync();
+    }
+    Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * @param bytes some contents
+   * @return hex sha-256 of the contents
+   */
+  static String digest(byte[] bytes) {
+    MessageDigest md = sha256();
+    md.update(bytes);
+    return hex(md.digest());
+  }
+
+  /**
+   * @param f a file
+   * @return hex sha-256 of the file's contents
+   * @throws IOException if the file can't be read
+   */
+  static String digest(File f) throws IOException {
+    MessageDigest md = sha256();
+    byte[] buf = new byte[64 * 1024];
+    try (InputStream in = new FileInputStream(f)) {
+      for (int read = in.read(buf); read >= 0; read = in.read(buf)) {
+        md.update(buf, 0, read);
+      }
+    }
+    return hex(md.digest());
+  }
+
+  /**
+   * @return a new sha-256 digest
+   */
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every java runtime has to provide sha-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param bytes a digest
+   * @return the digest in lower case hex
+   */
+  static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
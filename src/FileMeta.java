@@ -0,0 +1,58 @@
+import java.io.Serializable;
+
+/**
+ * FileMeta describes the committed contents of one stored file without the
+ * contents themselves. Replicas holding the same version of a file return the
+ * same digest, so a client can compare them cheaply before reading the body
+ * from just one of them.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class FileMeta implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final String fileName;
+  final long size;
+  final long version;
+  final long modified;
+
+  // hex sha-256 of the contents, null once the file is removed
+  final String digest;
+
+  // codec the file is stored with and its size on disk
+  final String codec;
+  final long stored;
+
+  /**
+   * Constructor for file metadata
+   *
+   * @param fileName name of the file
+   * @param size     bytes in the file
+   * @param version  version of the last committed write of the file
+   * @param modified time the last write was applied here
+   * @param digest   hex sha-256 of the contents, or null if removed
+   * @param codec    name of the codec the file is stored with
+   * @param stored   bytes the file takes on disk
+   */
+  FileMeta(String fileName, long size, long version, long modified, String digest, String codec, long stored) {
+    this.fileName = fileName;
+    this.size = size;
+    this.version = version;
+    this.modified = modified;
+    this.digest = digest;
+    this.codec = codec;
+    this.stored = stored;
+  }
+
+  /**
+   * @return true if this only remembers the version of a removed file
+   */
+  boolean removed() {
+    return digest == null;
+  }
+
+  public String toString() {
+    return fileName + " v" + version + " " + size + " bytes (" + stored + " " + codec + ") " + digest;
+  }
+}
@@ -1,6 +1,7 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.Date;
+import java.util.List;
 
 /**
  * FileStore interface class to setup RPC methods
@@ -20,39 +21,291 @@ public interface FileStore extends Remote {
   String clientRequest(String key) throws RemoteException;
 
   /**
-   * prepare rpc will check if we can enter a ready state to wait for a commit
+   * prepare rpc will check if we can enter a ready state for the files of a
+   * transaction to wait for a commit
    * 
-   * @param port integer port for the server requesting
-   * @param time is the time the request was made for id
+   * @param port      integer port for the server requesting
+   * @param txId      id of the transaction being prepared
+   * @param fileNames names of the files the transaction changes
+   * @param time      is the time the request was made for id
    * @throws RemoteException if anything happens when trying to execute rpc
    */
-  void prepare(int port, Date time) throws RemoteException;
+  void prepare(int port, String txId, List<String> fileNames, Date time) throws RemoteException;
 
   /**
    * commit rpc will attempt to make a commit against the local keystore and
    * respond with an ack message to the issuing server.
    * 
-   * @param port  requesting server port for response
-   * @param cmd   a command message type for commit (put or delete)
-   * @param key   key string for the keystore
-   * @param value value string for the keystore
+   * @param port requesting server port for response
+   * @param txId id of the transaction being committed
+   * @param ops  the uploads and removes to apply, in order
    * @throws RemoteException if anything happens when trying to execute rpc
    */
-  void commit(int port, String cmd, String key, String value) throws RemoteException;
+  void commit(int port, String txId, List<Operation> ops) throws RemoteException;
 
   /**
    * reply rpc is a reply from slave servers to count and check whatever vote or
    * ack they submit
    * 
+   * @param txId id of the transaction the reply is for
    * @param type string for the kind of reply received
    * @throws RemoteException if anything happens when trying to execute rpc
    */
-  void reply(String type) throws RemoteException;
+  void reply(String txId, String type) throws RemoteException;
 
   /**
-   * abort method logs the event and initates the reset of state
+   * vote rpc is a replica's vote to commit a prepared transaction, with its
+   * version of each file so the coordinator can pick versions none of them has
    * 
+   * @param txId     id of the transaction the vote is for
+   * @param versions our version of each file the transaction writes, in order
    * @throws RemoteException if anything happens when trying to execute rpc
    */
-  void abort() throws RemoteException;
+  void vote(String txId, List<Long> versions) throws RemoteException;
+
+  /**
+   * abort method logs the event and initates the reset of state for a
+   * transaction
+   * 
+   * @param txId id of the transaction to abort
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  void abort(String txId) throws RemoteException;
+
+  /**
+   * multi-paxos phase one. Promise a ballot to a server running for leader and
+   * return what we accepted after a slot so it can finish those entries, and
+   * how far our log goes.
+   *
+   * @param port     port of the server running for leader
+   * @param ballot   the ballot being elected
+   * @param fromSlot only entries after this slot are returned
+   * @return our vote, or null if we promised a higher ballot
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  Vote elect(int port, long ballot, long fromSlot) throws RemoteException;
+
+  /**
+   * multi-paxos phase two. Accept an entry for a slot from the leader.
+   *
+   * @param port  port of the leader
+   * @param entry the proposed entry
+   * @return true if accepted, false if we promised a higher ballot
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  boolean accept(int port, LogEntry entry) throws RemoteException;
+
+  /**
+   * tells a replica that the entry for a slot was chosen so it can be applied
+   *
+   * @param port   port of the leader
+   * @param slot   the chosen slot
+   * @param ballot ballot the slot was chosen under
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  void learn(int port, long slot, long ballot) throws RemoteException;
+
+  /**
+   * @param slot a slot in the log
+   * @return the entry this server has for the slot, or null
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  LogEntry fetch(long slot) throws RemoteException;
+
+  /**
+   * asks the leader to put an upload or remove in the log. Followers forward
+   * client writes here.
+   *
+   * @param op the client write
+   * @return response to the client
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  String propose(Operation op) throws RemoteException;
+
+  /**
+   * starts a chunked upload of a file. The contents are sent with uploadChunk
+   * and stored once finishUpload is called.
+   *
+   * @param fileName name of the file
+   * @return id of the upload
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  String beginUpload(String fileName) throws RemoteException;
+
+  /**
+   * starts receiving an upload another server of the group staged and is
+   * passing on, under the id that server gave it
+   *
+   * @param fileName name of the file
+   * @param uploadId id the coordinator gave the upload, plus '.delta' for its
+   *                 delta
+   * @throws RemoteException if the id isn't one a server hands out
+   */
+  void beginPush(String fileName, String uploadId) throws RemoteException;
+
+  /**
+   * writes part of an upload to the server's staging area on disk. Servers also
+   * use this to pass a staged upload on to each other once beginPush
+   * registered it.
+   *
+   * @param uploadId id of the upload
+   * @param offset   position of the chunk in the file
+   * @param packed   bytes of the chunk, packed by Codecs.pack
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  void uploadChunk(String uploadId, long offset, byte[] packed) throws RemoteException;
+
+  /**
+   * copies a staged upload to the other servers and commits it
+   *
+   * @param uploadId id of the upload
+   * @return response to the client
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  String finishUpload(String uploadId) throws RemoteException;
+
+  /**
+   * rebuilds a file from a delta staged with beginUpload and uploadChunk,
+   * copies the delta to the other servers and commits the file
+   *
+   * @param uploadId id of the upload
+   * @return response to the client, Delta.STALE if the file couldn't be
+   *         rebuilt from the delta and has to be uploaded whole
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  String finishDelta(String uploadId) throws RemoteException;
+
+  /**
+   * rebuilds a file from a delta the coordinator copied here, staged under
+   * the upload's id plus '.delta'
+   *
+   * @param fileName name of the file
+   * @param uploadId id of the upload
+   * @return true if the file was rebuilt, false if it has to be sent whole
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  boolean rebuildUpload(String fileName, String uploadId) throws RemoteException;
+
+  /**
+   * reads part of a stored file
+   *
+   * @param fileName name of the file
+   * @param offset   position to read from
+   * @param length   most bytes to read
+   * @param codec    name of the codec the client would like the chunk in, the
+   *                 server may still send it plain
+   * @return the bytes read packed by Codecs.pack, shorter than length at the
+   *         end of the file, or null if there is no such file
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  byte[] downloadChunk(String fileName, long offset, int length, String codec) throws RemoteException;
+
+  /**
+   * gets the size, digest and version of a stored file without its contents
+   *
+   * @param fileName name of the file
+   * @return metadata of the file, or null if there is no such file
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  FileMeta stat(String fileName) throws RemoteException;
+
+  /**
+   * checksums of the blocks of a stored file, for sending a new version of it
+   * as a delta
+   *
+   * @param fileName  name of the file
+   * @param blockSize bytes in a block
+   * @return the file's version and then the weak and strong checksum of each
+   *         block, empty if there is no such file
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  List<Long> blockSums(String fileName, int blockSize) throws RemoteException;
+
+  /**
+   * gets a file's metadata without asking the other servers, only answered by
+   * the multi-paxos leader while it holds a lease
+   *
+   * @param fileName name of the file
+   * @return metadata of the file, a removed file's if there is no such file,
+   *         or null if this server can't answer alone
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  FileMeta leaseStat(String fileName) throws RemoteException;
+
+  /**
+   * @return this server's port if it is the leader and holds a lease,
+   *         otherwise the leader it last heard from, -1 if it knows of none
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  int leader() throws RemoteException;
+
+  /**
+   * grants the multi-paxos leader a lease, so this server promises no other
+   * server a ballot until it runs out
+   *
+   * @param port   port of the leader
+   * @param ballot the ballot it leads with
+   * @return true if granted
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  boolean grantLease(int port, long ballot) throws RemoteException;
+
+  /**
+   * @return the highest slot this server has applied in multi-paxos mode, 0 in
+   *         classic mode
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  long appliedSlot() throws RemoteException;
+
+  /**
+   * the chosen log entries after a slot, for a replica catching up
+   *
+   * @param slot only entries after this slot are returned
+   * @param max  most entries to return
+   * @return the entries in slot order, or null if this server no longer keeps
+   *         them and the replica needs a snapshot instead
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  List<LogEntry> entriesAfter(long slot, int max) throws RemoteException;
+
+  /**
+   * one page of the metadata of every file in name order, removed files
+   * included, for a replica catching up to compare versions against
+   *
+   * @param after only names after this cursor are listed, null for the start
+   * @param limit most files in the page
+   * @return the files in the page
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  List<FileMeta> manifest(String after, int limit) throws RemoteException;
+
+  /**
+   * hashes of nodes of this server's Merkle tree, for anti-entropy
+   *
+   * @param level level of the nodes, 0 is the root
+   * @param nodes indexes of the nodes within the level
+   * @return the hash of each node, in the same order
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  List<Long> merkleHashes(int level, List<Integer> nodes) throws RemoteException;
+
+  /**
+   * metadata of every file in some leaves of this server's Merkle tree,
+   * removed files included, for anti-entropy
+   *
+   * @param leaves indexes of the leaves
+   * @return the files in the leaves
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  List<FileMeta> merkleLeaves(List<Integer> leaves) throws RemoteException;
+
+  /**
+   * commits a staged upload of a file moving in from another group of
+   * replicas, unless the file was already written or removed in this group
+   *
+   * @param uploadId id of the upload
+   * @return response to the mover, 'exists' if the file was kept as it is
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  String adoptUpload(String uploadId) throws RemoteException;
 }
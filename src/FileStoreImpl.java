@@ -1,16 +1,35 @@
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.rmi.Naming;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Scanner;
-import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 /**
  * FileStoreImpl is the main implementation class for all of the server
@@ -26,14 +45,129 @@ public class FileStoreImpl extends UnicastRemoteObject implements FileStore {
   // date formatter
   SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
 
+  // how long a coordinator waits for votes and acks before aborting
+  static final long TIMEOUT = 10000;
+
+  // number of lock stripes used to order work on the same file
+  static final int STRIPES = 64;
+
+  // largest chunk sent in one rpc by chunked uploads and downloads
+  static final int CHUNK = 1 << 20;
+
+  // files at least this big are memory mapped when read whole
+  static final long MAP_THRESHOLD = 64 * 1024;
+
+  // default and largest number of names in one page of a listing
+  static final int LIST_PAGE = Integer.getInteger("paxos.list.page", 1000);
+  static final int LIST_PAGE_MAX = 10000;
+
+  // ballots are round * BALLOT_PORTS + port so every server's ballots differ
+  static final long BALLOT_PORTS = 65536;
+
+  // threads and queued calls each peer gets
+  static final int PEER_THREADS = Integer.getInteger("paxos.peer.threads", 4);
+  static final int PEER_QUEUE = 64;
+
+  // upload ids that beginUpload hands out, port-boot time-counter, and the
+  // id of a delta. Other servers may only push us uploads under such ids
+  private static final Pattern PUSH_ID = Pattern.compile("\\d+-\\d+-\\d+(\\.delta)?");
+
   // state and storage variables
   int[] serverArr;
-  FileStore[] serverRpcArr;
-  boolean abort, commit, ready, setup, wait = false;
-  int votes, acks = 0;
-  String msg, command, fileName, contents = "";
-  Date prepDate;
-  int promisedHost;
+  StubRegistry stubs;
+  // one small pool per peer, so a peer that stops answering only ties up its
+  // own threads and queue and the others are still messaged at once
+  Map<Integer, ExecutorService> peerPools = new ConcurrentHashMap<Integer, ExecutorService>();
+
+  // latency of each phase of a write and of reads, and counts of what went
+  // wrong, published over jmx
+  Metrics metrics;
+  Map<String, Histogram> rpcLatency = new HashMap<String, Histogram>();
+  Histogram voteLatency;
+  Histogram ackLatency;
+  Histogram acceptLatency;
+  Histogram walLatency;
+  Histogram writeLatency;
+  Histogram readLatency;
+  AtomicLong aborts;
+  AtomicLong timeouts;
+  AtomicLong deltasRebuilt;
+  AtomicLong deltasFailed;
+
+  // transactions we are coordinating and the promises we made to other
+  // coordinators, both keyed so unrelated files don't share any state
+  Map<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
+  Map<String, Promise> promises = new ConcurrentHashMap<String, Promise>();
+  Set<String> coordinating = ConcurrentHashMap.newKeySet();
+
+  // fileLocks order the transactions we coordinate on a file, writeLocks keep
+  // local writes of the same file from interleaving
+  ReentrantLock[] fileLocks = new ReentrantLock[STRIPES];
+  ReentrantLock[] writeLocks = new ReentrantLock[STRIPES];
+  AtomicLong txCounter = new AtomicLong();
+  long bootTime = System.currentTimeMillis();
+
+  // multi-paxos mode state. ballot is our ballot while we are the leader and -1
+  // otherwise, leaderPort is the last leader we promised or granted a lease
+  boolean multiPaxos = Boolean.getBoolean("paxos.multi");
+  PaxosLog log = new PaxosLog();
+  Object applyLock = new Object();
+  Object electionLock = new Object();
+  Map<Long, List<String>> results = new ConcurrentHashMap<Long, List<String>>();
+  AtomicLong nextSlot = new AtomicLong(1);
+  volatile long ballot = -1;
+  volatile int leaderPort = -1;
+
+  // lets the leader answer reads without asking the replicas
+  Lease lease;
+
+  // batches client writes into rounds of consensus
+  GroupCommitter committer;
+
+  // commits are made durable here before they touch the file directory
+  WriteAheadLog wal;
+
+  // size, digest and version of every file we store
+  FileIndex index;
+
+  // contents of recently downloaded files
+  ContentCache cache = ContentCache.fromProperties();
+  // sealed files being downloaded in chunks that the content cache didn't
+  // take, so each download decompresses them once instead of every chunk
+  private final ContentCache unsealed = new ContentCache(4 * Codecs.MAX_SIZE, 4, Codecs.MAX_SIZE);
+  Admission admission;
+
+  // pulls what we missed from the peers while we were down or behind
+  CatchUp catchUp;
+  AntiEntropy antiEntropy;
+
+  // which group each file belongs to, and the mover of the files that now
+  // belong to another group
+  volatile ShardMap shards;
+  Rebalancer rebalancer;
+
+  // serves our calls over NIO when that transport is on, null otherwise
+  NioServer nio;
+
+  // chunked uploads started on this server, by upload id
+  Map<String, String> uploads = new ConcurrentHashMap<String, String>();
+  // uploads other servers are passing on to us, by upload id
+  Map<String, String> pushes = new ConcurrentHashMap<String, String>();
+
+  /**
+   * a promise made in prepare to a coordinator for one file
+   */
+  private static class Promise {
+    final String txId;
+    final int port;
+    // our clock when we made it
+    final long made = System.currentTimeMillis();
+
+    Promise(String txId, int port) {
+      this.txId = txId;
+      this.port = port;
+    }
+  }
 
   /**
    * Constructor taking in an array of server ports
@@ -44,16 +178,123 @@ public class FileStoreImpl extends UnicastRemoteObject implements FileStore {
   FileStoreImpl(int[] serverArr) throws RemoteException {
     super();
     this.serverArr = serverArr;
+    this.metrics = new Metrics(String.valueOf(serverArr[0]));
+    this.stubs = new StubRegistry(metrics);
+    for (String type : new String[] { "prepare", "commit", "abort", "elect", "accept", "learn", "upload", "lease" }) {
+      rpcLatency.put(type, metrics.histogram("rpc." + type));
+    }
+    this.voteLatency = metrics.histogram("quorum.votes");
+    this.ackLatency = metrics.histogram("quorum.acks");
+    this.acceptLatency = metrics.histogram("quorum.accepts");
+    this.walLatency = metrics.histogram("disk.wal");
+    this.writeLatency = metrics.histogram("disk.write");
+    this.readLatency = metrics.histogram("disk.read");
+    this.aborts = metrics.counter("aborts");
+    this.timeouts = metrics.counter("timeouts");
+    this.deltasRebuilt = metrics.counter("delta.rebuilt");
+    this.deltasFailed = metrics.counter("delta.failed");
+
+    for (int i = 0; i < STRIPES; i++) {
+      fileLocks[i] = new ReentrantLock();
+      writeLocks[i] = new ReentrantLock();
+    }
+
+    String homeDir = System.getProperty("user.dir");
+    try {
+      this.wal = new WriteAheadLog(new File(homeDir + "/ServerLog" + serverArr[0]),
+          new File(homeDir + "/ServerFiles" + serverArr[0]));
+    } catch (IOException e) {
+      throw new RemoteException("could not open the write ahead log", e);
+    }
+    this.index = new FileIndex(new File(homeDir + "/ServerFiles" + serverArr[0]),
+        new File(homeDir + "/ServerLog" + serverArr[0] + "/index"));
+
+    this.admission = Admission.fromProperties();
+    this.committer = GroupCommitter.fromProperties(String.valueOf(serverArr[0]),
+        multiPaxos ? this::proposeBatch : this::runTransaction);
+    this.catchUp = new CatchUp(this);
+    this.antiEntropy = new AntiEntropy(this);
+    this.lease = new Lease(this);
+    this.shards = loadShards();
+    this.rebalancer = new Rebalancer(this);
+  }
+
+  /**
+   * @return the shard map, checked to have our group in it
+   * @throws RemoteException if the map can't be read or doesn't have us
+   */
+  private ShardMap loadShards() throws RemoteException {
+    ShardMap map;
+    try {
+      map = ShardMap.fromProperties(serverArr);
+    } catch (IOException e) {
+      throw new RemoteException("could not read the shard map", e);
+    }
+    if (map.groupOf(serverArr[0]) == null) {
+      throw new RemoteException(serverArr[0] + " is in no group of the shard map");
+    }
+    return map;
+  }
+
+  /**
+   * Replays the write ahead log after a restart. Committed writes are applied
+   * again over older versions, which redoes any the file directory lost in a
+   * crash since the index marks those files version 0, and in multi-paxos
+   * mode our promise and accepted entries are restored.
+   *
+   * @throws IOException if the log can't be read
+   */
+  void recover() throws IOException {
+    index.load();
+    wal.replay(new WriteAheadLog.Handler() {
+      public void promise(long ballot) {
+        log.promise(ballot);
+      }
+
+      public void accept(LogEntry entry) {
+        log.accept(entry);
+      }
+
+      public void commit(long slot, List<Operation> ops) {
+        for (Operation op : ops) {
+          apply(op);
+        }
+        if (slot > log.applied()) {
+          log.applied(slot);
+        }
+      }
+    });
+    System.out.println(date.format(new Date()) + ": recovered " + wal.size() + " bytes of log, applied slot "
+        + log.applied());
+    if (multiPaxos && log.promised() != -1) {
+      lease.restarted();
+    }
   }
 
   /**
-   * Main function that is called to process client request messages.
+   * Main function that is called to process client request messages. Requests
+   * go through admission, so when too many are already running or queued the
+   * answer is Admission.BUSY right away.
    *
    * @param message a string containing the client message
    * @return response to the client after processing
    * @throws RemoteException if anything happens when trying to execute rpc
    */
   public String clientRequest(String message) {
+    // stats always answers, so an overloaded server can still be looked at
+    if (message.trim().equalsIgnoreCase("stats")) {
+      return handle(message);
+    }
+    return admission.call(() -> handle(message));
+  }
+
+  /**
+   * processes one admitted client request
+   *
+   * @param message a string containing the client message
+   * @return response to the client after processing
+   */
+  private String handle(String message) {
     String[] parsedMessages = message.split(" ");
 
     // check if we actually have a message to check
@@ -62,177 +303,365 @@ public class FileStoreImpl extends UnicastRemoteObject implements FileStore {
     }
 
     // setup human readable variables
-    this.command = parsedMessages[0].toLowerCase();
+    String command = parsedMessages[0].toLowerCase();
+    String fileName = null;
+    String contents = "";
 
     if (parsedMessages.length > 1) {
-      this.fileName = parsedMessages[1];
-      this.contents = parsedMessages.length >= 3
+      fileName = parsedMessages[1];
+      contents = parsedMessages.length >= 3
           ? message.substring(parsedMessages[0].length() + parsedMessages[1].length() + 2, message.length())
           : "empty";
     }
 
-    // save message to use later
-    this.msg = message;
-
     // evaluate statement for next steps
     if (command.equals("list")) {
-      String ret = "";
-
-      String homeDir = System.getProperty("user.dir");
-
-      File f = new File(homeDir + "/ServerFiles" + serverArr[0] + "/");
-      String[] fileList = f.list();
-      for (int i = fileList.length - 1; i >= 0; i--) {
-        if (i == 0) {
-          ret += fileList[i];
-        } else {
-          ret += fileList[i] + "\n";
-        }
-
+      return listFiles(parsedMessages);
+    } else if ((command.equals("upload") || command.equals("remove")) && fileName != null) {
+      if (!shards.owns(serverArr[0], fileName)) {
+        return ShardMap.WRONG_GROUP;
       }
-
-      return ret;
-
-    } else if (command.equals("upload") || command.equals("remove")) {
-      System.out.println(date.format(new Date()) + ": begin_commit");
-      messageAll("prepare");
-    } else if (command.equals("download")) {
+      return write(new Operation(command, fileName, contents));
+    } else if (command.equals("download") && fileName != null) {
       return readFile(fileName);
+    } else if (command.equals("reshard")) {
+      return reshard();
+    } else if (command.equals("stats")) {
+      return cache.toString() + "\n" + admission.toString() + "\n" + catchUp.toString() + "\n" + antiEntropy.toString() + "\n"
+          + lease.toString() + "\n" + rebalancer.toString() + "\n" + metrics.toString();
     } else {
       return ("Invalid operation. Try again.");
     }
+  }
+
+  /**
+   * reads the shard map again after groups were added or changed, and starts
+   * moving the files that now belong to another group
+   *
+   * @return the number of groups, or why the map wasn't changed
+   */
+  private String reshard() {
+    try {
+      shards = loadShards();
+    } catch (RemoteException e) {
+      return "Reshard failed: " + e.getMessage();
+    }
+    System.out.println(date.format(new Date()) + ": shard map reloaded, " + shards.groups().size() + " groups");
+    rebalancer.request();
+    return "Resharded to " + shards.groups().size() + " groups.";
+  }
 
-    // setup timeout to make sure we don't hang if a server crashes or doesn't reply
-    // in time
-    long start_time = System.currentTimeMillis();
-    long wait_time = 10000;
-    long end_time = start_time + wait_time;
+  /**
+   * decides an upload or remove through our group's consensus
+   *
+   * @param op the write
+   * @return response to the client
+   */
+  String write(Operation op) {
+    return multiPaxos ? forward(op) : committer.submit(op);
+  }
 
-    // wait loop to allow clients to respond
-    while (!abort && wait) {
-      // abort if one of the servers take too long
-      if (System.currentTimeMillis() > end_time) {
-        this.abort = true;
+  /**
+   * Lists one page of file names from the index, in name order. Takes optional
+   * 'prefix=<p>', 'after=<cursor>' and 'limit=<n>' arguments. If there are
+   * more files the last line is 'more after <cursor>', which can't be a file
+   * name because names have no spaces. With 'read=lease' the page is only
+   * listed if we are the leader and hold a lease, otherwise the answer is
+   * Lease.NOT_LEADER.
+   *
+   * @param args the list command and its arguments
+   * @return the names in the page, one per line
+   */
+  private String listFiles(String[] args) {
+    String prefix = "";
+    String after = null;
+    int limit = LIST_PAGE;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].startsWith("prefix=")) {
+        prefix = args[i].substring(7);
+      } else if (args[i].startsWith("after=")) {
+        after = args[i].substring(6);
+      } else if (args[i].startsWith("limit=")) {
+        try {
+          limit = Math.max(1, Math.min(LIST_PAGE_MAX, Integer.parseInt(args[i].substring(6))));
+        } catch (NumberFormatException e) {
+          return ("Invalid operation. Try again.");
+        }
+      } else if (args[i].equals("read=lease") && !lease.read(ballot)) {
+        return Lease.NOT_LEADER;
       }
+    }
 
-      // if we have all 4 votes, send out commit message to all servers
-      if (votes >= 2 && !commit) {
-        this.commit = true;
-        messageAll("commit");
+    // ask for one extra to know if there is another page
+    List<FileMeta> page = index.list(prefix, after, limit + 1);
+    StringBuilder ret = new StringBuilder();
+    for (int i = 0; i < Math.min(limit, page.size()); i++) {
+      if (i > 0) {
+        ret.append('\n');
       }
+      ret.append(page.get(i).fileName);
+    }
+    if (page.size() > limit) {
+      ret.append("\nmore after ").append(page.get(limit - 1).fileName);
+    }
+    return ret.toString();
+  }
 
-      // if we have all 4 ack messages, lets commit to our filestore
-      if (acks >= 2) {
-        String res = "no action taken.";
-        if (command.equals("upload")) {
-          // need to separate the filename and contents from the incoming client message
-          // for this function
-          res = writeFile(fileName, contents);
-        } else {
-          // need to separate the filename from the message for this function
-          res = deleteFile(fileName);
-        }
-        System.out.println(date.format(new Date()) + ": end_of_transaction");
-        // reset state
-        reset();
-        return (res);
+  /**
+   * Coordinates a batch of uploads and removes across the servers. Transactions
+   * on the same file are run one at a time through the file's lock stripe,
+   * transactions on other files run in parallel.
+   *
+   * @param ops the writes to decide, in order
+   * @return response to each client
+   */
+  private List<String> runTransaction(List<Operation> ops) {
+    // take the stripes in index order so two batches can't deadlock
+    TreeMap<Integer, ReentrantLock> locks = new TreeMap<Integer, ReentrantLock>();
+    List<String> fileNames = new ArrayList<String>();
+    for (Operation op : ops) {
+      locks.put(stripeIndex(op.fileName), fileLocks[stripeIndex(op.fileName)]);
+      if (!fileNames.contains(op.fileName)) {
+        fileNames.add(op.fileName);
       }
     }
-    if (abort) {
-      messageAll("abort");
-      abort();
-      return ("Aborted.");
+    for (ReentrantLock lock : locks.values()) {
+      lock.lock();
+    }
+    coordinating.addAll(fileNames);
+
+    Transaction tx = new Transaction(serverArr[0] + "-" + bootTime + "-" + txCounter.incrementAndGet(), ops);
+    try {
+      System.out.println(date.format(new Date()) + ": begin_commit " + tx.id + " (" + ops.size() + " writes)");
+      transactions.put(tx.id, tx);
+      long start = System.nanoTime();
+      if (promisedAway(fileNames)) {
+        // we already voted for another coordinator's write of a file, voting
+        // for our own too could let both collect a majority
+        tx.abort();
+      } else {
+        messageAll("prepare", tx);
+      }
+
+      // setup timeout to make sure we don't hang if a server crashes or doesn't reply
+      // in time. replies wake us up, so we don't spin while waiting.
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      int quorum = serverArr.length / 2;
+
+      // once a majority voted, send out commit message to all servers
+      if (tx.awaitVotes(quorum, deadline) && tx.decide()) {
+        voteLatency.recordSince(start);
+        start = System.nanoTime();
+
+        // every earlier write of the files was committed on a majority, and
+        // a majority voted with their versions, so one past the newest of
+        // theirs and ours is a version no replica has used yet. we may have
+        // missed commits ourselves, so our own index alone isn't enough.
+        Map<String, Long> versions = new TreeMap<String, Long>();
+        List<Operation> versioned = new ArrayList<Operation>(ops.size());
+        for (Operation op : ops) {
+          long v = versions.getOrDefault(op.fileName,
+              Math.max(index.version(op.fileName), tx.newest(op.fileName))) + 1;
+          versions.put(op.fileName, v);
+          versioned.add(op.withVersion(v));
+        }
+        ops = versioned;
+        tx.ops = versioned;
+        messageAll("commit", tx);
+
+        // if a majority acked, lets commit to our filestore
+        if (tx.awaitAcks(quorum, deadline)) {
+          ackLatency.recordSince(start);
+          List<String> res = commitLocally(ops);
+          System.out.println(date.format(new Date()) + ": end_of_transaction " + tx.id);
+          return (res);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      transactions.remove(tx.id);
+      coordinating.removeAll(fileNames);
+      for (ReentrantLock lock : locks.values()) {
+        lock.unlock();
+      }
     }
-    return ("Something went wrong. Try again.");
 
+    // a replica voted to abort or one of the servers took too long
+    aborts.incrementAndGet();
+    if (!tx.isAborted()) {
+      timeouts.incrementAndGet();
+    }
+    messageAll("abort", tx);
+    abort(tx.id);
+    return Collections.nCopies(ops.size(), "Aborted.");
   }
 
   /**
-   * prepare rpc will check if we can enter a ready state to wait for a commit
+   * prepare rpc will check if we can enter a ready state for the files of a
+   * transaction to wait for a commit. We only vote to commit if we could
+   * promise every file. If we are coordinating one of the files ourselves or
+   * promised it to another transaction that is still running, we vote to
+   * abort so the coordinator backs off at once instead of waiting out its
+   * timeout.
    *
-   * @param port integer port for the server requesting
+   * @param port      integer port for the server requesting
+   * @param txId      id of the transaction being prepared
+   * @param fileNames names of the files the transaction changes
+   * @param time      is the time the request was made for id
    * @throws RemoteException if anything happens when trying to execute rpc
    */
-  public void prepare(int port, Date time) {
-    FileStore access = null;
+  public void prepare(int port, String txId, List<String> fileNames, Date time) {
+    // we are busy with a file if we are coordinating it ourselves
+    for (String fileName : fileNames) {
+      if (coordinating.contains(fileName)) {
+        System.out.println(date.format(new Date()) + ": coordinating " + fileName + ", voting to abort " + txId);
+        reply(port, txId, "vote-abort");
+        return;
+      }
+    }
+
+    // a promise is only taken over once its coordinator must have given up,
+    // so two transactions on a file can't both collect a majority
+    List<String> promised = new ArrayList<String>();
+    Promise mine = new Promise(txId, port);
+    long now = System.currentTimeMillis();
+    for (String fileName : fileNames) {
+      Promise promise = promises.compute(fileName, (f, current) -> {
+        if (current == null || current.made + TIMEOUT < now) {
+          return mine;
+        }
+        return current;
+      });
+      if (promise != mine) {
+        // give back what we promised so far, another transaction has this file
+        for (String f : promised) {
+          promises.remove(f, mine);
+        }
+        System.out.println(date.format(new Date()) + ": " + promise.txId + " has " + fileName + ", voting to abort "
+            + txId);
+        reply(port, txId, "vote-abort");
+        return;
+      }
+      promised.add(fileName);
+    }
+
+    System.out.println(date.format(new Date()) + ": ready to commit " + txId);
+    List<Long> versions = new ArrayList<Long>(fileNames.size());
+    for (String fileName : fileNames) {
+      versions.add(index.version(fileName));
+    }
+
+    // connect and send vote message to the server on the parameter port
+    FileStore coordinator = null;
     try {
-      access = (FileStore) Naming.lookup("rmi://localhost:" + port + "/filestore" + port);
+      coordinator = stubs.get(port);
+      coordinator.vote(txId, versions);
     } catch (Exception e) {
+      stubs.failed(port, coordinator, e);
       System.err.println(date.format(new Date()) + ": Error connecting to rpc: " + e);
     }
+  }
 
-    if (!wait && !ready || ready && prepDate.compareTo(time) < 0) {
-      System.out.println(date.format(new Date()) + ": ready to commit.");
-      this.ready = true;
-      prepDate = time;
-      promisedHost = port;
-
-      // connect and send vote message to the server on the parameter port
-      try {
-        access.reply("vote-commit");
-      } catch (Exception e) {
-        System.err.println(date.format(new Date()) + ": Error connecting to rpc: " + e);
+  /**
+   * @param fileNames files we are about to coordinate a write of
+   * @return true if we promised one of them to another transaction that is
+   *         still running
+   */
+  private boolean promisedAway(List<String> fileNames) {
+    long now = System.currentTimeMillis();
+    for (String fileName : fileNames) {
+      Promise promise = promises.get(fileName);
+      if (promise != null && promise.made + TIMEOUT >= now) {
+        return true;
       }
     }
+    return false;
   }
 
   /**
-   * commit rpc will attempt to make a commit against the local filestore and
-   * respond with an ack message to the issuing server.
+   * sends a reply to a coordinator
    *
-   * @param port  requesting server port for response
-   * @param cmd   a command message type for commit (put or delete)
-   * @param key   key string for the filestore
-   * @param value value string for the filestore
-   * @throws RemoteException if anything happens when trying to execute rpc
+   * @param port port of the coordinator
+   * @param txId id of the transaction the reply is for
+   * @param type string for the kind of reply
    */
-  public void commit(int port, String cmd, String fileName, String contents) {
-    FileStore access = null;
+  private void reply(int port, String txId, String type) {
+    FileStore coordinator = null;
     try {
-      access = (FileStore) Naming.lookup("rmi://localhost:" + port + "/filestore" + port);
+      coordinator = stubs.get(port);
+      coordinator.reply(txId, type);
     } catch (Exception e) {
+      stubs.failed(port, coordinator, e);
       System.err.println(date.format(new Date()) + ": Error connecting to rpc: " + e);
     }
+  }
 
-    if (port == promisedHost && commit || ready) {
-      if (cmd.toLowerCase().equals("upload")) {
-        // try to write to a file locally
-        String writeStatus = writeFile(fileName, contents);
-        System.out.println(date.format(new Date()) + " write status: " + writeStatus);
-
-        // reply with ack to let the controling server know we finished our commit
-        // successfully
-        if (ready) {
-          try {
-            access.reply("ack");
-          } catch (Exception e) {
-            System.err.println(date.format(new Date()) + ": Error connecting to rpc: " + e);
-          }
-        }
-      } else if (cmd.toLowerCase().equals("remove")) {
-        try {
-          String deleteRes = deleteFile(fileName);
-          System.out.println(date.format(new Date()) + " " + deleteRes);
-
-          // reply with ack to let the controling server know we finished our commit
-          // successfully
-          if (ready) {
-            try {
-              access.reply("ack");
-            } catch (Exception e) {
-              System.err.println(date.format(new Date()) + ": Error connecting to rpc: " + e);
-            }
-          }
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
+  /**
+   * commit rpc will attempt to make a commit against the local filestore and
+   * respond with an ack message to the issuing server.
+   *
+   * @param port requesting server port for response
+   * @param txId id of the transaction being committed
+   * @param ops  the uploads and removes to apply, in order
+   * @throws RemoteException if anything happens when trying to execute rpc
+   */
+  public void commit(int port, String txId, List<Operation> ops) {
+    // a version more than one past ours means we missed a write of the file
+    Map<String, Long> expected = new HashMap<String, Long>();
+    for (Operation op : ops) {
+      if (op.version > expected.getOrDefault(op.fileName, index.version(op.fileName)) + 1) {
+        catchUp.request("missed a write of " + op.fileName);
       }
+      expected.put(op.fileName, op.version);
+    }
 
-      System.out.println(date.format(new Date()) + ": commit recorded.");
-      reset();
+    // claim the promises so a duplicate or stale commit can't apply twice
+    boolean promised = true;
+    for (Operation op : ops) {
+      Promise promise = promises.get(op.fileName);
+      if (promise == null || !promise.txId.equals(txId)) {
+        promised = false;
+      }
+    }
+    List<String> res;
+    if (promised) {
+      // the promises are only given back once the writes are applied, so the
+      // next coordinator of a file gets our vote with the new version
+      res = commitLocally(ops);
+      promises.values().removeIf(p -> p.txId.equals(txId));
     } else {
-      System.out.println(date.format(new Date()) + " Something went wrong.");
-      abort();
+      // commits are only sent once a majority voted, so the writes are decided
+      // even if our prepare came late or the promise expired and was taken.
+      // versions keep a stale or duplicate commit from undoing newer writes.
+      System.out.println(date.format(new Date()) + ": " + txId + " committed without our promise");
+      res = commitIfNewer(ops);
+    }
+    System.out.println(date.format(new Date()) + " " + txId + ": " + res);
+    if (res.contains("write failed")) {
+      missed(ops, res);
+      return;
+    }
+
+    // reply with ack to let the controling server know we finished our commit
+    // successfully
+    reply(port, txId, "ack");
+    System.out.println(date.format(new Date()) + ": commit recorded " + txId);
+  }
+
+  /**
+   * copies the files of uploads we couldn't install from a peer, the
+   * coordinator commits once a majority has an upload so the push may not
+   * have reached us yet
+   *
+   * @param ops the writes committed
+   * @param res the result of each write
+   */
+  private void missed(List<Operation> ops, List<String> res) {
+    for (int i = 0; i < ops.size(); i++) {
+      if (ops.get(i).staged != null && res.get(i).equals("write failed")) {
+        catchUp.missed(ops.get(i).fileName, ops.get(i).staged);
+      }
     }
   }
 
@@ -240,165 +669,1606 @@ public class FileStoreImpl extends UnicastRemoteObject implements FileStore {
    * reply rpc is a reply from slave servers to count and check whatever vote or
    * ack they submit
    *
+   * @param txId id of the transaction the reply is for
    * @param type string for the kind of reply received
    * @throws RemoteException if anything happens when trying to execute rpc
    */
-  public void reply(String type) {
+  public void reply(String txId, String type) {
+    // late replies for finished transactions are dropped
+    Transaction t = transactions.get(txId);
+    if (t == null) {
+      return;
+    }
+
     if (type.equals("vote-commit")) {
-      this.votes += 1;
+      t.vote();
     } else if (type.equals("vote-abort")) {
-      this.abort = true;
+      t.abortVote();
     } else if (type.equals("ack")) {
-      this.acks += 1;
+      t.ack();
     }
   }
 
   /**
-   * abort method logs the event and initates the reset of state
+   * vote rpc is a replica's vote to commit a prepared transaction, with its
+   * version of each file so the coordinator can pick versions none of them has
    *
+   * @param txId     id of the transaction the vote is for
+   * @param versions the replica's version of each file the transaction
+   *                 writes, in order
    * @throws RemoteException if anything happens when trying to execute rpc
    */
-  public void abort() {
-    System.out.println(date.format(new Date()) + ": aborting.");
-    reset();
+  public void vote(String txId, List<Long> versions) {
+    // late votes for finished transactions are dropped
+    Transaction t = transactions.get(txId);
+    if (t != null) {
+      t.vote(versions);
+    }
   }
 
   /**
-   * delete method will remove a file from the local server
-   * 
-   * @param fileName name of file to remove
-   * @return status message
+   * abort method logs the event and drops any state for the transaction
+   *
+   * @param txId id of the transaction to abort
+   * @throws RemoteException if anything happens when trying to execute rpc
    */
-  private String deleteFile(String fileName) {
-    String homeDir = System.getProperty("user.dir");
-    File f = new File(homeDir + "/ServerFiles" + serverArr[0] + "/" + fileName);
-
-    if (f.delete()) {
-      return "deleted";
-    } else {
-      return "failed";
+  public void abort(String txId) {
+    System.out.println(date.format(new Date()) + ": aborting " + txId);
+    Transaction t = transactions.get(txId);
+    if (t != null) {
+      t.abort();
     }
+    promises.values().removeIf(p -> p.txId.equals(txId));
   }
 
   /**
-   * A function that writes to files in the 'ServerFiles<port>' directory
-   * 
-   * @param fileName name of the file
-   * @param response the contents to be written
-   * @return write command status
+   * Sends a write to the leader in multi-paxos mode, or proposes it ourselves if
+   * we are the leader or the leader can't be reached.
+   *
+   * @param op the client write
+   * @return response to the client
    */
-  private String writeFile(String fileName, String contents) {
-    String res = "write failed";
-    String homeDir = System.getProperty("user.dir");
-    String filepath = homeDir + "/ServerFiles" + serverArr[0] + "/";
-
-    try (Writer writer = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(filepath + fileName), "utf-8"))) {
-      writer.write(contents);
-      res = "Successful!";
-    } catch (IOException e) {
-      e.printStackTrace();
+  private String forward(Operation op) {
+    int leader = leaderPort;
+    if (leader != -1 && leader != serverArr[0]) {
+      FileStore stub = null;
+      try {
+        stub = stubs.get(leader);
+        return stub.propose(op);
+      } catch (Exception e) {
+        stubs.failed(leader, stub, e);
+        System.err.println(date.format(new Date()) + ": Error forwarding to leader " + leader + ": " + e);
+      }
     }
+    return propose(op);
+  }
 
-    return res;
+  /**
+   * asks the leader to put an upload or remove in the log. Writes are batched by
+   * the group committer before they are proposed.
+   *
+   * @param op the client write
+   * @return response to the client
+   */
+  public String propose(Operation op) {
+    return committer.submit(op);
   }
 
   /**
-   * read a files contents from the local storage
-   * 
-   * @param fileName name of file to read
-   * @return all the data from the file
+   * puts a batch of writes in the next slot of the log. If we aren't the leader
+   * yet we run for it first, after that writes only need the accept phase.
+   *
+   * @param ops the writes to decide, in order
+   * @return response to each client
    */
-  private String readFile(String fileName) {
-    String data = "error reading file";
-    try {
-      String homeDir = System.getProperty("user.dir");
-      File myObj = new File(homeDir + "/ServerFiles" + serverArr[0] + "/" + fileName);
+  private List<String> proposeBatch(List<Operation> ops) {
+    if (ballot == -1 && !becomeLeader()) {
+      return Collections.nCopies(ops.size(), "Aborted.");
+    }
 
-      Scanner myReader = new Scanner(myObj);
-      data = fileName + " ";
-      while (myReader.hasNextLine()) {
-        data += myReader.nextLine() + "\n";
+    // the slot orders every write, so it gives the versions
+    long b = ballot;
+    long slot = nextSlot.getAndIncrement();
+    List<Operation> versioned = new ArrayList<Operation>(ops.size());
+    for (int i = 0; i < ops.size(); i++) {
+      versioned.add(ops.get(i).withVersion(slot * GroupCommitter.MAX_OPS + i));
+    }
+    LogEntry entry = new LogEntry(slot, b, versioned);
+    System.out.println(date.format(new Date()) + ": begin_commit slot " + entry.slot + " (" + ops.size() + " writes)");
+    results.put(entry.slot, Collections.<String>emptyList());
+    try {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      if (replicate(entry, deadline) && log.awaitApplied(entry.slot, deadline)) {
+        System.out.println(date.format(new Date()) + ": end_of_transaction slot " + entry.slot);
+        return results.get(entry.slot);
       }
-      // removes the trailing new line character \n
-      data = data.substring(0, data.length() - 1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      results.remove(entry.slot);
+    }
 
-      myReader.close();
-    } catch (FileNotFoundException e) {
-      System.out.println(date.format(new Date()) + " An error occurred.");
-      e.printStackTrace();
+    // someone else has a higher ballot or the replicas are too slow
+    aborts.incrementAndGet();
+    stepDown(b);
+    return Collections.nCopies(ops.size(), "Aborted.");
+  }
+
+  /**
+   * runs phase one for a new ballot and then finishes any entries the old
+   * leader left accepted but not chosen.
+   *
+   * @return true if we are now the leader
+   */
+  private boolean becomeLeader() {
+    synchronized (electionLock) {
+      return runElection();
     }
-    return data;
   }
 
   /**
-   * Sets up our rpc connections from the array of ports using the Naming lookup
-   * service. This will only run once on initial call.
+   * phase one and recovery, only called holding the election lock
+   *
+   * @return true if we are now the leader
    */
-  private void setupConnections() {
-    // setup connections for all connected servers
-    serverRpcArr = new FileStore[serverArr.length];
+  private boolean runElection() {
+    if (ballot != -1) {
+      return true;
+    }
+
+    try {
+      // the replicas won't promise anyone while the last leader's lease runs
+      lease.awaitGrants();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    long b = (log.promised() / BALLOT_PORTS + 1) * BALLOT_PORTS + serverArr[0];
+    synchronized (lease) {
+      if (lease.blocks(serverArr[0]) || !log.promise(b)) {
+        return false;
+      }
+    }
+    if (!durable(() -> wal.promise(b))) {
+      return false;
+    }
+    System.out.println(date.format(new Date()) + ": running for leader with ballot " + b);
+
+    // collect the highest ballot entry for every slot a majority accepted,
+    // and how far the voters' logs go
+    long from = log.applied();
+    Map<Long, LogEntry> recovered = new ConcurrentHashMap<Long, LogEntry>();
+    for (LogEntry e : log.acceptedAfter(from)) {
+      recovered.put(e.slot, e);
+    }
+    AtomicLong applied = new AtomicLong(from);
+    AtomicLong lastSlot = new AtomicLong(log.lastSlot());
+    Transaction election = new Transaction("ballot-" + b, Collections.<Operation>emptyList());
     for (int i = 1; i < serverArr.length; i++) {
-      try {
-        serverRpcArr[i] = (FileStore) Naming.lookup("rmi://localhost:" + serverArr[i] + "/filestore" + serverArr[i]);
-      } catch (Exception e) {
-        System.err.println(date.format(new Date()) + ": Error connecting to remote rpc: " + e);
+      submit("elect", serverArr[i], peer -> {
+        Vote vote = peer.elect(serverArr[0], b, from);
+        if (vote == null) {
+          election.abort();
+          return;
+        }
+        for (LogEntry e : vote.accepted) {
+          recovered.merge(e.slot, e, (x, y) -> x.ballot >= y.ballot ? x : y);
+        }
+        applied.accumulateAndGet(vote.applied, Math::max);
+        lastSlot.accumulateAndGet(vote.last, Math::max);
+        election.vote();
+      });
+    }
+
+    try {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      if (!election.awaitVotes(serverArr.length / 2, deadline)) {
+        return false;
+      }
+      if (applied.get() > from) {
+        // a voter applied slots we haven't and no longer keeps their entries,
+        // proposing now would fill chosen slots with noops or reuse them
+        System.out.println(date.format(new Date()) + ": behind a voter at slot " + applied.get()
+            + ", catching up before leading");
+        catchUp.request("behind a voter at slot " + applied.get());
+        return false;
+      }
+
+      // finish everything after our applied slot, filling holes with noops.
+      // a voter's last slot may be past everything it returned, since it
+      // keeps the noops it applied, so new writes go after it too
+      long last = from;
+      for (long slot : recovered.keySet()) {
+        last = Math.max(last, slot);
+      }
+      for (long slot = from + 1; slot <= last; slot++) {
+        LogEntry e = recovered.get(slot);
+        if (!replicate(e == null ? LogEntry.noop(slot, b) : e.withBallot(b), deadline)) {
+          return false;
+        }
       }
+      nextSlot.set(Math.max(last, lastSlot.get()) + 1);
+      ballot = b;
+      leaderPort = serverArr[0];
+      System.out.println(date.format(new Date()) + ": leader with ballot " + b);
+      lease.renewSoon();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
     }
   }
 
   /**
-   * Sends a message to all servers for the two stage commit process; prepare,
-   * commit, and abort
+   * phase two for one entry. Accepts it locally and on every replica, and once a
+   * majority accepted marks it chosen, applies it and tells the replicas.
    *
-   * @param type is the type of message to send
-   * @throws RemoteException
+   * @param entry    the entry to replicate
+   * @param deadline wall clock time in millis to give up at
+   * @return true if the entry was chosen
+   * @throws InterruptedException if the waiting thread is interrupted
    */
-  private void messageAll(String type) {
-    setupConnections();
+  private boolean replicate(LogEntry entry, long deadline) throws InterruptedException {
+    if (!log.accept(entry) || !durable(() -> wal.accept(entry))) {
+      return false;
+    }
 
-    // send message to all connected servers
+    Transaction tx = new Transaction("slot-" + entry.slot, entry.ops);
+    long start = System.nanoTime();
     for (int i = 1; i < serverArr.length; i++) {
-      try {
-        if (type.equals("prepare")) {
-          serverRpcArr[i].prepare(serverArr[0], new Date());
-        } else if (type.equals("commit")) {
-          serverRpcArr[i].commit(serverArr[0], command, fileName, contents);
-        } else if (type.equals("abort")) {
-          serverRpcArr[i].abort();
+      submit("accept", serverArr[i], peer -> {
+        if (peer.accept(serverArr[0], entry)) {
+          tx.ack();
+        } else {
+          tx.abort();
         }
-      } catch (Exception e) {
-        // abort = true;
-        System.out.println(date.format(new Date()) + ": Error sending " + type + " to server: " + "rmi://localhost:"
-            + serverArr[i] + "/filestore" + serverArr[i]);
+      });
+    }
+    if (!tx.awaitAcks(serverArr.length / 2, deadline)) {
+      if (!tx.isAborted()) {
+        timeouts.incrementAndGet();
       }
+      return false;
     }
+    acceptLatency.recordSince(start);
 
-    // set state
-    if (type.equals("prepare")) {
-      this.wait = true;
-    } else if (type.equals("commit")) {
-      this.commit = true;
-    } else if (type.equals("abort")) {
-      this.abort = true;
+    // the replicas learn in the background, the client doesn't wait for it
+    log.choose(entry.slot, entry.ballot);
+    applyChosen();
+    for (int i = 1; i < serverArr.length; i++) {
+      submit("learn", serverArr[i], peer -> peer.learn(serverArr[0], entry.slot, entry.ballot));
+    }
+    return true;
+  }
+
+  /**
+   * multi-paxos phase one. Promise a ballot to a server running for leader and
+   * return what we accepted after a slot so it can finish those entries, and
+   * how far our log goes.
+   *
+   * @param port     port of the server running for leader
+   * @param ballot   the ballot being elected
+   * @param fromSlot only entries after this slot are returned
+   * @return our vote, or null if we promised a higher ballot or a lease we
+   *         granted another server is still running
+   */
+  public Vote elect(int port, long ballot, long fromSlot) {
+    synchronized (lease) {
+      if (lease.blocks(port) || !log.promise(ballot)) {
+        return null;
+      }
     }
+    if (!durable(() -> wal.promise(ballot))) {
+      return null;
+    }
+    System.out.println(date.format(new Date()) + ": promised ballot " + ballot + " to " + port);
+    stepDown(this.ballot);
+    leaderPort = port;
+    return new Vote(log.applied(), log.lastSlot(), log.acceptedAfter(fromSlot));
+  }
+
+  /**
+   * multi-paxos phase two. Accept an entry for a slot from the leader.
+   *
+   * @param port  port of the leader
+   * @param entry the proposed entry
+   * @return true if accepted, false if we promised a higher ballot
+   */
+  public boolean accept(int port, LogEntry entry) {
+    if (!log.accept(entry) || !durable(() -> wal.accept(entry))) {
+      return false;
+    }
+    leaderPort = port;
+    return true;
   }
 
   /**
-   * this resets all instance state variables used
+   * the entry for a slot was chosen. Apply it once everything before it is, and
+   * fetch it from the leader first if we missed or only have an older accept.
+   *
+   * @param port   port of the leader
+   * @param slot   the chosen slot
+   * @param ballot ballot the slot was chosen under
    */
-  private void reset() {
-    this.abort = false;
-    this.commit = false;
-    this.ready = false;
-    this.wait = false;
-    this.msg = "";
-    this.command = "";
-    this.fileName = "";
-    this.contents = "";
-    this.votes = 0;
-    this.acks = 0;
-    this.prepDate = null;
-    this.promisedHost = -1;
+  public void learn(int port, long slot, long ballot) {
+    if (!log.choose(slot, ballot)) {
+      FileStore leader = null;
+      try {
+        leader = stubs.get(port);
+        LogEntry entry = leader.fetch(slot);
+        if (entry != null) {
+          log.learn(entry);
+        }
+      } catch (Exception e) {
+        stubs.failed(port, leader, e);
+        System.err.println(date.format(new Date()) + ": Error fetching slot " + slot + ": " + e);
+      }
+    }
+    applyChosen();
+    if (log.blocked()) {
+      catchUp.request("slot " + (log.applied() + 1) + " is missing");
+    }
+  }
+
+  /**
+   * grants the leader a lease, so we promise no other server a ballot until
+   * it runs out
+   *
+   * @param port   port of the leader
+   * @param ballot the ballot it leads with
+   * @return true if granted, false if we promised a higher ballot or another
+   *         server's lease is still running
+   */
+  public boolean grantLease(int port, long ballot) {
+    synchronized (lease) {
+      if (!multiPaxos || ballot != log.promised() || !lease.grant(port)) {
+        return false;
+      }
+    }
+    leaderPort = port;
+    return true;
+  }
+
+  /**
+   * @return our port if we hold a lease, otherwise the last leader we
+   *         promised or granted one, -1 if we know of none
+   */
+  public int leader() {
+    return lease.holds(ballot) ? serverArr[0] : leaderPort;
+  }
+
+  /**
+   * @param slot a slot in the log
+   * @return the entry this server has for the slot, or null
+   */
+  public LogEntry fetch(long slot) {
+    return log.get(slot);
+  }
+
+  /**
+   * @return the highest slot this server has applied in multi-paxos mode, 0 in
+   *         classic mode
+   */
+  public long appliedSlot() {
+    return log.applied();
+  }
+
+  /**
+   * the chosen log entries after a slot, for a replica catching up
+   *
+   * @param slot only entries after this slot are returned
+   * @param max  most entries to return
+   * @return the entries in slot order, or null if we no longer keep them
+   */
+  public List<LogEntry> entriesAfter(long slot, int max) {
+    return log.chosenAfter(slot, Math.max(1, Math.min(max, PaxosLog.RETAIN)));
+  }
+
+  /**
+   * one page of the metadata of every file, removed files included, for a
+   * replica catching up
+   *
+   * @param after only names after this cursor are listed, null for the start
+   * @param limit most files in the page
+   * @return the files in the page
+   */
+  public List<FileMeta> manifest(String after, int limit) {
+    return index.page(after, Math.max(1, Math.min(limit, LIST_PAGE_MAX)));
+  }
+
+  /**
+   * hashes of nodes of our Merkle tree, for anti-entropy
+   *
+   * @param level level of the nodes, 0 is the root
+   * @param nodes indexes of the nodes within the level
+   * @return the hash of each node, in the same order
+   */
+  public List<Long> merkleHashes(int level, List<Integer> nodes) {
+    List<Long> res = new ArrayList<Long>(nodes.size());
+    for (int node : nodes) {
+      res.add(index.tree.hash(level, node));
+    }
+    return res;
+  }
+
+  /**
+   * metadata of every file in some leaves of our Merkle tree, removed files
+   * included, for anti-entropy
+   *
+   * @param leaves indexes of the leaves
+   * @return the files in the leaves
+   */
+  public List<FileMeta> merkleLeaves(List<Integer> leaves) {
+    List<FileMeta> res = new ArrayList<FileMeta>();
+    for (int leaf : leaves) {
+      for (String name : index.tree.names(leaf)) {
+        FileMeta meta = index.entry(name);
+        if (meta != null) {
+          res.add(meta);
+        }
+      }
+    }
+    return res;
+  }
+
+  /**
+   * records chosen entries pulled by catch-up and applies what it can
+   *
+   * @param entries chosen entries in slot order
+   */
+  void learnEntries(List<LogEntry> entries) {
+    for (LogEntry entry : entries) {
+      log.learn(entry);
+    }
+    applyChosen();
+  }
+
+  /**
+   * moves our applied slot up to the slot a snapshot copied by catch-up was
+   * taken at, logging it so a restart carries on from there
+   *
+   * @param slot the slot the snapshot was taken at
+   */
+  void skipTo(long slot) {
+    synchronized (applyLock) {
+      if (slot <= log.applied() || !durableCommit(slot, Collections.<Operation>emptyList())) {
+        return;
+      }
+      wal.applied();
+      log.skipTo(slot);
+      System.out.println(date.format(new Date()) + ": skipped to slot " + slot);
+    }
+    applyChosen();
+  }
+
+  /**
+   * applies chosen entries to the file store in slot order. Only one thread
+   * applies at a time so writes can't be reordered.
+   */
+  private void applyChosen() {
+    synchronized (applyLock) {
+      List<LogEntry> ready = log.applicable();
+      if (ready.isEmpty()) {
+        return;
+      }
+
+      // one force covers every entry that became ready together
+      long position = 0;
+      long start = System.nanoTime();
+      int logged = 0;
+      try {
+        for (LogEntry entry : ready) {
+          position = wal.commit(entry.slot, entry.ops);
+          logged += 1;
+        }
+        wal.sync(position);
+        walLatency.recordSince(start);
+      } catch (IOException e) {
+        System.err.println(date.format(new Date()) + ": Error writing the log: " + e);
+        // none of them are applied, so they mustn't hold up checkpoints
+        for (int i = 0; i < logged; i++) {
+          wal.applied();
+        }
+        return;
+      }
+
+      for (LogEntry entry : ready) {
+        List<String> res = new ArrayList<String>(entry.ops.size());
+        for (Operation op : entry.ops) {
+          res.add(apply(op));
+        }
+        missed(entry.ops, res);
+        wal.applied();
+        // only keep results for writes we are answering a client for
+        results.replace(entry.slot, res);
+        System.out.println(date.format(new Date()) + ": applied slot " + entry.slot + " " + res);
+        log.applied(entry.slot);
+      }
+    }
+    checkpoint();
+  }
+
+  /**
+   * logs a commit, waits for it to be durable, then applies it to the local
+   * filestore. Concurrent commits share the force of the log.
+   *
+   * @param ops the committed writes
+   * @return status message for each write
+   */
+  private List<String> commitLocally(List<Operation> ops) {
+    if (!durableCommit(0, ops)) {
+      return Collections.nCopies(ops.size(), "write failed");
+    }
+
+    List<String> res = new ArrayList<String>(ops.size());
+    for (Operation op : ops) {
+      res.add(apply(op));
+    }
+    wal.applied();
+    checkpoint();
+    return res;
+  }
+
+  /**
+   * logs and applies writes that may arrive after newer ones: files copied by
+   * catch-up and commits that reached us without our promise. They are logged
+   * under slot -1 and only applied over older versions, now and on replay.
+   *
+   * @param ops the writes, with their decided versions
+   * @return status message for each write
+   */
+  List<String> commitIfNewer(List<Operation> ops) {
+    if (!durableCommit(-1, ops)) {
+      return Collections.nCopies(ops.size(), "write failed");
+    }
+
+    List<String> res = new ArrayList<String>(ops.size());
+    for (Operation op : ops) {
+      res.add(apply(op));
+    }
+    wal.applied();
+    checkpoint();
+    return res;
+  }
+
+  /**
+   * logs a commit and waits for it to be durable. A commit that was logged
+   * but couldn't be forced is never applied, so it is counted as applied
+   * right away instead of holding up every checkpoint after it.
+   *
+   * @param slot log slot of the commit, see WriteAheadLog.commit
+   * @param ops  the committed writes
+   * @return true once the commit is on disk and has to be applied
+   */
+  private boolean durableCommit(long slot, List<Operation> ops) {
+    long position;
+    try {
+      position = wal.commit(slot, ops);
+    } catch (IOException e) {
+      System.err.println(date.format(new Date()) + ": Error writing the log: " + e);
+      return false;
+    }
+    if (!durable(() -> position)) {
+      wal.applied();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * a log append whose position we then wait to be durable
+   */
+  private interface LogAppend {
+    long append() throws IOException;
+  }
+
+  /**
+   * @param append appends a record to the write ahead log
+   * @return true once the record is on disk, false if the log failed
+   */
+  private boolean durable(LogAppend append) {
+    long start = System.nanoTime();
+    try {
+      wal.sync(append.append());
+      walLatency.recordSince(start);
+      return true;
+    } catch (IOException e) {
+      System.err.println(date.format(new Date()) + ": Error writing the log: " + e);
+      return false;
+    }
+  }
+
+  /**
+   * shrink the write ahead log once a checkpoint is due. The kept copies of
+   * staged uploads go with the commits that needed them.
+   */
+  private void checkpoint() {
+    if (!wal.due()) {
+      return;
+    }
+    // the uploads kept when the checkpoint starts are only dropped once the
+    // rewritten log without their commits is in place
+    List<File> kept = new ArrayList<File>();
+    try {
+      if (wal.checkpoint(log.promised(), log.applied(), log.acceptedAfter(log.applied()), () -> {
+        index.save();
+        kept.addAll(keptFiles());
+      })) {
+        for (File f : kept) {
+          f.delete();
+        }
+      }
+    } catch (IOException e) {
+      System.err.println(date.format(new Date()) + ": Error checkpointing the log: " + e);
+    }
+  }
+
+  /**
+   * stop acting as leader if we still are under the given ballot
+   *
+   * @param b the ballot we lead with
+   */
+  private synchronized void stepDown(long b) {
+    if (b != -1 && ballot == b) {
+      System.out.println(date.format(new Date()) + ": stepping down from ballot " + b);
+      ballot = -1;
+      leaderPort = -1;
+    }
+  }
+
+  /**
+   * the pool calls to one peer run on. Its threads all start as soon as there
+   * are calls for them rather than once the queue is full, and they go away
+   * when the peer is idle.
+   *
+   * @param port port of the peer
+   * @return the peer's pool
+   */
+  private ExecutorService peerPool(int port) {
+    return peerPools.computeIfAbsent(port, p -> {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(PEER_THREADS, PEER_THREADS, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(PEER_QUEUE), r -> {
+            Thread t = new Thread(r, "peer-" + serverArr[0] + "-" + p);
+            t.setDaemon(true);
+            return t;
+          });
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    });
+  }
+
+  /**
+   * a remote call to one peer, run on the peer's pool
+   */
+  interface PeerCall {
+    void run(FileStore peer) throws Exception;
+  }
+
+  /**
+   * Runs a call to one peer on its pool, dropping its stub if the connection
+   * to it fails.
+   *
+   * @param type name of the message for logging
+   * @param port port of the peer
+   * @param call the remote call
+   * @return false if the peer's pool is full and the call was dropped
+   */
+  boolean submit(String type, int port, PeerCall call) {
+    long start = System.nanoTime();
+    Histogram latency = rpcLatency.get(type);
+    try {
+      peerPool(port).execute(() -> {
+        FileStore peer = null;
+        try {
+          peer = stubs.get(port);
+          call.run(peer);
+          if (latency != null) {
+            latency.recordSince(start);
+          }
+        } catch (Exception e) {
+          stubs.failed(port, peer, e);
+          System.out.println(date.format(new Date()) + ": Error sending " + type + " to server: " + "rmi://localhost:"
+              + port + "/filestore" + port);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      System.out.println(date.format(new Date()) + ": Error sending " + type + " to server: " + "rmi://localhost:"
+          + port + "/filestore" + port + " (peer pool is full)");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * starts a chunked upload of a file. The contents are sent with uploadChunk
+   * and stored once finishUpload is called.
+   *
+   * @param fileName name of the file
+   * @return id of the upload
+   */
+  public String beginUpload(String fileName) throws RemoteException {
+    String uploadId = serverArr[0] + "-" + bootTime + "-" + txCounter.incrementAndGet();
+    try {
+      // create it now so an empty file is still a staged upload
+      Files.newOutputStream(stagedFile(uploadId).toPath()).close();
+    } catch (IOException e) {
+      throw new RemoteException("could not stage upload", e);
+    }
+    uploads.put(uploadId, fileName);
+    return uploadId;
+  }
+
+  /**
+   * starts receiving an upload another server of the group staged and is
+   * passing on, under the id that server gave it. The commit installs it
+   * under the same id on every replica.
+   *
+   * @param fileName name of the file
+   * @param uploadId id the coordinator gave the upload, plus '.delta' for its
+   *                 delta
+   * @throws RemoteException if the id isn't one a server hands out
+   */
+  public void beginPush(String fileName, String uploadId) throws RemoteException {
+    if (!PUSH_ID.matcher(uploadId).matches()) {
+      throw new RemoteException("bad upload id " + uploadId);
+    }
+    pushes.put(uploadId, fileName);
+  }
+
+  /**
+   * writes part of an upload to the staging area on disk, only one chunk is
+   * ever held in memory
+   *
+   * @param uploadId id of the upload
+   * @param offset   position of the chunk in the file
+   * @param packed   bytes of the chunk, packed by Codecs.pack
+   */
+  public void uploadChunk(String uploadId, long offset, byte[] packed) throws RemoteException {
+    // only ids we registered, so a made up one can't name another file
+    if (!uploads.containsKey(uploadId) && !pushes.containsKey(uploadId)) {
+      throw new RemoteException("no such upload " + uploadId);
+    }
+    try (FileChannel out = FileChannel.open(stagedFile(uploadId).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer buf = ByteBuffer.wrap(Codecs.unpack(packed));
+      while (buf.hasRemaining()) {
+        out.write(buf, offset + buf.position());
+      }
+    } catch (IOException e) {
+      throw new RemoteException("could not write chunk", e);
+    }
+  }
+
+  /**
+   * copies a staged upload to the other servers chunk by chunk and then commits
+   * it like any other upload
+   *
+   * @param uploadId id of the upload
+   * @return response to the client, Admission.BUSY if too many requests are
+   *         running already
+   */
+  public String finishUpload(String uploadId) throws RemoteException {
+    return admission.call(() -> finish(uploadId, "upload"));
+  }
+
+  /**
+   * commits a staged upload of a file moving in from another group, unless
+   * the file was already written or removed in this group since
+   *
+   * @param uploadId id of the upload
+   * @return response to the mover, 'exists' if the file was kept as it is
+   */
+  public String adoptUpload(String uploadId) throws RemoteException {
+    return admission.call(() -> finish(uploadId, "adopt"));
+  }
+
+  /**
+   * rebuilds a file from a staged delta and our copy of the version it was
+   * made against, then copies the delta to the other servers, which rebuild
+   * the file the same way, and commits it like any other upload
+   *
+   * @param uploadId id of the upload the delta was staged under
+   * @return response to the client, Delta.STALE if the file couldn't be
+   *         rebuilt, Admission.BUSY if too many requests are running already
+   */
+  public String finishDelta(String uploadId) throws RemoteException {
+    return admission.call(() -> applyDelta(uploadId));
+  }
+
+  /**
+   * @param uploadId id of the upload
+   * @return response to the client
+   */
+  private String applyDelta(String uploadId) {
+    String fileName = uploads.remove(uploadId);
+    File staged = stagedFile(uploadId);
+    File delta = stagedFile(uploadId + ".delta");
+    if (fileName == null || !staged.exists()) {
+      return ("Invalid operation. Try again.");
+    }
+    if (!shards.owns(serverArr[0], fileName)) {
+      staged.delete();
+      return ShardMap.WRONG_GROUP;
+    }
+    if (!staged.renameTo(delta) || !rebuild(fileName, uploadId)) {
+      staged.delete();
+      delta.delete();
+      return Delta.STALE;
+    }
+    return pushAndWrite("upload", fileName, uploadId, delta);
+  }
+
+  /**
+   * rebuilds a file from a delta the coordinator staged here and our copy of
+   * the version it was made against
+   *
+   * @param fileName name of the file
+   * @param uploadId id of the upload, the delta is staged under it plus
+   *                 '.delta'
+   * @return true if the file was rebuilt and staged under the upload's id,
+   *         false if it has to be sent whole
+   */
+  public boolean rebuildUpload(String fileName, String uploadId) {
+    if (!fileName.equals(pushes.remove(uploadId + ".delta"))) {
+      return false;
+    }
+    try {
+      return rebuild(fileName, uploadId);
+    } finally {
+      stagedFile(uploadId + ".delta").delete();
+    }
+  }
+
+  /**
+   * rebuilds a file from its staged delta. Writes of the file wait until it
+   * is done, so our copy can't change underneath.
+   *
+   * @param fileName name of the file
+   * @param uploadId id of the upload
+   * @return true if the rebuilt file matches the delta's digest
+   */
+  private boolean rebuild(String fileName, String uploadId) {
+    ReentrantLock lock = stripe(writeLocks, fileName);
+    lock.lock();
+    try {
+      FileMeta base = index.get(fileName);
+      if (base != null
+          && Delta.rebuild(stagedFile(uploadId + ".delta"), base.version, blocks(fileName), stagedFile(uploadId))) {
+        deltasRebuilt.incrementAndGet();
+        return true;
+      }
+    } catch (IOException e) {
+      System.err.println(date.format(new Date()) + ": Error rebuilding " + fileName + ": " + e);
+    } finally {
+      lock.unlock();
+    }
+    deltasFailed.incrementAndGet();
+    stagedFile(uploadId).delete();
+    return false;
+  }
+
+  /**
+   * @param uploadId id of the upload
+   * @param command  upload, or adopt to only write a file we don't have
+   * @return response to the client
+   */
+  private String finish(String uploadId, String command) {
+    String fileName = uploads.remove(uploadId);
+    File staged = stagedFile(uploadId);
+    if (fileName == null || !staged.exists()) {
+      return ("Invalid operation. Try again.");
+    }
+    if (command.equals("upload") && !shards.owns(serverArr[0], fileName)) {
+      staged.delete();
+      return ShardMap.WRONG_GROUP;
+    }
+    if (command.equals("adopt") && index.entry(fileName) != null) {
+      // no need to send it anywhere, the replicas check again when applying
+      staged.delete();
+      return "exists";
+    }
+    return pushAndWrite(command, fileName, uploadId, null);
+  }
+
+  /**
+   * copies a staged upload to the other servers, or its delta if there is one,
+   * and commits it
+   *
+   * @param command  upload, or adopt to only write a file we don't have
+   * @param fileName name of the file
+   * @param uploadId id of the upload
+   * @param delta    the delta the upload was rebuilt from, or null
+   * @return response to the client
+   */
+  private String pushAndWrite(String command, String fileName, String uploadId, File delta) {
+    File staged = stagedFile(uploadId);
+    long length = staged.length();
+
+    // the pushes read their own link to the upload, since it is installed
+    // once a majority has it and the slowest push may still be running
+    File push = stagedFile(uploadId + ".push");
+    try {
+      link(staged, push);
+    } catch (IOException e) {
+      e.printStackTrace();
+      staged.delete();
+      return "write failed";
+    }
+
+    // push to every peer at once and commit once a majority of the group has
+    // the file, counting ours. A peer that missed the push fails the commit
+    // and is brought up to date by catch-up or anti-entropy. A peer that
+    // can't rebuild the file from the delta gets all of it.
+    int peers = serverArr.length - 1;
+    int quorum = serverArr.length / 2;
+    Transaction round = new Transaction("push-" + uploadId, Collections.<Operation>emptyList());
+    AtomicInteger failed = new AtomicInteger();
+    AtomicInteger running = new AtomicInteger(peers + 1);
+    Runnable fail = () -> {
+      if (failed.incrementAndGet() > peers - quorum) {
+        round.abort();
+      }
+    };
+    Runnable done = () -> {
+      if (running.decrementAndGet() == 0) {
+        push.delete();
+        if (delta != null) {
+          delta.delete();
+        }
+      }
+    };
+    for (int i = 1; i < serverArr.length; i++) {
+      boolean sent = submit("upload", serverArr[i], peer -> {
+        boolean pushed = false;
+        try {
+          if (delta != null) {
+            pushStaged(peer, fileName, uploadId + ".delta", delta);
+            pushed = peer.rebuildUpload(fileName, uploadId);
+          }
+          if (!pushed) {
+            pushStaged(peer, fileName, uploadId, push);
+            pushed = true;
+          }
+          round.ack();
+        } finally {
+          if (!pushed) {
+            fail.run();
+          }
+          done.run();
+        }
+      });
+      if (!sent) {
+        fail.run();
+        done.run();
+      }
+    }
+    boolean majority;
+    try {
+      majority = round.awaitAcks(quorum, System.currentTimeMillis() + TIMEOUT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      majority = false;
+    } finally {
+      done.run();
+    }
+    if (!majority) {
+      staged.delete();
+      return ("Aborted.");
+    }
+
+    String res = write(new Operation(command, fileName, null, uploadId, length));
+    staged.delete();
+    return res;
+  }
+
+  /**
+   * streams a staged upload to one peer
+   */
+  private void pushStaged(FileStore peer, String fileName, String uploadId, File staged) throws IOException {
+    peer.beginPush(fileName, uploadId);
+    try (FileChannel in = FileChannel.open(staged.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+      long offset = 0;
+      do {
+        buf.clear();
+        int read = Math.max(0, in.read(buf, offset));
+        peer.uploadChunk(uploadId, offset, Codecs.pack(buf.array(), 0, read, Codecs.configured()));
+        offset += read;
+      } while (offset < in.size());
+    }
+  }
+
+  /**
+   * reads part of a stored file, from the content cache or straight from disk
+   *
+   * @param fileName name of the file
+   * @param offset   position to read from
+   * @param length   most bytes to read
+   * @param codec    name of the codec the client would like the chunk in
+   * @return the bytes read packed by Codecs.pack, shorter than length at the
+   *         end of the file, or null if there is no such file
+   */
+  public byte[] downloadChunk(String fileName, long offset, int length, String codec) throws RemoteException {
+    long start = System.nanoTime();
+    try {
+      return readChunk(fileName, offset, length, codec);
+    } finally {
+      readLatency.recordSince(start);
+    }
+  }
+
+  private byte[] readChunk(String fileName, long offset, int length, String codec) throws RemoteException {
+    Codec wanted = Codecs.forName(codec);
+    int most = Math.min(length, CHUNK);
+    byte[] cached = cachedContents(fileName);
+    if (cached != null) {
+      int from = (int) Math.min(offset, cached.length);
+      return Codecs.pack(cached, from, Math.min(cached.length - from, most), wanted);
+    }
+
+    FileMeta meta = index.get(fileName);
+    byte[] sealed = meta == null ? null : unsealed.get(fileName, meta.version);
+    if (sealed != null) {
+      int from = (int) Math.min(offset, sealed.length);
+      return Codecs.pack(sealed, from, Math.min(sealed.length - from, most), wanted);
+    }
+
+    File f = new File(System.getProperty("user.dir") + "/ServerFiles" + serverArr[0] + "/" + fileName);
+    try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      sealed = unseal(fileName, meta, in);
+      if (sealed != null) {
+        unsealed.put(fileName, meta.version, sealed);
+        int from = (int) Math.min(offset, sealed.length);
+        return Codecs.pack(sealed, from, Math.min(sealed.length - from, most), wanted);
+      }
+      long remaining = Math.max(0, in.size() - offset);
+      ByteBuffer buf = ByteBuffer.allocate((int) Math.min(remaining, most));
+      while (buf.hasRemaining() && in.read(buf, offset + buf.position()) > 0) {
+      }
+      return Codecs.pack(buf.array(), 0, buf.position(), wanted);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      throw new RemoteException("could not read chunk", e);
+    }
+  }
+
+  /**
+   * gets the size, digest and version of a stored file from the index
+   *
+   * @param fileName name of the file
+   * @return metadata of the file, or null if there is no such file
+   */
+  public FileMeta stat(String fileName) {
+    return index.get(fileName);
+  }
+
+  /**
+   * checksums of the blocks of a stored file, for a client sending a new
+   * version of it as a delta
+   *
+   * @param fileName  name of the file
+   * @param blockSize bytes in a block
+   * @return the file's version and then the weak and strong checksum of each
+   *         block, empty if there is no such file
+   */
+  public List<Long> blockSums(String fileName, int blockSize) throws RemoteException {
+    FileMeta meta = index.get(fileName);
+    if (meta == null || blockSize < Delta.MIN_BLOCK || blockSize > Delta.MAX_BLOCK) {
+      return new ArrayList<Long>();
+    }
+    long start = System.nanoTime();
+    try {
+      List<Long> sums = new ArrayList<Long>();
+      sums.add(meta.version);
+      sums.addAll(Delta.sums(blocks(fileName), meta.size, blockSize));
+      return sums;
+    } catch (NoSuchFileException e) {
+      return new ArrayList<Long>();
+    } catch (IOException e) {
+      throw new RemoteException("could not read " + fileName, e);
+    } finally {
+      readLatency.recordSince(start);
+    }
+  }
+
+  /**
+   * gets a file's metadata from the index if we are the leader and hold a
+   * lease, so no other replica has to be asked
+   *
+   * @param fileName name of the file
+   * @return metadata of the file, a removed file's if there is no such file,
+   *         or null if we can't answer alone
+   */
+  public FileMeta leaseStat(String fileName) {
+    if (!lease.read(ballot)) {
+      return null;
+    }
+    FileMeta meta = index.entry(fileName);
+    return meta != null ? meta : new FileMeta(fileName, 0, 0, 0, null, NoopCodec.INSTANCE.name(), 0);
+  }
+
+  /**
+   * @param fileName name of a stored file
+   * @return reads of the file's plain bytes, for making and applying deltas
+   */
+  private Delta.Source blocks(String fileName) {
+    return (offset, length) -> {
+      byte[] packed = readChunk(fileName, offset, length, NoopCodec.INSTANCE.name());
+      if (packed == null) {
+        throw new NoSuchFileException(fileName);
+      }
+      return Codecs.unpack(packed);
+    };
+  }
+
+  /**
+   * gets a whole file from the content cache, reading it into the cache on a
+   * miss
+   *
+   * @param fileName name of the file
+   * @return the file's contents, or null if it is too big to cache or can't
+   *         be read
+   */
+  private byte[] cachedContents(String fileName) {
+    // the version is read first, the file on disk is never older than it
+    FileMeta meta = index.get(fileName);
+    if (meta == null || !cache.fits(meta.size)) {
+      return null;
+    }
+    byte[] bytes = cache.get(fileName, meta.version);
+    if (bytes != null) {
+      return bytes;
+    }
+
+    File f = new File(System.getProperty("user.dir") + "/ServerFiles" + serverArr[0] + "/" + fileName);
+    try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      bytes = unseal(fileName, meta, in);
+      if (bytes == null) {
+        ByteBuffer buf = ByteBuffer.allocate((int) in.size());
+        while (buf.hasRemaining() && in.read(buf, buf.position()) > 0) {
+        }
+        bytes = buf.position() == buf.capacity() ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    cache.put(fileName, meta.version, bytes);
+    return bytes;
+  }
+
+  /**
+   * decodes a file stored with a codec, the way the index says it is stored.
+   * A write replaces the file before it updates the index, so an entry read
+   * before the file was opened may be a write behind, then it is read again.
+   *
+   * @param fileName name of the file
+   * @param meta     the file's index entry, read before the file was opened
+   * @param in       the opened file
+   * @return the file's contents, or null if it is stored plain
+   * @throws IOException if the file isn't stored the way the index says
+   */
+  private byte[] unseal(String fileName, FileMeta meta, FileChannel in) throws IOException {
+    if (meta != null && meta.stored != in.size()) {
+      meta = index.get(fileName);
+    }
+    Codec codec = meta == null ? NoopCodec.INSTANCE : Codecs.forName(meta.codec);
+    if (codec == NoopCodec.INSTANCE) {
+      return null;
+    }
+    return Codecs.readSealed(in, codec, meta.size);
+  }
+
+  /**
+   * @param uploadId id of an upload
+   * @return where the upload is staged on this server
+   */
+  File stagedFile(String uploadId) {
+    if (uploadId.contains("/") || uploadId.contains(File.separator) || uploadId.equals("..")) {
+      throw new IllegalArgumentException("bad upload id " + uploadId);
+    }
+    File dir = new File(System.getProperty("user.dir") + "/ServerLog" + serverArr[0] + "/uploads");
+    dir.mkdirs();
+    return new File(dir, uploadId);
+  }
+
+  /**
+   * @param uploadId id of an upload
+   * @return where the contents of an installed upload are kept until a
+   *         checkpoint drops its commit, so replaying the log can install it
+   *         again
+   */
+  private File keptFile(String uploadId) {
+    return stagedFile(uploadId + ".kept");
+  }
+
+  /**
+   * @return every kept upload
+   */
+  private List<File> keptFiles() {
+    File[] kept = stagedFile("").listFiles((dir, name) -> name.endsWith(".kept"));
+    return kept == null ? new ArrayList<File>() : Arrays.asList(kept);
+  }
+
+  /**
+   * makes a second name for a file's contents, a hard link where the file
+   * system has them and a copy where it doesn't
+   *
+   * @param from the file
+   * @param to   the new name
+   * @throws IOException if it can't be made
+   */
+  private static void link(File from, File to) throws IOException {
+    try {
+      Files.createLink(to.toPath(), from.toPath());
+    } catch (UnsupportedOperationException e) {
+      Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * forces a directory to disk, so the files moved or linked into it stay
+   *
+   * @param dir the directory
+   * @throws IOException if it can't be forced
+   */
+  static void syncDir(File dir) throws IOException {
+    try (FileChannel c = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+      c.force(true);
+    }
+  }
+
+  /**
+   * moves a staged upload into the 'ServerFiles<port>' directory once it is on
+   * disk in full
+   *
+   * @param op the staged upload
+   * @return write command status
+   */
+  private String installStaged(Operation op) {
+    File staged = stagedFile(op.staged);
+    File kept = keptFile(op.staged);
+    File target = new File(System.getProperty("user.dir") + "/ServerFiles" + serverArr[0] + "/" + op.fileName);
+
+    ReentrantLock lock = stripe(writeLocks, op.fileName);
+    lock.lock();
+    try {
+      if (!staged.exists() && kept.exists()) {
+        // the log is being replayed, install what the first apply kept
+        link(kept, staged);
+      }
+      try (FileChannel c = FileChannel.open(staged.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        if (c.size() != op.length) {
+          return "write failed";
+        }
+        c.force(true);
+        if (!kept.exists()) {
+          // a later write of the file may be replayed over this one, so the
+          // contents stay until a checkpoint drops this commit
+          link(staged, kept);
+          syncDir(kept.getParentFile());
+        }
+
+        // small enough uploads are sealed with the codec like any other write
+        Codec codec = Codecs.forSize(Codecs.configured(), op.length);
+        if (codec != NoopCodec.INSTANCE) {
+          ByteBuffer plain = ByteBuffer.allocate((int) op.length);
+          while (plain.hasRemaining() && c.read(plain, plain.position()) > 0) {
+          }
+          byte[] sealed = Codecs.seal(plain.array(), codec);
+          if (sealed != null) {
+            File tmp = new File(staged.getPath() + ".sealed");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+              out.write(sealed);
+              out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            syncDir(target.getParentFile());
+            staged.delete();
+            index.update(op.fileName, op.version, op.length, FileIndex.digest(plain.array()), codec.name(),
+                sealed.length);
+            cache.invalidate(op.fileName);
+            return "Successful!";
+          }
+        }
+
+        Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        syncDir(target.getParentFile());
+        // replaying onto the same contents renames one link of the file onto
+        // another, which leaves both
+        staged.delete();
+        index.update(op.fileName, op.version, op.length, FileIndex.digest(target), NoopCodec.INSTANCE.name(),
+            op.length);
+        cache.invalidate(op.fileName);
+        return "Successful!";
+      }
+    } catch (NoSuchFileException e) {
+      // already installed before a restart, or the push never reached us
+      if (target.exists()) {
+        try {
+          FileMeta found = FileIndex.describe(target, op.version,
+              Codecs.forSize(Codecs.configured(), op.length).name(), op.length);
+          if (found.size == op.length) {
+            index.update(op.fileName, op.version, op.length, found.digest, found.codec, found.stored);
+            return "Successful!";
+          }
+        } catch (IOException ex) {
+          ex.printStackTrace();
+        }
+      }
+      return "write failed";
+    } catch (IOException e) {
+      e.printStackTrace();
+      return "write failed";
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * apply one upload or remove to the local filestore, unless the file already
+   * has its version or a newer one. Writes can arrive after newer ones when
+   * they come from catch-up or a stale commit, or from the log after a
+   * snapshot already brought the file past them.
+   *
+   * @param op the write
+   * @return status message
+   */
+  private String apply(Operation op) {
+    long start = System.nanoTime();
+    if (op.staged != null) {
+      // installed or dropped now, either way no more chunks for it
+      pushes.remove(op.staged);
+    }
+    ReentrantLock lock = stripe(writeLocks, op.fileName);
+    lock.lock();
+    try {
+      if (index.version(op.fileName) >= op.version) {
+        // the index only takes the exact version decided, so an older write
+        // would leave the file and its version apart
+        if (op.staged != null) {
+          stagedFile(op.staged).delete();
+        }
+        return "already newer";
+      } else if (op.command.equals("adopt") && index.entry(op.fileName) != null) {
+        // written here since it started moving, the newer write stays
+        stagedFile(op.staged).delete();
+        return "exists";
+      } else if ((op.command.equals("upload") || op.command.equals("adopt")) && op.staged != null) {
+        return installStaged(op);
+      } else if (op.command.equals("upload")) {
+        return writeFile(op.fileName, op.contents, op.version);
+      } else if (op.command.equals("remove")) {
+        return deleteFile(op.fileName, op.version);
+      }
+      return "no action taken.";
+    } finally {
+      lock.unlock();
+      writeLatency.recordSince(start);
+    }
+  }
+
+  /**
+   * @param fileName name of a file
+   * @return index of the lock stripe for the file
+   */
+  private int stripeIndex(String fileName) {
+    return (fileName.hashCode() & 0x7fffffff) % STRIPES;
+  }
+
+  /**
+   * @param locks    the striped locks to pick from
+   * @param fileName name of a file
+   * @return the lock stripe for the file
+   */
+  private ReentrantLock stripe(ReentrantLock[] locks, String fileName) {
+    return locks[stripeIndex(fileName)];
+  }
+
+  /**
+   * delete method will remove a file from the local server
+   * 
+   * @param fileName name of file to remove
+   * @param version  version decided for the remove
+   * @return status message
+   */
+  String deleteFile(String fileName, long version) {
+    String homeDir = System.getProperty("user.dir");
+    File f = new File(homeDir + "/ServerFiles" + serverArr[0] + "/" + fileName);
+
+    ReentrantLock lock = stripe(writeLocks, fileName);
+    lock.lock();
+    try {
+      index.update(fileName, version, 0, null, NoopCodec.INSTANCE.name(), 0);
+      cache.invalidate(fileName);
+      if (f.delete()) {
+        return "deleted";
+      } else {
+        return "failed";
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A function that writes to files in the 'ServerFiles<port>' directory. The
+   * contents go to a temp file that is forced to disk and moved over the old
+   * one, so a crash never leaves a half written file behind.
+   * 
+   * @param fileName name of the file
+   * @param response the contents to be written
+   * @param version  version decided for the write
+   * @return write command status
+   */
+  String writeFile(String fileName, String contents, long version) {
+    String res = "write failed";
+    String homeDir = System.getProperty("user.dir");
+    String filepath = homeDir + "/ServerFiles" + serverArr[0] + "/";
+    File tmp = new File(homeDir + "/ServerLog" + serverArr[0] + "/" + fileName + ".tmp");
+
+    ReentrantLock lock = stripe(writeLocks, fileName);
+    lock.lock();
+    try {
+      byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+      byte[] sealed = Codecs.seal(bytes, Codecs.configured());
+      try (FileOutputStream out = new FileOutputStream(tmp)) {
+        out.write(sealed == null ? bytes : sealed);
+        out.getFD().sync();
+      }
+      Files.move(tmp.toPath(), new File(filepath + fileName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      syncDir(new File(filepath));
+      FileMeta meta = index.update(fileName, version, bytes.length, FileIndex.digest(bytes),
+          sealed == null ? NoopCodec.INSTANCE.name() : Codecs.configured().name(),
+          sealed == null ? bytes.length : sealed.length);
+      cache.update(fileName, meta.version, bytes);
+      res = "Successful!";
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      lock.unlock();
+    }
+
+    return res;
+  }
+
+  /**
+   * read a files contents from the content cache, or from the local storage
+   * in one bulk read. Large files are memory mapped and copied once from the
+   * mapping, small ones are read straight into the array the answer is decoded
+   * from. The bytes come back exactly as stored, line endings and trailing
+   * newline included.
+   * 
+   * @param fileName name of file to read
+   * @return the file name followed by all the data from the file
+   */
+  String readFile(String fileName) {
+    long start = System.nanoTime();
+    try {
+      return readContents(fileName);
+    } finally {
+      readLatency.recordSince(start);
+    }
+  }
+
+  private String readContents(String fileName) {
+    String data = "error reading file";
+    String homeDir = System.getProperty("user.dir");
+    File myObj = new File(homeDir + "/ServerFiles" + serverArr[0] + "/" + fileName);
+
+    byte[] cached = cachedContents(fileName);
+    if (cached != null) {
+      return reply(fileName, ByteBuffer.wrap(cached));
+    }
+
+    FileMeta meta = index.get(fileName);
+    try (FileChannel in = FileChannel.open(myObj.toPath(), StandardOpenOption.READ)) {
+      long size = in.size();
+      byte[] sealed = unseal(fileName, meta, in);
+      if (sealed != null) {
+        data = reply(fileName, ByteBuffer.wrap(sealed));
+      } else if (size >= MAP_THRESHOLD) {
+        data = reply(fileName, in.map(FileChannel.MapMode.READ_ONLY, 0, size));
+      } else {
+        // small files are read straight in behind the name
+        byte[] bytes = named(fileName, (int) size);
+        ByteBuffer buf = ByteBuffer.wrap(bytes, bytes.length - (int) size, (int) size);
+        while (buf.hasRemaining() && in.read(buf) > 0) {
+        }
+        data = new String(bytes, 0, buf.position(), StandardCharsets.UTF_8);
+      }
+    } catch (IOException e) {
+      System.out.println(date.format(new Date()) + " An error occurred.");
+      e.printStackTrace();
+    }
+    return data;
+  }
+
+  /**
+   * the answer to a read, the file's name, a space and its contents. The
+   * contents are copied once behind the name and decoded once into the
+   * string, with no char buffer or builder in between.
+   *
+   * @param fileName name of the file
+   * @param contents the file's bytes
+   * @return the answer
+   */
+  private static String reply(String fileName, ByteBuffer contents) {
+    byte[] bytes = named(fileName, contents.remaining());
+    contents.get(bytes, bytes.length - contents.remaining(), contents.remaining());
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param fileName name of a file
+   * @param size     bytes of contents to make room for
+   * @return an array holding the name and a space, with room for the contents
+   *         after them
+   */
+  private static byte[] named(String fileName, int size) {
+    byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+    byte[] bytes = new byte[name.length + 1 + size];
+    System.arraycopy(name, 0, bytes, 0, name.length);
+    bytes[name.length] = ' ';
+    return bytes;
+  }
+
+  /**
+   * Sends a message to all servers for the two stage commit process; prepare,
+   * commit, and abort. Every server is messaged at the same time on the peer
+   * pool and we return right away, the replies are counted by the transaction
+   * so the coordinator can move on once a majority answered.
+   *
+   * @param type is the type of message to send
+   * @param tx   the transaction the message is for
+   */
+  private void messageAll(String type, Transaction tx) {
+    long start = System.nanoTime();
+    // send message to all connected servers
+    for (int i = 1; i < serverArr.length; i++) {
+      final int server = i;
+      try {
+        peerPool(serverArr[i]).execute(() -> sendMessage(server, type, tx, start));
+      } catch (RejectedExecutionException e) {
+        System.out.println(date.format(new Date()) + ": Error sending " + type + " to server: " + "rmi://localhost:"
+            + serverArr[i] + "/filestore" + serverArr[i] + " (peer pool is full)");
+      }
+    }
+  }
+
+  /**
+   * Sends one message to one server, runs on the server's peer pool.
+   *
+   * @param i    index of the server in the server array
+   * @param type is the type of message to send
+   * @param tx   the transaction the message is for
+   * @param sent System.nanoTime() when the message was handed to the pool
+   */
+  private void sendMessage(int i, String type, Transaction tx, long sent) {
+    int port = serverArr[0];
+    FileStore server = null;
+    try {
+      server = stubs.get(serverArr[i]);
+      if (type.equals("prepare")) {
+        List<String> fileNames = new ArrayList<String>();
+        for (Operation op : tx.ops) {
+          fileNames.add(op.fileName);
+        }
+        server.prepare(port, tx.id, fileNames, tx.time);
+      } else if (type.equals("commit")) {
+        server.commit(port, tx.id, tx.ops);
+      } else if (type.equals("abort")) {
+        server.abort(tx.id);
+      }
+      rpcLatency.get(type).recordSince(sent);
+    } catch (Exception e) {
+      // drop a broken stub so the next message looks the server up again
+      stubs.failed(serverArr[i], server, e);
+      System.out.println(date.format(new Date()) + ": Error sending " + type + " to server: " + "rmi://localhost:"
+          + serverArr[i] + "/filestore" + serverArr[i]);
+    }
   }
 }
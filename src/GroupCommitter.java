@@ -0,0 +1,204 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * GroupCommitter gathers client writes that arrive within a short window and
+ * hands them to consensus as one batch, so a burst of small uploads and
+ * removes shares a single prepare, commit and ack exchange. Each client still
+ * gets the result of its own operation.
+ *
+ * The window trades latency for throughput: a write waits at most the window
+ * for others to join it, and a batch is sent early once it reaches the maximum
+ * number of operations or bytes. A window of 0 turns batching off.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class GroupCommitter {
+
+  /**
+   * one round of consensus over a batch, returning a result per operation
+   */
+  interface Round {
+    List<String> run(List<Operation> batch);
+  }
+
+  /**
+   * a write waiting for its batch to be decided
+   */
+  private static class Pending {
+    final Operation op;
+    final CompletableFuture<String> result = new CompletableFuture<String>();
+
+    Pending(Operation op) {
+      this.op = op;
+    }
+  }
+
+  // most operations one batch may hold, each write of a batch gets its own
+  // version below the next round's
+  static final int MAX_OPS = 1 << 16;
+
+  private final Round round;
+  private final long window;
+  private final int maxOps;
+  private final long maxBytes;
+  private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+  private long queuedBytes = 0;
+  private long firstArrival = 0;
+
+  // rounds in flight, while they are all busy new writes keep joining the
+  // next batch
+  private final Semaphore inFlight;
+  private final ExecutorService rounds;
+
+  /**
+   * Constructor for a group committer
+   *
+   * @param name     name used for the flusher threads
+   * @param round    runs consensus for a batch
+   * @param window   millis to wait for more writes after the first, 0 for off
+   * @param maxOps   most operations in a batch
+   * @param maxBytes most bytes of contents in a batch
+   * @param rounds   most batches in consensus at once
+   */
+  GroupCommitter(String name, Round round, long window, int maxOps, long maxBytes, int rounds) {
+    this.round = round;
+    this.window = window;
+    this.maxOps = Math.min(MAX_OPS, Math.max(1, maxOps));
+    this.maxBytes = Math.max(1, maxBytes);
+    this.inFlight = new Semaphore(Math.max(1, rounds));
+    this.rounds = window > 0 ? Executors.newFixedThreadPool(Math.max(1, rounds), r -> {
+      Thread t = new Thread(r, "batch-" + name);
+      t.setDaemon(true);
+      return t;
+    }) : null;
+
+    if (window > 0) {
+      Thread flusher = new Thread(this::flushLoop, "flusher-" + name);
+      flusher.setDaemon(true);
+      flusher.start();
+    }
+  }
+
+  /**
+   * @param name  name used for the flusher threads
+   * @param round runs consensus for a batch
+   * @return a group committer configured from the paxos.batch system properties
+   */
+  static GroupCommitter fromProperties(String name, Round round) {
+    return new GroupCommitter(name, round, Long.getLong("paxos.batch.window", 0),
+        Integer.getInteger("paxos.batch.ops", 64), Long.getLong("paxos.batch.bytes", 1 << 20),
+        Integer.getInteger("paxos.batch.rounds", 4));
+  }
+
+  /**
+   * submit a write and wait for the batch it joins to be decided
+   *
+   * @param op the client write
+   * @return the result of this write
+   */
+  String submit(Operation op) {
+    if (window <= 0) {
+      return round.run(Collections.singletonList(op)).get(0);
+    }
+
+    Pending pending = new Pending(op);
+    synchronized (this) {
+      if (queue.isEmpty()) {
+        firstArrival = System.currentTimeMillis();
+      }
+      queue.add(pending);
+      queuedBytes += op.size();
+      notifyAll();
+    }
+
+    try {
+      return pending.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return ("Aborted.");
+    } catch (ExecutionException e) {
+      return ("Aborted.");
+    }
+  }
+
+  /**
+   * takes batches off the queue once the window closes or they are full and
+   * runs them on the round pool
+   */
+  private void flushLoop() {
+    while (true) {
+      try {
+        inFlight.acquire();
+        List<Pending> batch = nextBatch();
+        rounds.execute(() -> {
+          try {
+            decide(batch);
+          } finally {
+            inFlight.release();
+          }
+        });
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * park until there is a batch to send and take it off the queue
+   */
+  private synchronized List<Pending> nextBatch() throws InterruptedException {
+    while (queue.isEmpty()) {
+      wait();
+    }
+    long closes = firstArrival + window;
+    while (queue.size() < maxOps && queuedBytes < maxBytes) {
+      long remaining = closes - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      wait(remaining);
+    }
+
+    // take as much as fits, the rest starts the next window
+    List<Pending> batch = new ArrayList<Pending>();
+    long bytes = 0;
+    while (!queue.isEmpty() && batch.size() < maxOps
+        && (batch.isEmpty() || bytes + queue.peekFirst().op.size() <= maxBytes)) {
+      Pending p = queue.pollFirst();
+      bytes += p.op.size();
+      batch.add(p);
+    }
+    queuedBytes -= bytes;
+    firstArrival = System.currentTimeMillis();
+    return batch;
+  }
+
+  /**
+   * run consensus for a batch and hand each writer its result
+   */
+  private void decide(List<Pending> batch) {
+    List<Operation> ops = new ArrayList<Operation>(batch.size());
+    for (Pending p : batch) {
+      ops.add(p.op);
+    }
+    try {
+      List<String> results = round.run(ops);
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).result.complete(results.get(i));
+      }
+    } catch (RuntimeException e) {
+      for (Pending p : batch) {
+        p.result.completeExceptionally(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram counts latencies in buckets that are linear within each power of
+ * two, the way HdrHistogram does, so any percentile is known to within about
+ * 3% whatever the range. The buckets are fixed when it is made and recording
+ * is a few atomic adds with no allocation or locking, cheap enough to leave on
+ * for every request.
+ *
+ * Values are nanoseconds and are clamped to about 18 minutes.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Histogram {
+  // 2^SUB_BITS buckets for each power of two
+  static final int SUB_BITS = 5;
+  static final int SUB = 1 << SUB_BITS;
+  // largest value kept apart, bigger ones count as this
+  static final long MAX_VALUE = (1L << 40) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param nanos a latency
+   */
+  void record(long nanos) {
+    long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+    counts.incrementAndGet(index(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    long m = max.get();
+    while (v > m && !max.compareAndSet(m, v)) {
+      m = max.get();
+    }
+  }
+
+  /**
+   * @param startNanos System.nanoTime() when the timed work began
+   */
+  void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return number of values recorded
+   */
+  long count() {
+    return count.get();
+  }
+
+  /**
+   * @return mean of the values in nanoseconds, 0 if there are none
+   */
+  long mean() {
+    long n = count.get();
+    return n == 0 ? 0 : sum.get() / n;
+  }
+
+  /**
+   * @return largest value recorded in nanoseconds
+   */
+  long max() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the value in nanoseconds that percentile of the values are at or
+   *         below, to the precision of the buckets
+   */
+  long percentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highest(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * bucket of a value, values below SUB get one each
+   */
+  private static int index(long v) {
+    if (v < SUB) {
+      return (int) v;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+    return ((shift + 1) << SUB_BITS) | (int) ((v >>> shift) & (SUB - 1));
+  }
+
+  /**
+   * largest value that falls in a bucket
+   */
+  private static long highest(int index) {
+    if (index < SUB) {
+      return index;
+    }
+    int shift = (index >>> SUB_BITS) - 1;
+    return ((((long) (index & (SUB - 1)) | SUB) + 1) << shift) - 1;
+  }
+
+  /**
+   * @return the summary in microseconds, in a human readable form
+   */
+  public String toString() {
+    return "count=" + count() + " mean=" + mean() / 1000 + "us p50=" + percentile(50) / 1000 + "us p90="
+        + percentile(90) / 1000 + "us p99=" + percentile(99) / 1000 + "us p99.9=" + percentile(99.9) / 1000
+        + "us max=" + max() / 1000 + "us";
+  }
+}
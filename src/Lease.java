@@ -0,0 +1,243 @@
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lease lets the multi-paxos leader answer reads from its own files. The
+ * leader asks every replica for a lease under its ballot a few times a lease
+ * period. A replica that grants one won't promise a ballot to any other
+ * server until the lease runs out, so once a majority granted it no other
+ * server can be elected and nothing can be chosen that the leader hasn't
+ * applied. Reads sent to the leader while it holds the lease need no other
+ * replica, a read sent to a server without one is refused and the client
+ * asks the leader or falls back to a quorum read.
+ *
+ * Times are only ever compared on the clock of the server that took them.
+ * The leader counts its lease from just before it asked and cuts it short by
+ * the drift bound, so it runs out before any replica's grant does even if
+ * the clocks run at slightly different rates. A server that restarts has
+ * forgotten what it granted, so if it ever promised a ballot it grants and
+ * promises nothing for one lease after it recovers.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Lease {
+  // millis a lease lasts, 0 turns leases off
+  static final long DURATION = Long.getLong("paxos.lease", 2000);
+  // most the clocks of two servers may run apart, as a fraction of a lease
+  static final double DRIFT = Double.parseDouble(System.getProperty("paxos.lease.drift", "0.1"));
+
+  // answer to a lease read sent to a server that can't answer it alone
+  static final String NOT_LEADER = "not the leader, ask the leader or a quorum";
+
+  private final FileStoreImpl replica;
+  private final ScheduledExecutorService timer;
+  private final SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
+
+  // the server we granted a lease to and when it runs out here, in nanos
+  private int grantedTo = -1;
+  private long grantedUntil = System.nanoTime();
+
+  // the ballot we hold a lease under and when we stop counting on it
+  private long heldBallot = -1;
+  private long heldUntil;
+
+  private final AtomicLong renewals;
+  private final AtomicLong reads;
+  private final AtomicLong refused;
+
+  /**
+   * Constructor for a replica's lease, nothing is renewed until it is started
+   *
+   * @param replica the replica
+   */
+  Lease(FileStoreImpl replica) {
+    this.replica = replica;
+    this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "lease-" + replica.serverArr[0]);
+      t.setDaemon(true);
+      return t;
+    });
+    this.renewals = replica.metrics.counter("lease.renewals");
+    this.reads = replica.metrics.counter("lease.reads");
+    this.refused = replica.metrics.counter("lease.refused");
+  }
+
+  /**
+   * @return true if leases are on
+   */
+  static boolean enabled() {
+    return DURATION > 0;
+  }
+
+  /**
+   * starts renewing our lease whenever we are the leader, unless leases are
+   * off or we aren't in multi-paxos mode
+   */
+  void start() {
+    if (!enabled() || !replica.multiPaxos) {
+      return;
+    }
+    long period = Math.max(1, DURATION / 3);
+    timer.scheduleWithFixedDelay(this::run, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * stops renewing, the lease we hold runs out on its own
+   */
+  void stop() {
+    timer.shutdownNow();
+  }
+
+  /**
+   * renews our lease right away, after we were elected
+   */
+  void renewSoon() {
+    if (enabled()) {
+      try {
+        timer.execute(this::run);
+      } catch (RuntimeException e) {
+        // stopped
+      }
+    }
+  }
+
+  /**
+   * we recovered from a log with a promise in it, so we may have granted a
+   * lease before we went down. Nobody is granted or promised anything until
+   * it would have run out.
+   */
+  synchronized void restarted() {
+    grantedTo = -1;
+    grantedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION);
+    System.out.println(date.format(new Date()) + ": granting no leases or promises for " + DURATION + " ms");
+  }
+
+  /**
+   * renews our lease if we are the leader, never throws so the timer thread
+   * lives on
+   */
+  private void run() {
+    long b = replica.ballot;
+    if (b == -1) {
+      return;
+    }
+    long asked = System.nanoTime();
+    try {
+      if (!replica.grantLease(replica.serverArr[0], b)) {
+        return;
+      }
+      Transaction round = new Transaction("lease-" + b, Collections.<Operation>emptyList());
+      for (int i = 1; i < replica.serverArr.length; i++) {
+        replica.submit("lease", replica.serverArr[i], peer -> {
+          if (peer.grantLease(replica.serverArr[0], b)) {
+            round.ack();
+          }
+        });
+      }
+      if (round.awaitAcks(replica.serverArr.length / 2, System.currentTimeMillis() + DURATION / 3)) {
+        held(b, asked);
+        renewals.incrementAndGet();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      System.err.println(date.format(new Date()) + ": renewing the lease failed: " + e);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * grants a lease to a leader, unless another server's lease is still running
+   *
+   * @param port port of the leader
+   * @return true if granted
+   */
+  synchronized boolean grant(int port) {
+    long now = System.nanoTime();
+    if (!enabled() || (grantedTo != port && now - grantedUntil < 0)) {
+      return false;
+    }
+    grantedTo = port;
+    grantedUntil = now + TimeUnit.MILLISECONDS.toNanos(DURATION);
+    return true;
+  }
+
+  /**
+   * @param port port of a server running for leader
+   * @return true if we may not promise it a ballot, because a lease we
+   *         granted another server is still running
+   */
+  synchronized boolean blocks(int port) {
+    return enabled() && grantedTo != port && System.nanoTime() - grantedUntil < 0;
+  }
+
+  /**
+   * waits until a lease we granted another server runs out, and a little
+   * longer for the other replicas' grants of it to run out too, before we
+   * run for leader
+   *
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  void awaitGrants() throws InterruptedException {
+    long wait;
+    synchronized (this) {
+      if (!blocks(replica.serverArr[0])) {
+        return;
+      }
+      wait = grantedUntil - System.nanoTime() + (long) (TimeUnit.MILLISECONDS.toNanos(DURATION) * DRIFT);
+    }
+    TimeUnit.NANOSECONDS.sleep(wait);
+  }
+
+  /**
+   * a majority granted us a lease
+   *
+   * @param ballot the ballot we lead with
+   * @param asked  nanoTime from just before we asked for it
+   */
+  private synchronized void held(long ballot, long asked) {
+    long until = asked + (long) (TimeUnit.MILLISECONDS.toNanos(DURATION) * (1 - DRIFT));
+    if (ballot != heldBallot || until - heldUntil > 0) {
+      heldBallot = ballot;
+      heldUntil = until;
+    }
+  }
+
+  /**
+   * @param ballot the ballot we lead with, -1 if we aren't the leader
+   * @return true if we hold a lease under the ballot right now
+   */
+  synchronized boolean holds(long ballot) {
+    return ballot != -1 && ballot == heldBallot && System.nanoTime() - heldUntil < 0;
+  }
+
+  /**
+   * checks we hold a lease before a read is answered from our own files, and
+   * counts the read
+   *
+   * @param ballot the ballot we lead with, -1 if we aren't the leader
+   * @return true if the read may be answered
+   */
+  boolean read(long ballot) {
+    if (!holds(ballot)) {
+      refused.incrementAndGet();
+      return false;
+    }
+    reads.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return counts of the renewals and of the reads answered, in a human
+   *         readable form
+   */
+  public String toString() {
+    return "lease: " + renewals.get() + " renewals, " + reads.get() + " reads, " + refused.get() + " refused";
+  }
+}
@@ -0,0 +1,594 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * LoadGenerator drives a cluster with many concurrent clients and reports
+ * throughput, latency percentiles and the abort rate as JSON, one line per
+ * report interval and a summary line at the end.
+ *
+ * Clients run closed loop, each sending its next request as soon as the last
+ * one is answered, or open loop, where requests are started at a fixed rate
+ * whether or not earlier ones are done. Open loop latency is measured from
+ * when a request was due, so a stalled cluster shows up in the percentiles
+ * instead of just slowing the load down. The requests follow a mix of
+ * uploads, downloads, listings and removes over a fixed set of file names,
+ * with upload sizes drawn from a distribution.
+ *
+ * It can also start the cluster itself with PaxosCluster and kill and restart
+ * replicas at set times, counted in seconds from the end of the warmup, to see
+ * how the cluster does with replicas down. With a shard map each request goes
+ * to the group of its file, and --ports is taken from the map.
+ *
+ * java LoadGenerator --start inproc --clients 16 --duration 30 --mix
+ * upload=40,download=40,list=10,remove=10 --sizes 1k=70,64k=25,1m=5 --kill
+ * 9091@10 --restart 9091@20
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class LoadGenerator {
+  static final String[] OPS = { "upload", "download", "list", "remove" };
+
+  // options, see usage()
+  private int[] ports = { 9090, 9091, 9092, 9093, 9094 };
+  private String start = "none";
+  private boolean open = false;
+  private int clients = 16;
+  private double rate = 100;
+  private long duration = 30;
+  private long warmup = 5;
+  private long report = 1;
+  private int files = 1000;
+  private int preload = 100;
+  private int[] mix = { 40, 40, 10, 10 };
+  private final Map<Integer, Integer> sizes = new LinkedHashMap<Integer, Integer>();
+  private final List<long[]> kills = new ArrayList<long[]>();
+  private final List<long[]> restarts = new ArrayList<long[]>();
+
+  private StubRegistry stubs;
+  private ShardMap shards;
+  private final Map<Integer, QuorumReader> readers = new ConcurrentHashMap<Integer, QuorumReader>();
+  // contents to upload for each size, and how often each size is picked
+  private byte[][] contents;
+  private int[] sizeWeights;
+  private final AtomicLong next = new AtomicLong();
+
+  // everything measured after the warmup, and what was measured since the last
+  // report
+  private final Histogram[] latency = new Histogram[OPS.length];
+  private final AtomicLong[] opErrors = new AtomicLong[OPS.length];
+  private final Histogram all = new Histogram();
+  private final AtomicReference<Histogram> interval = new AtomicReference<Histogram>(new Histogram());
+  private final AtomicLong aborts = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong splits = new AtomicLong();
+  private final AtomicLong busy = new AtomicLong();
+  private final AtomicLong intervalAborts = new AtomicLong();
+  private final AtomicLong intervalErrors = new AtomicLong();
+
+  private volatile long measureFrom;
+  private volatile long stopAt;
+
+  /**
+   * what a request came back with
+   */
+  enum Outcome {
+    // SPLIT is a read no majority agreed on, usual while writes are in flight
+    OK, MISS, ABORTED, BUSY, SPLIT, ERROR
+  }
+
+  LoadGenerator() {
+    sizes.put(1024, 70);
+    sizes.put(64 * 1024, 25);
+    sizes.put(1024 * 1024, 5);
+    for (int i = 0; i < OPS.length; i++) {
+      latency[i] = new Histogram();
+      opErrors[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * reads the command line options
+   *
+   * @param args the options
+   */
+  void parse(String[] args) {
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "--ports":
+          String[] p = value.split(",");
+          ports = new int[p.length];
+          for (int j = 0; j < p.length; j++) {
+            ports[j] = Integer.parseInt(p[j].trim());
+          }
+          break;
+        case "--start":
+          start = value;
+          break;
+        case "--mode":
+          open = value.equals("open");
+          break;
+        case "--clients":
+          clients = Integer.parseInt(value);
+          break;
+        case "--rate":
+          rate = Double.parseDouble(value);
+          break;
+        case "--duration":
+          duration = Long.parseLong(value);
+          break;
+        case "--warmup":
+          warmup = Long.parseLong(value);
+          break;
+        case "--report":
+          report = Long.parseLong(value);
+          break;
+        case "--files":
+          files = Integer.parseInt(value);
+          break;
+        case "--preload":
+          preload = Integer.parseInt(value);
+          break;
+        case "--mix":
+          mix = new int[OPS.length];
+          for (String part : value.split(",")) {
+            String[] kv = part.split("=");
+            mix[op(kv[0])] = Integer.parseInt(kv[1]);
+          }
+          break;
+        case "--sizes":
+          sizes.clear();
+          for (String part : value.split(",")) {
+            String[] kv = part.split("=");
+            sizes.put(size(kv[0]), Integer.parseInt(kv[1]));
+          }
+          break;
+        case "--kill":
+        case "--restart":
+          for (String part : value.split(",")) {
+            String[] at = part.split("@");
+            (args[i].equals("--kill") ? kills : restarts)
+                .add(new long[] { Integer.parseInt(at[0]), Long.parseLong(at[1]) });
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+    if (args.length % 2 != 0) {
+      throw new IllegalArgumentException("option " + args[args.length - 1] + " has no value");
+    }
+  }
+
+  private static int op(String name) {
+    for (int i = 0; i < OPS.length; i++) {
+      if (OPS[i].equals(name)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("unknown operation " + name);
+  }
+
+  /**
+   * @param s a size like 512, 64k or 1m
+   * @return the size in bytes
+   */
+  static int size(String s) {
+    s = s.trim().toLowerCase();
+    if (s.endsWith("k")) {
+      return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024;
+    } else if (s.endsWith("m")) {
+      return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024 * 1024;
+    }
+    return Integer.parseInt(s);
+  }
+
+  /**
+   * starts the cluster if asked to, runs the load and reports
+   *
+   * @param out where the JSON goes
+   * @throws Exception if the cluster can't be started
+   */
+  void run(PrintStream out) throws Exception {
+    shards = ShardMap.fromProperties(ports);
+    if (ShardMap.configured()) {
+      ports = shards.ports();
+    }
+    PaxosCluster cluster = null;
+    if (!start.equals("none")) {
+      cluster = new PaxosCluster(ports, start.equals("procs"));
+      cluster.start();
+    } else if (!kills.isEmpty() || !restarts.isEmpty()) {
+      throw new IllegalArgumentException("--kill and --restart need --start inproc or procs");
+    }
+
+    stubs = new StubRegistry(new Metrics("load"));
+    contents = new byte[sizes.size()][];
+    sizeWeights = new int[sizes.size()];
+    int k = 0;
+    for (Map.Entry<Integer, Integer> e : sizes.entrySet()) {
+      contents[k] = text(e.getKey());
+      sizeWeights[k++] = e.getValue();
+    }
+    for (int i = 0; i < Math.min(preload, files); i++) {
+      upload("load" + i);
+    }
+
+    long begin = System.nanoTime();
+    measureFrom = begin + TimeUnit.SECONDS.toNanos(warmup);
+    stopAt = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+
+    // two threads, so a restart waiting on a child process doesn't hold up the
+    // interval reports
+    ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, r -> {
+      Thread t = new Thread(r, "load-timer");
+      t.setDaemon(true);
+      return t;
+    });
+    final PaxosCluster c = cluster;
+    for (long[] kill : kills) {
+      timer.schedule(() -> c.kill((int) kill[0]), warmup + kill[1], TimeUnit.SECONDS);
+    }
+    for (long[] restart : restarts) {
+      timer.schedule(() -> {
+        try {
+          c.start((int) restart[0]);
+        } catch (Exception e) {
+          System.err.println("restart of " + restart[0] + " failed: " + e);
+        }
+      }, warmup + restart[1], TimeUnit.SECONDS);
+    }
+    if (report > 0) {
+      timer.scheduleAtFixedRate(() -> {
+        if (System.nanoTime() >= measureFrom && System.nanoTime() < stopAt + TimeUnit.SECONDS.toNanos(report) / 2) {
+          out.println(interval(System.nanoTime() - measureFrom));
+        }
+      }, TimeUnit.SECONDS.toNanos(warmup + report), TimeUnit.SECONDS.toNanos(report), TimeUnit.NANOSECONDS);
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(clients, r -> {
+      Thread t = new Thread(r, "load-client");
+      t.setDaemon(true);
+      return t;
+    });
+    if (open) {
+      // requests are due at fixed times, latency counts from when they were due
+      long gap = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+      for (long due = begin; due < stopAt; due += gap) {
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        final long d = due;
+        pool.execute(() -> request(d));
+      }
+    } else {
+      for (int i = 0; i < clients; i++) {
+        pool.execute(() -> {
+          while (System.nanoTime() < stopAt) {
+            request(System.nanoTime());
+          }
+        });
+      }
+    }
+    pool.shutdown();
+    pool.awaitTermination(duration + 60, TimeUnit.SECONDS);
+    timer.shutdownNow();
+
+    out.println(summary());
+    if (cluster != null) {
+      cluster.stop();
+    }
+  }
+
+  /**
+   * sends one request picked from the mix and records how it went
+   *
+   * @param due System.nanoTime() the request was due
+   */
+  private void request(long due) {
+    int op = pick(mix);
+    String fileName = "load" + ThreadLocalRandom.current().nextInt(files);
+    Outcome outcome;
+    try {
+      switch (op) {
+        case 0:
+          outcome = upload(fileName);
+          break;
+        case 1:
+          outcome = download(fileName);
+          break;
+        case 2:
+          outcome = list();
+          break;
+        default:
+          outcome = remove(fileName);
+          break;
+      }
+    } catch (Exception e) {
+      outcome = Outcome.ERROR;
+    }
+
+    long end = System.nanoTime();
+    if (due < measureFrom || due >= stopAt) {
+      return;
+    }
+    long nanos = end - due;
+    latency[op].record(nanos);
+    all.record(nanos);
+    interval.get().record(nanos);
+    if (outcome == Outcome.ABORTED) {
+      aborts.incrementAndGet();
+      intervalAborts.incrementAndGet();
+    } else if (outcome == Outcome.ERROR) {
+      errors.incrementAndGet();
+      opErrors[op].incrementAndGet();
+      intervalErrors.incrementAndGet();
+    } else if (outcome == Outcome.MISS) {
+      misses.incrementAndGet();
+    } else if (outcome == Outcome.BUSY) {
+      busy.incrementAndGet();
+    } else if (outcome == Outcome.SPLIT) {
+      splits.incrementAndGet();
+    }
+  }
+
+  /**
+   * @param weights a weight for each choice
+   * @return a choice, drawn in proportion to the weights
+   */
+  private static int pick(int[] weights) {
+    int total = 0;
+    for (int w : weights) {
+      total += w;
+    }
+    int r = ThreadLocalRandom.current().nextInt(Math.max(1, total));
+    for (int i = 0; i < weights.length; i++) {
+      r -= weights[i];
+      if (r < 0) {
+        return i;
+      }
+    }
+    return weights.length - 1;
+  }
+
+  /**
+   * @param group ports of the servers of a group
+   * @return the quorum reader for the group
+   */
+  private QuorumReader reader(int[] group) {
+    return readers.computeIfAbsent(group[0], port -> QuorumReader.fromProperties(stubs, group));
+  }
+
+  /**
+   * uploads a file in chunks like the client does, through the first server
+   * of its group that takes it
+   */
+  private Outcome upload(String fileName) {
+    byte[] data = contents[pick(sizeWeights)];
+
+    String res = "";
+    int[] group = shards.group(fileName);
+    int first = (int) (next.getAndIncrement() % group.length);
+    for (int tried = 0; tried < group.length; tried++) {
+      int port = group[(first + tried) % group.length];
+      FileStore server = null;
+      try {
+        server = stubs.get(port);
+        String uploadId = server.beginUpload(fileName);
+        int offset = 0;
+        do {
+          int len = Math.min(PaxosClient.CHUNK, data.length - offset);
+          server.uploadChunk(uploadId, offset, Codecs.pack(data, offset, len, Codecs.configured()));
+          offset += len;
+        } while (offset < data.length);
+        res = server.finishUpload(uploadId);
+        if (!Admission.busy(res)) {
+          break;
+        }
+      } catch (RemoteException e) {
+        stubs.failed(port, server, e);
+      }
+    }
+    return outcome(res, "Successful!");
+  }
+
+  /**
+   * reads a file the way the client does: a majority agrees on its metadata,
+   * then the contents come from one server that agreed
+   */
+  private Outcome download(String fileName) throws IOException {
+    QuorumReader.Result<FileMeta> res = reader(shards.group(fileName)).read(server -> server.stat(fileName),
+        meta -> meta == null ? "" : meta.digest);
+    if (res == null) {
+      return Outcome.SPLIT;
+    }
+    if (res.value == null || res.value.removed()) {
+      return Outcome.MISS;
+    }
+    for (int port : res.servers) {
+      FileStore server = null;
+      try {
+        server = stubs.get(port);
+        long offset = 0;
+        while (offset < res.value.size) {
+          byte[] packed = server.downloadChunk(fileName, offset, PaxosClient.CHUNK, Codecs.configured().name());
+          if (packed == null) {
+            break;
+          }
+          int got = Codecs.unpack(packed).length;
+          if (got == 0) {
+            break;
+          }
+          offset += got;
+        }
+        if (offset == res.value.size) {
+          return Outcome.OK;
+        }
+      } catch (RemoteException e) {
+        stubs.failed(port, server, e);
+      }
+    }
+    return Outcome.ERROR;
+  }
+
+  /**
+   * reads the first page of the listing from a majority of one group, the
+   * groups taking turns
+   */
+  private Outcome list() {
+    List<int[]> groups = shards.groups();
+    int[] group = groups.get((int) (next.getAndIncrement() % groups.size()));
+    QuorumReader.Result<String> res = reader(group).read(server -> server.clientRequest("list limit=100"), v -> v);
+    if (res == null) {
+      return Outcome.SPLIT;
+    }
+    return Admission.busy(res.value) ? Outcome.BUSY : Outcome.OK;
+  }
+
+  /**
+   * removes a file through the first server of its group that takes it
+   */
+  private Outcome remove(String fileName) {
+    String res = "";
+    int[] group = shards.group(fileName);
+    int first = (int) (next.getAndIncrement() % group.length);
+    for (int tried = 0; tried < group.length; tried++) {
+      int port = group[(first + tried) % group.length];
+      FileStore server = null;
+      try {
+        server = stubs.get(port);
+        res = server.clientRequest("remove " + fileName);
+        if (!Admission.busy(res)) {
+          break;
+        }
+      } catch (RemoteException e) {
+        stubs.failed(port, server, e);
+      }
+    }
+    if (res.equals("failed")) {
+      // there was no such file
+      return Outcome.MISS;
+    }
+    return outcome(res, "deleted");
+  }
+
+  private static Outcome outcome(String res, String ok) {
+    if (res.equals(ok)) {
+      return Outcome.OK;
+    } else if (res.equals("Aborted.")) {
+      return Outcome.ABORTED;
+    } else if (Admission.busy(res)) {
+      return Outcome.BUSY;
+    }
+    return Outcome.ERROR;
+  }
+
+  /**
+   * @return the report for the interval that just ended, starting a new one
+   */
+  private String interval(long elapsed) {
+    Histogram h = interval.getAndSet(new Histogram());
+    long a = intervalAborts.getAndSet(0);
+    long e = intervalErrors.getAndSet(0);
+    return "{\"type\":\"interval\",\"t\":" + TimeUnit.NANOSECONDS.toSeconds(elapsed) + ",\"ops\":" + h.count()
+        + ",\"throughput\":" + String.format("%.1f", (double) h.count() / report) + ",\"aborts\":" + a
+        + ",\"errors\":" + e + "," + percentiles(h) + "}";
+  }
+
+  /**
+   * @return the report for the whole run
+   */
+  private String summary() {
+    StringBuilder s = new StringBuilder();
+    s.append("{\"type\":\"summary\",\"mode\":\"").append(open ? "open" : "closed").append("\",\"clients\":")
+        .append(clients);
+    if (open) {
+      s.append(",\"rate\":").append(rate);
+    }
+    long writes = latency[0].count() + latency[3].count();
+    s.append(",\"seconds\":").append(duration).append(",\"ops\":").append(all.count()).append(",\"throughput\":")
+        .append(String.format("%.1f", (double) all.count() / duration)).append(",\"aborts\":").append(aborts.get())
+        .append(",\"abortRate\":").append(String.format("%.4f", writes == 0 ? 0.0 : (double) aborts.get() / writes))
+        .append(",\"errors\":").append(errors.get()).append(",\"misses\":").append(misses.get())
+        .append(",\"splits\":").append(splits.get())
+        .append(",\"busy\":").append(busy.get()).append(',').append(percentiles(all)).append(",\"byOp\":{");
+    for (int i = 0; i < OPS.length; i++) {
+      s.append(i == 0 ? "" : ",").append('"').append(OPS[i]).append("\":{\"ops\":").append(latency[i].count())
+          .append(",\"errors\":").append(opErrors[i].get()).append(',').append(percentiles(latency[i])).append('}');
+    }
+    return s.append("}}").toString();
+  }
+
+  private static String percentiles(Histogram h) {
+    return "\"p50Us\":" + h.percentile(50) / 1000 + ",\"p99Us\":" + h.percentile(99) / 1000 + ",\"p999Us\":"
+        + h.percentile(99.9) / 1000 + ",\"maxUs\":" + h.max() / 1000;
+  }
+
+  /**
+   * @param size number of bytes
+   * @return text that compresses about as well as source code
+   */
+  private static byte[] text(int size) {
+    StringBuilder s = new StringBuilder(size);
+    for (int line = 0; s.length() < size; line++) {
+      s.append("line ").append(line).append(": the quick brown fox jumps over the lazy dog ").append(line * 31 % 97)
+          .append('\n');
+    }
+    return s.substring(0, size).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void usage() {
+    System.out.println("Usage: java LoadGenerator [--ports 9090,9091,...] [--start none|inproc|procs]"
+        + " [--mode closed|open] [--clients n] [--rate ops/s] [--duration s] [--warmup s] [--report s]"
+        + " [--files n] [--preload n] [--mix upload=40,download=40,list=10,remove=10]"
+        + " [--sizes 1k=70,64k=25,1m=5] [--kill port@s,...] [--restart port@s,...]");
+  }
+
+  /**
+   * Runs the load described by the options. The JSON goes to standard output;
+   * replicas started in this JVM log to 'cluster.log' instead so the two
+   * don't mix.
+   *
+   * @param args the options
+   */
+  public static void main(String args[]) {
+    LoadGenerator load = new LoadGenerator();
+    try {
+      load.parse(args);
+    } catch (RuntimeException e) {
+      System.out.println(e.getMessage());
+      usage();
+      System.exit(1);
+    }
+
+    PrintStream out = System.out;
+    try {
+      if (load.start.equals("inproc")) {
+        System.setOut(new PrintStream(new FileOutputStream("cluster.log", true), true));
+      }
+      load.run(out);
+    } catch (Exception e) {
+      System.err.println("load failed: " + e);
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+}
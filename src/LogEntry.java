@@ -0,0 +1,49 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * LogEntry is one numbered slot of the replicated log used in multi-paxos
+ * mode. It holds the ballot it was accepted under and the batch of writes it
+ * decides, which is empty for a noop.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class LogEntry implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final long slot;
+  final long ballot;
+  final List<Operation> ops;
+
+  /**
+   * Constructor for a log entry
+   *
+   * @param slot   position of the entry in the log
+   * @param ballot ballot the entry is proposed under
+   * @param ops    the writes decided by the entry, in order
+   */
+  LogEntry(long slot, long ballot, List<Operation> ops) {
+    this.slot = slot;
+    this.ballot = ballot;
+    this.ops = ops;
+  }
+
+  /**
+   * @param ballot the new ballot
+   * @return a copy of this entry to be proposed again under a new ballot
+   */
+  LogEntry withBallot(long ballot) {
+    return new LogEntry(slot, ballot, ops);
+  }
+
+  /**
+   * @param slot   position in the log
+   * @param ballot ballot the noop is proposed under
+   * @return an entry that fills a slot without changing any file
+   */
+  static LogEntry noop(long slot, long ballot) {
+    return new LogEntry(slot, ballot, Collections.<Operation>emptyList());
+  }
+}
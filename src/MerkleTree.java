@@ -0,0 +1,147 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MerkleTree summarizes every file a replica knows about, removed ones
+ * included, so two replicas can find the files they disagree on by comparing
+ * a few hashes instead of their whole listings. The tree has a fixed shape:
+ * each node has FANOUT children, and a file goes in the leaf picked by a hash
+ * of its name, the same leaf on every replica.
+ *
+ * A file's entry hash covers its name, version and content digest, and a
+ * node's hash is the exclusive or of the entry hashes of every file below
+ * it. A change to one file only has to fold the difference into the nodes on
+ * its path, so the tree is kept up to date on every write without
+ * recomputing anything else. Two replicas that agree on a node agree on every
+ * file below it, unless 64 bit hashes collide.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class MerkleTree {
+  // children of each node, each level is one hex digit of the leaf
+  static final int FANOUT = 16;
+  // levels below the root, FANOUT^DEPTH leaves
+  static final int DEPTH = Math.max(1, Math.min(6, Integer.getInteger("paxos.merkle.depth", 4)));
+
+  // hashes[level][node], level 0 is the root
+  private final AtomicLongArray[] hashes = new AtomicLongArray[DEPTH + 1];
+
+  // entry hash of every file, keyed by its leaf in hex and then its name so
+  // the files of one leaf are next to each other
+  private final ConcurrentSkipListMap<String, Long> entries = new ConcurrentSkipListMap<String, Long>();
+
+  /**
+   * Constructor for the tree of no files
+   */
+  MerkleTree() {
+    for (int level = 0, width = 1; level <= DEPTH; level++, width *= FANOUT) {
+      hashes[level] = new AtomicLongArray(width);
+    }
+  }
+
+  /**
+   * records a file's new metadata. Callers must not change the same file from
+   * two threads at once.
+   *
+   * @param meta the file's metadata, removed files included
+   */
+  void update(FileMeta meta) {
+    int leaf = leaf(meta.fileName);
+    long entry = entryHash(meta);
+    Long old = entries.put(key(leaf, meta.fileName), entry);
+    long delta = entry ^ (old == null ? 0 : old);
+    if (delta == 0) {
+      return;
+    }
+    for (int level = DEPTH, node = leaf; level >= 0; level--, node /= FANOUT) {
+      hashes[level].getAndAccumulate(node, delta, (a, b) -> a ^ b);
+    }
+  }
+
+  /**
+   * forgets every file
+   */
+  void clear() {
+    entries.clear();
+    for (AtomicLongArray level : hashes) {
+      for (int i = 0; i < level.length(); i++) {
+        level.set(i, 0);
+      }
+    }
+  }
+
+  /**
+   * @param level level of the nodes, 0 is the root and DEPTH the leaves
+   * @param node  index of a node within its level
+   * @return hash of the node, 0 if no file is below it
+   */
+  long hash(int level, int node) {
+    return hashes[level].get(node);
+  }
+
+  /**
+   * @param leaf index of a leaf
+   * @return names of the files in the leaf, in name order
+   */
+  List<String> names(int leaf) {
+    String from = hex(leaf);
+    List<String> names = new ArrayList<String>();
+    for (String key : (leaf + 1 < hashes[DEPTH].length() ? entries.subMap(from, hex(leaf + 1))
+        : entries.tailMap(from)).keySet()) {
+      names.add(key.substring(DEPTH));
+    }
+    return names;
+  }
+
+  /**
+   * @param fileName name of a file
+   * @return index of the leaf the file goes in, the same on every replica
+   */
+  static int leaf(String fileName) {
+    // String.hashCode is fixed by the language, mixed so nearby names spread
+    int h = fileName.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return (int) ((h & 0xffffffffL) >>> (32 - 4 * DEPTH));
+  }
+
+  /**
+   * @return the first 64 bits of a sha-256 of the file's name, version and
+   *         digest
+   */
+  private static long entryHash(FileMeta meta) {
+    MessageDigest md = FileIndex.sha256();
+    md.update((meta.fileName + '\0' + meta.version + '\0' + (meta.digest == null ? "-" : meta.digest))
+        .getBytes(StandardCharsets.UTF_8));
+    byte[] d = md.digest();
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (d[i] & 0xff);
+    }
+    return h;
+  }
+
+  private static String key(int leaf, String fileName) {
+    return hex(leaf) + fileName;
+  }
+
+  /**
+   * @return the leaf as DEPTH hex digits, the path to it from the root
+   */
+  private static String hex(int leaf) {
+    String h = Integer.toHexString(leaf);
+    StringBuilder sb = new StringBuilder(DEPTH);
+    for (int i = h.length(); i < DEPTH; i++) {
+      sb.append('0');
+    }
+    return sb.append(h).toString();
+  }
+}
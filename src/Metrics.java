@@ -0,0 +1,221 @@
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Metrics holds the latency histograms and counters of one server or client
+ * and publishes them as JMX MBeans, one 'paxos:type=Latency' bean per
+ * histogram and one 'paxos:type=Counters' bean for all the counters, so they
+ * can be watched with jconsole or any JMX client. With
+ * -Dpaxos.metrics.dump=<seconds> a summary is also printed that often.
+ *
+ * Hot paths look up their histograms and counters once and keep them, so
+ * recording is only the atomic adds.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Metrics {
+  private final String scope;
+  private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+  private final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+  private final SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
+
+  /**
+   * Constructor registering the counters bean and starting the dump if asked
+   * for
+   *
+   * @param scope names the server or client in the bean names
+   */
+  Metrics(String scope) {
+    this.scope = scope;
+    register("type=Counters,scope=" + scope, new CountersBean());
+
+    long dump = Long.getLong("paxos.metrics.dump", 0);
+    if (dump > 0) {
+      ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-" + scope);
+        t.setDaemon(true);
+        return t;
+      });
+      timer.scheduleAtFixedRate(() -> System.out.println(date.format(new Date()) + ": metrics " + scope + "\n" + this),
+          dump, dump, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * @param name name of a histogram
+   * @return the histogram, made and registered the first time it is asked for
+   */
+  Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> {
+      Histogram h = new Histogram();
+      register("type=Latency,scope=" + scope + ",name=" + n, new HistogramBean(h));
+      return h;
+    });
+  }
+
+  /**
+   * @param name name of a counter
+   * @return the counter, made the first time it is asked for
+   */
+  AtomicLong counter(String name) {
+    return counters.computeIfAbsent(name, n -> new AtomicLong());
+  }
+
+  /**
+   * registers a bean, replacing one of the same name left by an earlier server
+   * in this JVM
+   */
+  private void register(String name, DynamicMBean bean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName("paxos:" + name);
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(bean, objectName);
+    } catch (Exception e) {
+      // metrics are still kept and dumped without jmx
+      System.err.println(date.format(new Date()) + ": could not register " + name + ": " + e);
+    }
+  }
+
+  /**
+   * @return every histogram that recorded anything and every counter, one
+   *         histogram per line
+   */
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+      if (e.getValue().count() == 0) {
+        continue;
+      }
+      s.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+    }
+    for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+      s.append(e.getKey()).append('=').append(e.getValue().get()).append(' ');
+    }
+    return s.toString().trim();
+  }
+
+  /**
+   * read only bean with a fixed set of long attributes
+   */
+  private abstract static class ReadOnlyBean implements DynamicMBean {
+    abstract String[] names();
+
+    abstract String description();
+
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String a : attributes) {
+        try {
+          list.add(new Attribute(a, getAttribute(a)));
+        } catch (Exception e) {
+          // left out like the interface asks
+        }
+      }
+      return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+      String[] names = names();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.length];
+      for (int i = 0; i < names.length; i++) {
+        attributes[i] = new MBeanAttributeInfo(names[i], "long", names[i], true, false, false);
+      }
+      return new MBeanInfo(getClass().getName(), description(), attributes, null, null, null);
+    }
+  }
+
+  /**
+   * a histogram's count, mean, percentiles and max, in microseconds
+   */
+  private static class HistogramBean extends ReadOnlyBean {
+    private static final String[] NAMES = { "Count", "MeanMicros", "P50Micros", "P90Micros", "P99Micros",
+        "P999Micros", "MaxMicros" };
+    private final Histogram h;
+
+    HistogramBean(Histogram h) {
+      this.h = h;
+    }
+
+    String[] names() {
+      return NAMES;
+    }
+
+    String description() {
+      return "latency histogram";
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      switch (attribute) {
+        case "Count":
+          return h.count();
+        case "MeanMicros":
+          return h.mean() / 1000;
+        case "P50Micros":
+          return h.percentile(50) / 1000;
+        case "P90Micros":
+          return h.percentile(90) / 1000;
+        case "P99Micros":
+          return h.percentile(99) / 1000;
+        case "P999Micros":
+          return h.percentile(99.9) / 1000;
+        case "MaxMicros":
+          return h.max() / 1000;
+        default:
+          throw new AttributeNotFoundException(attribute);
+      }
+    }
+  }
+
+  /**
+   * every counter as an attribute of its own
+   */
+  private class CountersBean extends ReadOnlyBean {
+    String[] names() {
+      return counters.keySet().toArray(new String[0]);
+    }
+
+    String description() {
+      return "counters";
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      AtomicLong c = counters.get(attribute);
+      if (c == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return c.get();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioClient is one connection to a NioServer that looks like any other
+ * FileStore stub. Calls from every thread share the connection: each is
+ * written with its own id and parked until the reader thread sees the reply
+ * with that id, so many calls can be outstanding at once.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class NioClient implements InvocationHandler {
+  // how long a call waits for its reply
+  static final long TIMEOUT = Long.getLong("paxos.nio.timeout", 60000);
+
+  private final int port;
+  private final SocketChannel channel;
+  private final AtomicLong ids = new AtomicLong();
+  private final Map<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+  private volatile boolean closed = false;
+
+  private NioClient(int port) throws IOException {
+    this.port = port;
+    this.channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+    channel.socket().setTcpNoDelay(true);
+    Thread reader = new Thread(this::readReplies, "nio-client-" + port);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * @param port port of a NioServer
+   * @return a stub for the server
+   * @throws RemoteException if the server can't be reached
+   */
+  static FileStore connect(int port) throws RemoteException {
+    try {
+      return (FileStore) Proxy.newProxyInstance(FileStore.class.getClassLoader(), new Class<?>[] { FileStore.class },
+          new NioClient(port));
+    } catch (IOException e) {
+      throw new RemoteException("could not connect to " + port, e);
+    }
+  }
+
+  /**
+   * closes the connection behind a stub from connect, failing its calls
+   *
+   * @param stub a stub
+   */
+  static void close(FileStore stub) {
+    if (stub != null && Proxy.isProxyClass(stub.getClass())
+        && Proxy.getInvocationHandler(stub) instanceof NioClient) {
+      ((NioClient) Proxy.getInvocationHandler(stub)).close();
+    }
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      switch (method.getName()) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        default:
+          return "nio stub for " + port;
+      }
+    }
+
+    long id = ids.incrementAndGet();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0);
+    out.writeLong(id);
+    Wire.write(out, method.getName());
+    out.writeByte(args == null ? 0 : args.length);
+    if (args != null) {
+      for (Object arg : args) {
+        Wire.write(out, arg);
+      }
+    }
+    ByteBuffer request = ByteBuffer.wrap(bytes.toByteArray());
+    request.putInt(0, request.capacity() - 4);
+
+    CompletableFuture<Object> reply = new CompletableFuture<Object>();
+    pending.put(id, reply);
+    try {
+      synchronized (channel) {
+        if (closed) {
+          throw new RemoteException("connection to " + port + " is closed");
+        }
+        while (request.hasRemaining()) {
+          channel.write(request);
+        }
+      }
+      return reply.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      close();
+      throw e instanceof RemoteException ? e : new RemoteException("call to " + port + " failed", e);
+    } catch (ExecutionException e) {
+      throw e.getCause();
+    } catch (TimeoutException e) {
+      throw new RemoteException("call to " + port + " timed out");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("call to " + port + " interrupted", e);
+    } finally {
+      pending.remove(id);
+    }
+  }
+
+  /**
+   * reads replies and hands each to the call waiting for it
+   */
+  private void readReplies() {
+    ByteBuffer header = ByteBuffer.allocate(4);
+    try {
+      while (true) {
+        header.clear();
+        readFully(header);
+        int length = header.getInt(0);
+        if (length < 9 || length > NioServer.MAX_FRAME) {
+          throw new IOException("bad frame length " + length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        readFully(frame);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.array()));
+        long id = in.readLong();
+        boolean ok = in.readByte() == 1;
+        Object value = Wire.read(in);
+        CompletableFuture<Object> reply = pending.get(id);
+        if (reply != null) {
+          if (ok) {
+            reply.complete(value);
+          } else {
+            reply.completeExceptionally(new ServerException("server " + port + ": " + value));
+          }
+        }
+      }
+    } catch (IOException e) {
+      close();
+    }
+  }
+
+  private void readFully(ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      if (channel.read(buf) < 0) {
+        throw new IOException("connection closed");
+      }
+    }
+  }
+
+  private void close() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // closing anyway
+    }
+    for (CompletableFuture<Object> reply : pending.values()) {
+      reply.completeExceptionally(new RemoteException("connection to " + port + " closed"));
+    }
+  }
+}
@@ -0,0 +1,269 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * NioServer serves the FileStore calls of one server over a length prefixed
+ * binary protocol, as an alternative to RMI. One selector thread does all the
+ * socket work and the calls run on a worker pool, so a connection can have
+ * many calls outstanding and their replies go back in whatever order they
+ * finish. The calls run on virtual threads when the JVM has them.
+ *
+ * A request is [length int][call id long][method name][argument count byte]
+ * [arguments], a reply is [length int][call id long][ok byte][result or error
+ * message]. Values are written by Wire.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class NioServer implements Runnable {
+  // biggest frame we accept, a chunk plus room for the rest of the call
+  static final int MAX_FRAME = 64 << 20;
+  // -Dpaxos.transport=nio sends the calls between servers and from the client
+  // over this instead of RMI
+  static final boolean ENABLED = "nio".equals(System.getProperty("paxos.transport"));
+  // a server's NIO port is its RMI port plus this
+  static final int OFFSET = Integer.getInteger("paxos.nio.offset", 1000);
+
+  private final FileStore target;
+  private final int port;
+  private final ExecutorService workers;
+  private final Map<String, Method> methods = new HashMap<String, Method>();
+  private final ConcurrentLinkedQueue<Connection> writable = new ConcurrentLinkedQueue<Connection>();
+  private Selector selector;
+  private volatile boolean closed = false;
+
+  /**
+   * one client or peer connection
+   */
+  private static class Connection {
+    final SocketChannel channel;
+    ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+    final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * Constructor for a server that isn't listening yet
+   *
+   * @param target the server whose calls are served
+   * @param port   port to listen on
+   */
+  NioServer(FileStore target, int port) {
+    this.target = target;
+    this.port = port;
+    this.workers = Admission.newExecutor("nio-" + port, 0);
+    for (Method m : FileStore.class.getMethods()) {
+      methods.put(m.getName(), m);
+    }
+  }
+
+  /**
+   * starts listening and serving on a thread of its own
+   *
+   * @throws IOException if the port can't be bound
+   */
+  void start() throws IOException {
+    selector = Selector.open();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress("localhost", port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    Thread t = new Thread(this, "nio-selector-" + port);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * stops listening and drops every connection, calls in progress get no reply
+   */
+  void close() {
+    closed = true;
+    selector.wakeup();
+    workers.shutdownNow();
+  }
+
+  public void run() {
+    while (!closed) {
+      try {
+        selector.select();
+        // replies finished by the workers since the last select
+        for (Connection c = writable.poll(); c != null; c = writable.poll()) {
+          SelectionKey key = c.channel.keyFor(selector);
+          if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          }
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (key.isAcceptable()) {
+              SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+              if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+              }
+            } else {
+              if (key.isReadable()) {
+                read(key);
+              }
+              if (key.isValid() && key.isWritable()) {
+                write(key);
+              }
+            }
+          } catch (IOException e) {
+            key.cancel();
+            key.channel().close();
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("nio server " + port + ": " + e);
+      }
+    }
+
+    for (SelectionKey key : selector.keys()) {
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        // closing anyway
+      }
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      // closing anyway
+    }
+  }
+
+  /**
+   * reads what arrived and hands every whole request to the workers
+   */
+  private void read(SelectionKey key) throws IOException {
+    Connection c = (Connection) key.attachment();
+    if (c.channel.read(c.in) < 0) {
+      throw new IOException("connection closed");
+    }
+
+    c.in.flip();
+    while (c.in.remaining() >= 4) {
+      int length = c.in.getInt(c.in.position());
+      if (length < 8 || length > MAX_FRAME) {
+        throw new IOException("bad frame length " + length);
+      }
+      if (c.in.remaining() < 4 + length) {
+        break;
+      }
+      byte[] frame = new byte[length];
+      c.in.position(c.in.position() + 4);
+      c.in.get(frame);
+      workers.execute(() -> call(c, frame));
+    }
+    c.in.compact();
+
+    // make room for a frame bigger than the buffer
+    if (c.in.position() >= 4 && c.in.getInt(0) + 4 > c.in.capacity()) {
+      ByteBuffer bigger = ByteBuffer.allocate(c.in.getInt(0) + 4);
+      c.in.flip();
+      bigger.put(c.in);
+      c.in = bigger;
+    }
+  }
+
+  /**
+   * writes queued replies until the socket is full
+   */
+  private void write(SelectionKey key) throws IOException {
+    Connection c = (Connection) key.attachment();
+    synchronized (c.out) {
+      while (!c.out.isEmpty()) {
+        ByteBuffer buf = c.out.peekFirst();
+        c.channel.write(buf);
+        if (buf.hasRemaining()) {
+          return;
+        }
+        c.out.pollFirst();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  /**
+   * runs one call on a worker and queues its reply
+   */
+  private void call(Connection c, byte[] frame) {
+    long id = 0;
+    byte ok = 1;
+    Object result;
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+      id = in.readLong();
+      Method m = methods.get((String) Wire.read(in));
+      int argc = in.readByte();
+      Object[] args = new Object[argc];
+      for (int i = 0; i < argc; i++) {
+        args[i] = Wire.read(in);
+      }
+      if (m == null || m.getParameterCount() != argc) {
+        throw new IOException("no such call");
+      }
+      result = m.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      ok = 0;
+      result = String.valueOf(e.getCause());
+    } catch (Exception e) {
+      ok = 0;
+      result = String.valueOf(e);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(0);
+      out.writeLong(id);
+      out.writeByte(ok);
+      Wire.write(out, result);
+    } catch (IOException e) {
+      // only a result we can't encode gets here
+      bytes.reset();
+      try {
+        out.writeInt(0);
+        out.writeLong(id);
+        out.writeByte(0);
+        Wire.write(out, String.valueOf(e));
+      } catch (IOException never) {
+        return;
+      }
+    }
+    ByteBuffer reply = ByteBuffer.wrap(bytes.toByteArray());
+    reply.putInt(0, reply.capacity() - 4);
+
+    synchronized (c.out) {
+      c.out.add(reply);
+    }
+    writable.add(c);
+    selector.wakeup();
+  }
+}
@@ -0,0 +1,32 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * NoopCodec keeps contents as they are. Used for small files and anything
+ * that doesn't compress.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class NoopCodec implements Codec {
+  static final NoopCodec INSTANCE = new NoopCodec();
+
+  public byte id() {
+    return 0;
+  }
+
+  public String name() {
+    return "none";
+  }
+
+  public byte[] encode(byte[] plain, int off, int len) {
+    return off == 0 && len == plain.length ? plain : Arrays.copyOfRange(plain, off, off + len);
+  }
+
+  public byte[] decode(byte[] encoded, int off, int len, int plainLength) throws IOException {
+    if (len != plainLength) {
+      throw new IOException("expected " + plainLength + " bytes, got " + len);
+    }
+    return off == 0 && len == encoded.length ? encoded : Arrays.copyOfRange(encoded, off, off + len);
+  }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Operation is a single client write, an upload or a remove of one file. A
+ * round of consensus decides a list of them, which every replica applies in
+ * order. An adopt is an upload of a file moving in from another group, only
+ * applied if the file was never written in this group.
+ *
+ * Contents are compressed with the configured codec whenever an operation is
+ * sent to another server.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class Operation implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final String command;
+  final String fileName;
+  final String contents;
+
+  // set for a chunked upload, whose contents are staged on disk on every
+  // server under this id instead of being carried in the operation
+  final String staged;
+  final long length;
+
+  // version the write gives the file, decided along with the write
+  final long version;
+
+  /**
+   * Constructor for an operation
+   *
+   * @param command  upload, adopt or remove
+   * @param fileName name of the file being changed
+   * @param contents contents to write for an upload
+   */
+  Operation(String command, String fileName, String contents) {
+    this(command, fileName, contents, null, 0);
+  }
+
+  /**
+   * Constructor for an operation that may refer to a staged upload
+   *
+   * @param command  upload, adopt or remove
+   * @param fileName name of the file being changed
+   * @param contents contents to write for an upload, null if staged
+   * @param staged   id of the staged upload, or null
+   * @param length   number of bytes staged
+   */
+  Operation(String command, String fileName, String contents, String staged, long length) {
+    this(command, fileName, contents, staged, length, 0);
+  }
+
+  /**
+   * Constructor for an operation with its version
+   *
+   * @param command  upload, adopt or remove
+   * @param fileName name of the file being changed
+   * @param contents contents to write for an upload, null if staged
+   * @param staged   id of the staged upload, or null
+   * @param length   number of bytes staged
+   * @param version  version the write gives the file
+   */
+  Operation(String command, String fileName, String contents, String staged, long length, long version) {
+    this.command = command;
+    this.fileName = fileName;
+    this.contents = contents;
+    this.staged = staged;
+    this.length = length;
+    this.version = version;
+  }
+
+  /**
+   * @param version the version decided for the write
+   * @return a copy of this operation with the version set
+   */
+  Operation withVersion(long version) {
+    return new Operation(command, fileName, contents, staged, length, version);
+  }
+
+  /**
+   * sends a packed copy in place of the operation
+   */
+  private Object writeReplace() {
+    return new Packed(this);
+  }
+
+  /**
+   * serialized form of an operation, with its contents packed by a codec
+   */
+  private static class Packed implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String command;
+    private final String fileName;
+    private final byte[] contents;
+    private final String staged;
+    private final long length;
+    private final long version;
+
+    Packed(Operation op) {
+      this.command = op.command;
+      this.fileName = op.fileName;
+      this.contents = op.contents == null ? null : pack(op.contents);
+      this.staged = op.staged;
+      this.length = op.length;
+      this.version = op.version;
+    }
+
+    private Object readResolve() throws InvalidObjectException {
+      try {
+        return new Operation(command, fileName, contents == null ? null : unpack(contents), staged, length, version);
+      } catch (IOException e) {
+        throw new InvalidObjectException("bad contents for " + fileName + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param contents contents of an upload
+   * @return the contents packed with the configured codec
+   */
+  static byte[] pack(String contents) {
+    byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+    return Codecs.pack(bytes, 0, bytes.length, Codecs.configured());
+  }
+
+  /**
+   * @param packed contents from pack
+   * @return the contents
+   * @throws IOException if the contents are damaged
+   */
+  static String unpack(byte[] packed) throws IOException {
+    return new String(Codecs.unpack(packed), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return rough number of bytes the operation adds to a batch
+   */
+  long size() {
+    return fileName.length() + (contents == null ? 0 : contents.length());
+  }
+}
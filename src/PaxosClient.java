@@ -1,14 +1,23 @@
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.rmi.Naming;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.text.SimpleDateFormat;
 
 /**
@@ -18,111 +27,330 @@ import java.text.SimpleDateFormat;
  *
  * java PaxosClient 9090 9091 9092 9093 9094
  *
+ * With a shard map the files are split between groups of servers, and each
+ * request goes to the group of its file. The ports then come from the map.
+ *
+ * java -Dpaxos.shards=shards.txt PaxosClient
+ *
+ * Downloads and listings ask a majority of the group by default. With
+ * -Dpaxos.read=lease they go to the group's multi-paxos leader, which answers
+ * alone while it holds a lease, and with -Dpaxos.read=stale to any one server,
+ * which may not have the newest writes yet.
+ *
  * Example: <command> <file> <content>
  *
  * @author Neil Routley, Sanchit Saini, Abasiama Akpan
  * @since 04/24/2020
  */
 public class PaxosClient {
-  static FileStore[] serverRpcArr;
+  static Metrics metrics = new Metrics("client");
+  static StubRegistry stubs = new StubRegistry(metrics);
   static int[] serverArr;
+  static volatile ShardMap shards;
+  static Map<Integer, QuorumReader> readers = new ConcurrentHashMap<Integer, QuorumReader>();
+  static Map<Integer, Integer> leaders = new ConcurrentHashMap<Integer, Integer>();
+  static ClientCache cache;
   static SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
 
+  // largest chunk sent in one rpc by uploads and downloads
+  static final int CHUNK = 1 << 20;
+
+  // how often a busy server is asked again, and the first wait in between
+  static final int BUSY_RETRIES = Integer.getInteger("paxos.busy.retries", 5);
+  static final long BUSY_BACKOFF = Long.getLong("paxos.busy.backoff", 50);
+
+  // how downloads and listings are read: quorum, lease or stale
+  static final String READ = System.getProperty("paxos.read", "quorum");
+
+  // latency of each command as the user sees it, and writes that aborted
+  static Histogram uploadLatency = metrics.histogram("upload");
+  static Histogram removeLatency = metrics.histogram("remove");
+  static Histogram downloadLatency = metrics.histogram("download");
+  static Histogram listLatency = metrics.histogram("list");
+  static AtomicLong aborts = metrics.counter("aborts");
+
+  // reads the leader answered alone, lease reads that went to a quorum
+  // instead, and reads from one server that may be behind
+  static AtomicLong leaseReads = metrics.counter("reads.lease");
+  static AtomicLong fallbacks = metrics.counter("reads.fallback");
+  static AtomicLong staleReads = metrics.counter("reads.stale");
+
+  // uploads sent as deltas, and the bytes they didn't have to send
+  static AtomicLong deltaUploads = metrics.counter("delta.uploads");
+  static AtomicLong deltaSaved = metrics.counter("delta.saved");
+
   // file path for client directory. Could be user directory
   private static String filepath;
+  private static File tempDir;
+
+  /**
+   * @param group ports of the servers of a group
+   * @return the quorum reader for the group
+   */
+  static QuorumReader reader(int[] group) {
+    return readers.computeIfAbsent(group[0], port -> QuorumReader.fromProperties(stubs, group));
+  }
+
+  /**
+   * reads the shard map file again
+   *
+   * @return true if the map could be read
+   */
+  private static boolean reloadShards() {
+    try {
+      shards = ShardMap.fromProperties(serverArr);
+      return true;
+    } catch (IOException e) {
+      System.out.println("Could not read the shard map: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * reads the shard map file again after a group answered that a file isn't
+   * its own
+   *
+   * @param fileName name of the file
+   * @param group    ports of the servers of the group that answered
+   * @return true if the file now belongs to another group
+   */
+  private static boolean regroup(String fileName, int[] group) {
+    return reloadShards() && !Arrays.equals(shards.group(fileName), group);
+  }
 
   /**
-   * setup the RMI connections for all of the servers
+   * try to get a value based on a key from the servers of a group. majority
+   * consesus required, the servers are asked in parallel and we stop as soon
+   * as a majority agree.
+   *
+   * @param group ports of the servers of the group
+   * @param msg   the string message being passed to the servers
+   * @return response from the consensus, or null if no majority agreed
    */
-  private static void setupConnections() {
-    for (int i = 0; i < serverArr.length; i++) {
+  static String tryGet(int[] group, String msg) {
+    QuorumReader.Result<String> res = reader(group).read(server -> whenNotBusy(server, s -> s.clientRequest(msg)),
+        value -> value);
+    return res == null ? null : res.value;
+  }
+
+  /**
+   * reads from the leader of a group alone. The last leader we heard of is
+   * asked first, and a server that can't answer tells us who the leader is.
+   *
+   * @param group ports of the servers of the group
+   * @param read  the read, returning null if the server holds no lease
+   * @return the leader's answer and its port, or null if no server could
+   *         answer alone and a quorum has to be asked
+   */
+  static <T> QuorumReader.Result<T> leaseRead(int[] group, QuorumReader.Read<T> read) {
+    Integer known = leaders.get(group[0]);
+    int port = known == null ? group[0] : known;
+    for (int tries = 0; tries <= group.length; tries++) {
+      FileStore server = null;
       try {
-        serverRpcArr[i] = (FileStore) Naming.lookup("rmi://localhost:" + serverArr[i] + "/filestore" + serverArr[i]);
-      } catch (Exception e) {
+        server = stubs.get(port);
+        T value = read.call(server);
+        if (value != null) {
+          leaders.put(group[0], port);
+          leaseReads.incrementAndGet();
+          return new QuorumReader.Result<T>(value, Collections.singletonList(port));
+        }
+        int leader = server.leader();
+        if (leader == -1 || leader == port) {
+          break;
+        }
+        port = leader;
+      } catch (RemoteException e) {
+        stubs.failed(port, server, e);
+        port = group[(indexOf(group, port) + 1) % group.length];
       }
     }
+    leaders.remove(group[0]);
+    fallbacks.incrementAndGet();
+    return null;
   }
 
   /**
-   * try to get a value based on a key from all the servers. majority consesus
-   * required.
+   * reads from any one server of a group, which may not have the newest
+   * writes yet
    *
-   * @param msg the string message being passed to the servers
-   * @return response from the consensus.
+   * @param group ports of the servers of the group
+   * @param read  the read
+   * @return the first answer and the port of the server that gave it, or null
+   *         if no server answered
    */
-  private static String tryGet(String msg) {
-    HashMap<String, Integer> map = new HashMap<String, Integer>();
-    String res = "";
-    // check all servers
-    for (int i = 0; i < 5; i++) {
-      // try each server here and save the response
-      res = tryRmi(i, msg);
-
-      // check map to see if we have a matching key (entire return statement)
-      // if we do, +1 our count for that result
-      if (map.containsKey(res)) {
-        int count = map.get(res);
-        map.put(res, count + 1);
-        // else we add that result to our HM and give it an initial count of 1
-      } else {
-        map.put(res, 1);
+  static <T> QuorumReader.Result<T> staleRead(int[] group, QuorumReader.Read<T> read) {
+    int first = ThreadLocalRandom.current().nextInt(group.length);
+    for (int i = 0; i < group.length; i++) {
+      int port = group[(first + i) % group.length];
+      FileStore server = null;
+      try {
+        server = stubs.get(port);
+        T value = read.call(server);
+        staleReads.incrementAndGet();
+        return new QuorumReader.Result<T>(value, Collections.singletonList(port));
+      } catch (RemoteException e) {
+        stubs.failed(port, server, e);
       }
     }
+    return null;
+  }
 
-    // temp result key where we will store the response
-    String key = "";
-    // temp count for how many of each result we received
-    int val = -1;
-    // check the whole map to see the highest result count
-    for (Map.Entry<String, Integer> entry : map.entrySet()) {
-      if (entry.getValue() > val) {
-        key = entry.getKey();
-        val = entry.getValue();
+  /**
+   * @return the index of a port in a group, -1 if it isn't there
+   */
+  private static int indexOf(int[] group, int port) {
+    for (int i = 0; i < group.length; i++) {
+      if (group[i] == port) {
+        return i;
       }
     }
+    return -1;
+  }
 
-    // if our highest result value is above our consenses number
-    // set that as the real result
-    if (val > 2) {
-      res = key;
-      // otherwise, return some kind of bad response
-    } else {
-      res = "The key you entered does not exist!";
+  /**
+   * prints the names of the files starting with a prefix, fetching them a page
+   * at a time. Each page needs a majority of the servers of its group to agree
+   * on it. Each group lists its names in order, so every name up to the
+   * lowest last name of the groups with more pages can be printed before
+   * those groups are asked for their next page.
+   *
+   * @param prefix only names starting with this are listed
+   */
+  private static void list(String prefix) {
+    List<int[]> groups = shards.groups();
+    String[] cursors = new String[groups.size()];
+    boolean[] more = new boolean[groups.size()];
+    boolean[] ask = new boolean[groups.size()];
+    Arrays.fill(ask, true);
+    TreeSet<String> names = new TreeSet<String>();
+    while (true) {
+      String low = null;
+      for (int g = 0; g < groups.size(); g++) {
+        if (ask[g]) {
+          cursors[g] = listPage(groups.get(g), prefix, cursors[g], names);
+          more[g] = cursors[g] != null;
+          ask[g] = false;
+        }
+        if (more[g] && (low == null || cursors[g].compareTo(low) < 0)) {
+          low = cursors[g];
+        }
+      }
+
+      for (String name : low == null ? names : names.headSet(low, true)) {
+        System.out.println(name);
+      }
+      if (low == null) {
+        if (READ.equals("stale")) {
+          System.out.println("(stale read, may not have the newest writes)");
+        }
+        return;
+      }
+      names.headSet(low, true).clear();
+      for (int g = 0; g < groups.size(); g++) {
+        ask[g] = more[g] && cursors[g].equals(low);
+      }
     }
+  }
 
-    return res;
+  /**
+   * fetches one page of a group's listing
+   *
+   * @param group  ports of the servers of the group
+   * @param prefix only names starting with this are listed
+   * @param cursor only names after this are listed, null for the start
+   * @param names  gets the names in the page
+   * @return the cursor for the next page, or null if this was the last
+   */
+  private static String listPage(int[] group, String prefix, String cursor, TreeSet<String> names) {
+    String msg = "list prefix=" + prefix + (cursor == null ? "" : " after=" + cursor);
+    QuorumReader.Result<String> one = null;
+    if (READ.equals("lease")) {
+      one = leaseRead(group, server -> {
+        String res = whenNotBusy(server, s -> s.clientRequest(msg + " read=lease"));
+        return res.equals(Lease.NOT_LEADER) ? null : res;
+      });
+    } else if (READ.equals("stale")) {
+      one = staleRead(group, server -> whenNotBusy(server, s -> s.clientRequest(msg)));
+    }
+    String page = one != null ? one.value : tryGet(group, msg);
+    if (page == null || Admission.busy(page)) {
+      System.out.println(page == null ? "The servers of " + group[0] + " did not agree on a listing." : page);
+      return null;
+    }
+    String next = null;
+    int more = page.lastIndexOf("more after ");
+    if (more >= 0 && page.indexOf('\n', more) < 0) {
+      next = page.substring(more + "more after ".length());
+      page = page.substring(0, Math.max(0, more - 1));
+    }
+    if (!page.isEmpty()) {
+      names.addAll(Arrays.asList(page.split("\n")));
+    }
+    return next;
   }
 
   /**
-   * try to submit a put or delete command to any avaliable server.
+   * try to submit a put or delete command to any avaliable server of the
+   * file's group.
    *
-   * @param msg put or delete message being sent
+   * @param fileName name of the file
+   * @param msg      put or delete message being sent
    * @return response from trying to commit a put or delete
    */
-  private static String tryPutDelete(String msg) {
+  private static String tryPutDelete(String fileName, String msg) {
     String res = "";
-    for (int i = 0; i < 5; i++) {
-      res = tryRmi(i, msg);
-      if (!res.equals("")) {
+    int[] group = shards.group(fileName);
+    for (int port : group) {
+      res = tryRmi(port, msg);
+      if (!res.equals("") && !Admission.busy(res)) {
         break;
       }
     }
+    if (res.equals(ShardMap.WRONG_GROUP) && regroup(fileName, group)) {
+      return tryPutDelete(fileName, msg);
+    }
+    return res;
+  }
+
+  /**
+   * make a call, asking again with a growing wait in between while the server
+   * answers that it is busy
+   *
+   * @param server the server
+   * @param call   the call
+   * @return the server's answer, still Admission.BUSY if it stayed busy
+   * @throws RemoteException if the call fails
+   */
+  private static String whenNotBusy(FileStore server, QuorumReader.Read<String> call) throws RemoteException {
+    String res = call.call(server);
+    for (int i = 0; Admission.busy(res) && i < BUSY_RETRIES; i++) {
+      try {
+        Thread.sleep(BUSY_BACKOFF << i);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      res = call.call(server);
+    }
     return res;
   }
 
   /**
    * try to submit a query to a specified server. helper function.
    *
-   * @param server port which the server is on
-   * @param msg    message being sent to the server
+   * @param port port which the server is on
+   * @param msg  message being sent to the server
    * @return response from attempted query
    */
-  private static String tryRmi(int server, String msg) {
-    setupConnections();
+  private static String tryRmi(int port, String msg) {
     String response;
+    FileStore server = null;
     try {
-      response = serverRpcArr[Integer.valueOf(server)].clientRequest(msg);
+      server = stubs.get(port);
+      response = whenNotBusy(server, s -> s.clientRequest(msg));
     } catch (Exception e) {
+      stubs.failed(port, server, e);
       response = "";
     }
     return response;
@@ -134,97 +362,290 @@ public class PaxosClient {
    */
   private static void createDirectory() {
     String currentDir = System.getProperty("user.dir");
-    File tempDir = new File(currentDir + "/ClientFiles/");
+    tempDir = new File(currentDir + "/ClientFiles/");
     boolean exists = tempDir.exists();
     if (!exists) {
       tempDir.mkdir();
     }
     filepath = currentDir + "/ClientFiles/";
+    cache = new ClientCache(tempDir);
   }
 
   /**
-   * A function to do a read from the 'ClientFiles' directory
+   * Streams a file from the 'ClientFiles' directory to any avaliable server of
+   * the file's group in chunks, so only one chunk is in memory and binary
+   * files upload as is. A new version of a file the server already has is
+   * sent as a delta from the old one when it is big enough.
    * 
    * @param fileName name of the file to be read in the directory
-   * @return the file name and file contents / unsuccessful error message
+   * @return response from the upload / unsuccessful error message
    */
-  private static String readLocalFile(String fileName) {
-    String fileContents = "";
-    // here we need to do the local file read from the fileName and fill the
-    // fileContents with what is in that file.
+  private static String upload(String fileName) {
     File file = new File(filepath + fileName);
-    // StringBuilder sb = new StringBuilder();
+    if (!file.isFile()) {
+      return "Something went wrong. File reading failed.";
+    }
+
+    String res = "";
+    int[] group = shards.group(fileName);
+    for (int port : group) {
+      FileStore server = null;
+      try {
+        server = stubs.get(port);
+        res = Delta.MIN > 0 && file.length() >= Delta.MIN ? uploadDelta(server, fileName, file) : null;
+        if (res == null) {
+          String uploadId = stream(server, fileName, file);
+          res = whenNotBusy(server, s -> s.finishUpload(uploadId));
+        }
+        if (res.equals(ShardMap.WRONG_GROUP) && regroup(fileName, group)) {
+          return upload(fileName);
+        }
+        if (!Admission.busy(res)) {
+          return res;
+        }
+      } catch (RemoteException e) {
+        stubs.failed(port, server, e);
+      } catch (IOException e) {
+        return "Something went wrong. File reading failed.";
+      }
+    }
+    return res;
+  }
+
+  /**
+   * sends a file as a delta from the version a server has, made against the
+   * server's block checksums
+   *
+   * @param server   the server
+   * @param fileName name of the file
+   * @param file     the file in the 'ClientFiles' directory
+   * @return the server's answer, or null if the file has to be sent whole
+   * @throws IOException if the file can't be read or the server fails
+   */
+  private static String uploadDelta(FileStore server, String fileName, File file) throws IOException {
+    if (file.length() > Integer.MAX_VALUE) {
+      return null;
+    }
+    int blockSize = Delta.blockSize(file.length());
+    List<Long> sums = server.blockSums(fileName, blockSize);
+    if (sums.isEmpty()) {
+      return null;
+    }
+    // a hidden name of its own, so it can't clobber a file the user keeps
+    File delta = File.createTempFile(".delta-", null, tempDir);
     try {
-      Scanner myReader = new Scanner(file);
-      while (myReader.hasNextLine()) {
-        fileContents += myReader.nextLine() + "\n";
+      if (Delta.encode(file, FileIndex.digest(file), sums.get(0), blockSize, sums.subList(1, sums.size()),
+          delta) == 0) {
+        // nothing in common, the delta would only be bigger
+        return null;
       }
-      // removes the trailing new line character \n
-      fileContents = fileContents.substring(0, fileContents.length() - 1);
+      String uploadId = stream(server, fileName, delta);
+      String res = whenNotBusy(server, s -> s.finishDelta(uploadId));
+      if (res.equals(Delta.STALE)) {
+        return null;
+      }
+      deltaUploads.incrementAndGet();
+      deltaSaved.addAndGet(file.length() - delta.length());
+      return res;
+    } finally {
+      delta.delete();
+    }
+  }
 
-      myReader.close();
+  /**
+   * stages a file on a server in chunks
+   *
+   * @param server   the server
+   * @param fileName name the upload is for
+   * @param file     the file to send
+   * @return id of the upload
+   * @throws IOException if the file can't be read or the server fails
+   */
+  private static String stream(FileStore server, String fileName, File file) throws IOException {
+    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      String uploadId = server.beginUpload(fileName);
+      ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+      long offset = 0;
+      int read;
+      while ((read = in.read(buf, offset)) > 0) {
+        server.uploadChunk(uploadId, offset, Codecs.pack(buf.array(), 0, read, Codecs.configured()));
+        offset += read;
+        buf.clear();
+      }
+      return uploadId;
+    }
+  }
 
-    } catch (FileNotFoundException e) {
-      // e.printStackTrace();
-      return "Something went wrong. File reading failed.";
+  /**
+   * Streams a file into the 'ClientFiles' directory. A majority of the servers
+   * has to agree on the file's digest, or the leader alone with a lease read,
+   * then the contents are read chunk by chunk from just one of the servers
+   * that agreed, moving on to the next one if it fails or sends something
+   * else. Nothing is read if our copy is already at the version they have.
+   * 
+   * @param fileName name of the file
+   * @return download command status
+   */
+  private static String download(String fileName) {
+    List<Integer> holders = new ArrayList<Integer>();
+    FileMeta meta = tryStat(fileName, holders);
+    if (meta == null) {
+      return "download failed";
+    }
+    if (cache.version(fileName, meta.digest) >= meta.version) {
+      return labelled("Not modified.", holders);
     }
 
-    return "upload " + fileName + " " + fileContents;
+    File part = new File(filepath + fileName + ".part");
+    for (int server : holders) {
+      if (fetch(server, meta, part)) {
+        try {
+          Files.move(part.toPath(), new File(filepath + fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+          cache.put(meta);
+          return labelled("Successful!", holders);
+        } catch (IOException e) {
+          e.printStackTrace();
+          break;
+        }
+      }
+    }
+    part.delete();
+    return "download failed";
   }
 
   /**
-   * A function that writes to files in the 'ClientFiles' directory
-   * 
+   * @param res     result of a download
+   * @param holders ports of the servers the file was read from
+   * @return the result, labelled if it was a stale read
+   */
+  private static String labelled(String res, List<Integer> holders) {
+    return READ.equals("stale") && !holders.isEmpty() ? res + " (stale read from " + holders.get(0) + ")" : res;
+  }
+
+  /**
+   * ask the file's group for its metadata. A file that isn't there may not
+   * have been moved to its group yet after a group was added, so then the
+   * other groups are asked too.
+   *
    * @param fileName name of the file
-   * @param response the contents to be written
-   * @return write command status
+   * @param holders  gets the ports of the servers that agreed
+   * @return metadata the majority agreed on, or null if there is no majority
+   *         or no group has such a file
+   */
+  private static FileMeta tryStat(String fileName, List<Integer> holders) {
+    int[] owner = shards.group(fileName);
+    FileMeta meta = tryStat(owner, fileName, holders);
+    for (int[] group : shards.groups()) {
+      if (meta == null && group != owner) {
+        meta = tryStat(group, fileName, holders);
+      }
+    }
+    return meta;
+  }
+
+  /**
+   * ask the servers of a group for a file's metadata. majority consesus on the
+   * digest required, unless paxos.read asks for a lease or stale read and
+   * one server can answer it.
+   *
+   * @param group    ports of the servers of the group
+   * @param fileName name of the file
+   * @param holders  gets the ports of the servers that agreed
+   * @return metadata the majority agreed on, or null if there is no majority
+   *         or the majority has no such file
+   */
+  private static FileMeta tryStat(int[] group, String fileName, List<Integer> holders) {
+    QuorumReader.Result<FileMeta> res = null;
+    if (READ.equals("lease")) {
+      res = leaseRead(group, server -> server.leaseStat(fileName));
+    } else if (READ.equals("stale")) {
+      res = staleRead(group, server -> server.stat(fileName));
+    }
+    if (res == null) {
+      res = reader(group).read(server -> server.stat(fileName), meta -> meta == null ? "" : meta.digest);
+    }
+    if (res == null || res.value == null || res.value.removed()) {
+      return null;
+    }
+    holders.addAll(res.servers);
+    return res.value;
+  }
+
+  /**
+   * reads a whole file from one server and checks it against the digest the
+   * majority agreed on
+   *
+   * @param server port of the server to read from
+   * @param meta   metadata the majority agreed on
+   * @param part   file to write the contents to
+   * @return true if the contents match the digest
    */
-  private static String writeFile(String fileName, String response) {
-    String res = "download failed";
-    // prepare the response to write to the new file
-    String[] responseArr = response.split(" ");
-    StringBuilder sb = new StringBuilder();
-    for (int i = 1; i < responseArr.length; i++) {
-      sb.append(responseArr[i]);
-      sb.append(" ");
-    }
-
-    try (Writer writer = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(filepath + fileName), "utf-8"))) {
-      writer.write(sb.toString());
-      res = "Successful!";
+  private static boolean fetch(int server, FileMeta meta, File part) {
+    MessageDigest md = FileIndex.sha256();
+    FileStore stub = null;
+    try (FileChannel out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      stub = stubs.get(server);
+      long offset = 0;
+      while (true) {
+        byte[] packed = stub.downloadChunk(meta.fileName, offset, CHUNK, Codecs.configured().name());
+        if (packed == null) {
+          return false;
+        }
+        byte[] chunk = Codecs.unpack(packed);
+        if (offset + chunk.length > meta.size) {
+          return false;
+        }
+        md.update(chunk);
+        out.write(ByteBuffer.wrap(chunk), offset);
+        offset += chunk.length;
+        if (chunk.length < CHUNK) {
+          break;
+        }
+      }
+      return offset == meta.size && FileIndex.hex(md.digest()).equals(meta.digest);
+    } catch (RemoteException e) {
+      stubs.failed(server, stub, e);
+      return false;
     } catch (IOException e) {
       e.printStackTrace();
+      return false;
     }
-    return res;
   }
 
   /**
-   * Main Client method that connects to as many servers as you pass arguments.
-   * You should pass 5 port arguments for this assignment
+   * Main Client method that connects to as many servers as you pass arguments,
+   * or to the groups of the shard map
    *
-   * @param args should pass 5 port arguments
+   * @param args ports of the servers, none with a shard map
    */
   public static void main(String args[]) {
     serverArr = new int[args.length];
 
-    if (args.length == 5) {
+    if (args.length >= 1 || ShardMap.configured()) {
       for (int i = 0; i < args.length; i++) {
         serverArr[i] = Integer.valueOf(args[i]);
       }
     } else {
       System.out.println("Usage: java -jar FileClient.jar <port1> <port2> <port3> <port4> <port5>");
+      System.out.println("   or: java -Dpaxos.shards=<shard map file> -jar FileClient.jar");
       System.exit(1);
     }
 
+    if (!reloadShards()) {
+      System.exit(1);
+    }
+    if (ShardMap.configured()) {
+      serverArr = shards.ports();
+    }
     createDirectory();
 
-    serverRpcArr = new FileStore[serverArr.length];
     Scanner sc = new Scanner(System.in);
 
     try {
       // command loop with initial info prompt
-      System.out.println("Commands (upload <fileName>, download <fileName>, list, remove <fileName>)");
+      System.out.println(
+          "Commands (upload <fileName>, download <fileName>, list [prefix], remove <fileName>, reshard, stats)");
       while (true) {
         // user prompt
         System.out.print("Enter command:");
@@ -232,15 +653,19 @@ public class PaxosClient {
         String[] myArray = operation.trim().split(" ");
 
         String res = "";
+        long start = System.nanoTime();
 
-        if (myArray.length == 1 && myArray[0].toLowerCase().equals("list")) {
-          res = tryGet("list");
-          System.out.println(res);
+        if (myArray.length <= 2 && myArray[0].toLowerCase().equals("list")) {
+          // print the listing a page at a time
+          list(myArray.length == 2 ? myArray[1] : "");
+          listLatency.recordSince(start);
         } else if (myArray.length == 2 && myArray[0].toLowerCase().equals("upload")) {
-          // here we have to read from a file, and create our new "operation" message
-          // this will then be sent to the tryPutDelete() function
-          String requestMessage = readLocalFile(myArray[1]);
-          res = tryPutDelete(requestMessage);
+          // stream the local file to the servers in chunks
+          res = upload(myArray[1]);
+          uploadLatency.recordSince(start);
+          if (res.equals("Aborted.")) {
+            aborts.incrementAndGet();
+          }
           if (res.equals("")) {
             System.out.println("ERROR - No response.");
           } else {
@@ -248,22 +673,40 @@ public class PaxosClient {
           }
         } else if (myArray.length == 2 && myArray[0].toLowerCase().equals("remove")) {
           // should be our delete operation with no modification needed
-          res = tryPutDelete(operation);
+          res = tryPutDelete(myArray[1], operation);
+          removeLatency.recordSince(start);
+          if (res.equals("Aborted.")) {
+            aborts.incrementAndGet();
+          }
           if (res.equals("")) {
             System.out.println("ERROR - No response.");
           } else {
             System.out.println(res);
           }
         } else if (myArray.length == 2 && myArray[0].toLowerCase().equals("download")) {
-          res = tryGet(operation);
-          if (res.equals("")) {
-            System.out.println("ERROR - No response.");
-          } else {
-            // this is where we need to create a file, and output the resut to that file
-            // lets return a response that makes sense for the client like "download
-            // successful" or "download failed"
-            String writeRes = writeFile(myArray[1], res);
-            System.out.println(writeRes);
+          // stream the file from the servers into the client directory
+          res = download(myArray[1]);
+          downloadLatency.recordSince(start);
+          System.out.println(res);
+        } else if (myArray.length == 1 && myArray[0].toLowerCase().equals("stats")) {
+          // rmi lookup, read and latency counters for this client, then each
+          // server's
+          System.out.println(stubs);
+          for (int[] group : shards.groups()) {
+            System.out.println(group[0] + " group reads: " + reader(group));
+          }
+          System.out.println(metrics);
+          for (int port : serverArr) {
+            System.out.println(port + ": " + tryRmi(port, "stats"));
+          }
+        } else if (myArray.length == 1 && myArray[0].toLowerCase().equals("reshard")) {
+          // after a group was added to the shard map file, every server reads
+          // it again and the files that now belong to the new group move there
+          if (reloadShards()) {
+            serverArr = shards.ports();
+            for (int port : serverArr) {
+              System.out.println(port + ": " + tryRmi(port, "reshard"));
+            }
           }
         } else {
           System.out.println("Command invalid. Usage: (upload <fileName>, upload <fileName>, list, remove <fileName>)");
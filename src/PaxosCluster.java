@@ -0,0 +1,203 @@
+import java.io.File;
+import java.io.IOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PaxosCluster starts a whole cluster from one command, either every replica
+ * in this JVM or each one as a child process, and can kill and restart them
+ * one at a time. Each replica gets its own 'ServerFiles<port>' and
+ * 'ServerLog<port>' directories under the current directory, like servers
+ * started by hand.
+ *
+ * java PaxosCluster [--procs] 9090 9091 9092 9093 9094
+ *
+ * With a shard map every group in it is started, each replica with the rest
+ * of its group as its peers.
+ *
+ * java -Dpaxos.shards=shards.txt PaxosCluster [--procs]
+ *
+ * Child processes get the same classpath and paxos.* system properties as
+ * this JVM and write their output to 'server<port>.log'.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class PaxosCluster {
+  // how long a child process gets to bind before we give up on it
+  static final long START_TIMEOUT = 30000;
+
+  private final int[] ports;
+  private final ShardMap shards;
+  private final boolean procs;
+  private final Map<Integer, FileStoreImpl> replicas = new ConcurrentHashMap<Integer, FileStoreImpl>();
+  private final Map<Integer, Process> processes = new ConcurrentHashMap<Integer, Process>();
+  private final SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
+
+  /**
+   * Constructor for a cluster that isn't running yet
+   *
+   * @param ports ports of the replicas, all in one group unless there is a
+   *              shard map
+   * @param procs true to run each replica as a child process
+   * @throws IOException if the shard map can't be read
+   */
+  PaxosCluster(int[] ports, boolean procs) throws IOException {
+    this.shards = ShardMap.fromProperties(ports);
+    this.ports = ShardMap.configured() ? shards.ports() : ports.clone();
+    this.procs = procs;
+  }
+
+  /**
+   * @return ports of the replicas
+   */
+  int[] ports() {
+    return ports.clone();
+  }
+
+  /**
+   * starts every replica and waits until they are all bound
+   *
+   * @throws Exception if one can't be started
+   */
+  void start() throws Exception {
+    for (int port : ports) {
+      start(port);
+    }
+  }
+
+  /**
+   * starts or restarts one replica and waits until it is bound
+   *
+   * @param port port of the replica
+   * @throws Exception if it can't be started
+   */
+  void start(int port) throws Exception {
+    if (!procs) {
+      replicas.put(port, PaxosServer.start(serverArr(port)));
+      return;
+    }
+
+    List<String> command = new ArrayList<String>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("paxos.")) {
+        command.add("-D" + name + "=" + System.getProperty(name));
+      }
+    }
+    command.add("PaxosServer");
+    for (int p : serverArr(port)) {
+      command.add(String.valueOf(p));
+    }
+    File log = new File(System.getProperty("user.dir"), "server" + port + ".log");
+    Process process = new ProcessBuilder(command).redirectErrorStream(true)
+        .redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+    processes.put(port, process);
+
+    // the server is up once its stub can be looked up
+    long deadline = System.currentTimeMillis() + START_TIMEOUT;
+    while (true) {
+      try {
+        Naming.lookup("rmi://localhost:" + port + "/filestore" + port);
+        return;
+      } catch (Exception e) {
+        if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+          process.destroyForcibly();
+          throw new IOException("server " + port + " didn't start, see " + log);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  /**
+   * stops one replica at once, without letting it finish what it is doing
+   *
+   * @param port port of the replica
+   */
+  void kill(int port) {
+    Process process = processes.remove(port);
+    if (process != null) {
+      process.destroyForcibly();
+    }
+    FileStoreImpl replica = replicas.remove(port);
+    if (replica != null) {
+      try {
+        UnicastRemoteObject.unexportObject(replica, true);
+      } catch (NoSuchObjectException e) {
+        // already stopped
+      }
+      if (replica.nio != null) {
+        replica.nio.close();
+      }
+      replica.antiEntropy.stop();
+      replica.lease.stop();
+    }
+    System.out.println(date.format(new Date()) + ": killed " + port);
+  }
+
+  /**
+   * stops every replica
+   */
+  void stop() {
+    for (int port : ports) {
+      kill(port);
+    }
+  }
+
+  /**
+   * @param port port of one of the replicas
+   * @return the replica's port and then the others, the way PaxosServer takes
+   *         them
+   */
+  int[] serverArr(int port) {
+    return shards.serverArr(port);
+  }
+
+  /**
+   * Starts a cluster and keeps it running until the JVM is stopped.
+   *
+   * @param args optional --procs and then the ports of the replicas
+   */
+  public static void main(String args[]) {
+    boolean procs = args.length > 0 && args[0].equals("--procs");
+    String[] portArgs = procs ? Arrays.copyOfRange(args, 1, args.length) : args;
+    if (portArgs.length == 0 && !ShardMap.configured()) {
+      System.out.println("Usage: java PaxosCluster [--procs] <port1> <port2> ...");
+      System.out.println("   or: java -Dpaxos.shards=<shard map file> PaxosCluster [--procs]");
+      System.exit(1);
+    }
+    int[] ports = new int[portArgs.length];
+    for (int i = 0; i < portArgs.length; i++) {
+      ports[i] = Integer.valueOf(portArgs[i]);
+    }
+
+    PaxosCluster cluster;
+    try {
+      cluster = new PaxosCluster(ports, procs);
+    } catch (IOException e) {
+      System.out.println("error reading the shard map: " + e);
+      System.exit(1);
+      return;
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(cluster::stop));
+    try {
+      cluster.start();
+      System.out.println("cluster of " + cluster.ports.length + " started" + (procs ? " as processes" : ""));
+    } catch (Exception e) {
+      System.out.println("error starting the cluster: " + e);
+      cluster.stop();
+      System.exit(1);
+    }
+  }
+}
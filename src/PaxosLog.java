@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * PaxosLog is the acceptor state and replicated log of a server in
+ * multi-paxos mode. It keeps the highest ballot promised, the accepted entry
+ * of every slot, which slots are known to be chosen, and how far the log has
+ * been applied to the file store. Slots are numbered from 1.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class PaxosLog {
+  // how many applied entries we keep around for slow replicas
+  static final int RETAIN = 10000;
+
+  private final TreeMap<Long, LogEntry> entries = new TreeMap<Long, LogEntry>();
+  private final Set<Long> chosen = new HashSet<Long>();
+  private long promised = -1;
+  private long applied = 0;
+
+  /**
+   * phase one, promise not to accept anything below the ballot
+   *
+   * @param ballot the ballot being elected
+   * @return true if the ballot is the highest we have seen
+   */
+  synchronized boolean promise(long ballot) {
+    if (ballot <= promised) {
+      return false;
+    }
+    promised = ballot;
+    return true;
+  }
+
+  /**
+   * phase two, accept an entry unless we promised a higher ballot or already
+   * applied its slot. An applied slot was chosen, and we may no longer have
+   * its entry to check the proposal against, so acking it would count us
+   * towards a write we never apply.
+   *
+   * @param entry the proposed entry
+   * @return true if it was accepted
+   */
+  synchronized boolean accept(LogEntry entry) {
+    if (entry.ballot < promised || entry.slot <= applied) {
+      return false;
+    }
+    promised = entry.ballot;
+    entries.put(entry.slot, entry);
+    return true;
+  }
+
+  /**
+   * record an entry we know was chosen, whatever we accepted before
+   *
+   * @param entry the chosen entry
+   */
+  synchronized void learn(LogEntry entry) {
+    if (entry.slot > applied) {
+      entries.put(entry.slot, entry);
+      chosen.add(entry.slot);
+    }
+  }
+
+  /**
+   * mark the entry we accepted for a slot as chosen
+   *
+   * @param slot   the slot
+   * @param ballot the ballot it was chosen under
+   * @return false if we don't have that entry and need to fetch it
+   */
+  synchronized boolean choose(long slot, long ballot) {
+    if (slot <= applied) {
+      return true;
+    }
+    LogEntry entry = entries.get(slot);
+    if (entry == null || entry.ballot != ballot) {
+      return false;
+    }
+    chosen.add(slot);
+    return true;
+  }
+
+  /**
+   * @param slot the slot
+   * @return the entry we have for a slot, or null
+   */
+  synchronized LogEntry get(long slot) {
+    return entries.get(slot);
+  }
+
+  /**
+   * @param slot only entries after this slot are returned
+   * @return the accepted entries after a slot, for a new leader to recover
+   */
+  synchronized List<LogEntry> acceptedAfter(long slot) {
+    return new ArrayList<LogEntry>(entries.tailMap(slot, false).values());
+  }
+
+  /**
+   * the chosen entries after a slot, for a replica catching up
+   *
+   * @param slot only entries after this slot are returned
+   * @param max  most entries to return
+   * @return the applied entries after the slot in slot order, empty if we
+   *         haven't applied past it, or null if we no longer keep them
+   */
+  synchronized List<LogEntry> chosenAfter(long slot, int max) {
+    List<LogEntry> after = new ArrayList<LogEntry>();
+    for (long s = slot + 1; s <= applied && after.size() < max; s++) {
+      LogEntry entry = entries.get(s);
+      if (entry == null) {
+        return null;
+      }
+      after.add(entry);
+    }
+    return after;
+  }
+
+  /**
+   * @return true if chosen entries are waiting on a slot we don't have
+   */
+  synchronized boolean blocked() {
+    return !chosen.isEmpty() && !chosen.contains(applied + 1);
+  }
+
+  /**
+   * moves the applied slot up to a snapshot taken at that slot. What we had
+   * for the slots in between can't be trusted to be what was chosen, so it is
+   * dropped.
+   *
+   * @param slot the slot the snapshot was taken at
+   */
+  synchronized void skipTo(long slot) {
+    if (slot <= applied) {
+      return;
+    }
+    applied = slot;
+    entries.headMap(slot, true).clear();
+    chosen.removeIf(s -> s <= slot);
+    notifyAll();
+  }
+
+  /**
+   * @return the chosen entries that can be applied next, in slot order
+   */
+  synchronized List<LogEntry> applicable() {
+    List<LogEntry> ready = new ArrayList<LogEntry>();
+    for (long slot = applied + 1; chosen.contains(slot); slot++) {
+      ready.add(entries.get(slot));
+    }
+    return ready;
+  }
+
+  /**
+   * record that a slot was applied to the file store and wake anyone waiting
+   *
+   * @param slot the slot just applied
+   */
+  synchronized void applied(long slot) {
+    applied = slot;
+    chosen.remove(slot);
+    entries.headMap(slot - RETAIN, true).clear();
+    notifyAll();
+  }
+
+  /**
+   * park until a slot has been applied or the deadline passes
+   *
+   * @param slot     the slot to wait for
+   * @param deadline wall clock time in millis to give up at
+   * @return true if the slot was applied
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  synchronized boolean awaitApplied(long slot, long deadline) throws InterruptedException {
+    while (applied < slot) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * @return the highest ballot promised
+   */
+  synchronized long promised() {
+    return promised;
+  }
+
+  /**
+   * @return the highest slot applied to the file store
+   */
+  synchronized long applied() {
+    return applied;
+  }
+
+  /**
+   * @return the highest slot we have an entry for
+   */
+  synchronized long lastSlot() {
+    return entries.isEmpty() ? applied : Math.max(applied, entries.lastKey());
+  }
+}
@@ -1,6 +1,8 @@
 import java.io.File;
+import java.io.IOException;
 import java.rmi.Naming;
 import java.rmi.registry.LocateRegistry;
+import java.rmi.server.ExportException;
 
 /**
  * PaxosServer main runner class that will bind to a port and setup the server
@@ -24,34 +26,84 @@ public class PaxosServer extends Thread {
     }
   }
 
+  /**
+   * Starts a replica: makes its 'ServerFiles<port>' directory, replays its log
+   * and binds it on an RMI registry on its port, and on NIO too if that
+   * transport is on, then catches it up from its peers in the background.
+   * Reuses a registry already on the port, so a replica can be started again
+   * in the same JVM.
+   *
+   * @param serverArr the replica's port and then the ports of its peers
+   * @return the replica
+   * @throws Exception if it can't be started
+   */
+  static FileStoreImpl start(int[] serverArr) throws Exception {
+    createDirectory(serverArr[0]);
+
+    FileStoreImpl obj = new FileStoreImpl(serverArr);
+    obj.recover();
+    try {
+      LocateRegistry.createRegistry(serverArr[0]);
+    } catch (ExportException e) {
+      // we started one here before
+    }
+    Naming.rebind("rmi://localhost:" + serverArr[0] + "/filestore" + serverArr[0], obj);
+    if (NioServer.ENABLED) {
+      obj.nio = new NioServer(obj, serverArr[0] + NioServer.OFFSET);
+      obj.nio.start();
+    }
+    System.out.println(serverArr[0] + " RPC server started"
+        + (Boolean.getBoolean("paxos.multi") ? " in multi-paxos mode" : "")
+        + (NioServer.ENABLED ? " with nio on " + (serverArr[0] + NioServer.OFFSET) : ""));
+
+    // get whatever the others decided while we were down
+    obj.catchUp.request("starting up");
+    obj.antiEntropy.start();
+    obj.lease.start();
+    // finish moving files to other groups if a move was cut short
+    obj.rebalancer.request();
+    return obj;
+  }
+
   /**
    * Main method to start the server.
    *
-   * @param args port numbers where the server(and its replicas) will be running
+   * @param args port numbers where the server(and its replicas) will be running,
+   *             this server's first. With a shard map the server's port is
+   *             enough.
    */
   public static void main(String args[]) {
 
     int[] serverArr = new int[args.length];
 
-    if (args.length == 5) {
+    if (args.length >= 1) {
       for (int i = 0; i < args.length; i++) {
         serverArr[i] = Integer.valueOf(args[i]);
       }
     } else {
-      System.out.println("Usage: java -jar FileServer.jar <port1> <port2> <port3> <port4> <port5>");
+      System.out.println("Usage: java -jar FileServer.jar <port> <peer port>...");
       System.exit(1);
     }
 
-    createDirectory(serverArr[0]);
+    try {
+      if (args.length == 1 && ShardMap.configured()) {
+        // the peers are the rest of our group in the shard map
+        serverArr = ShardMap.fromProperties(serverArr).serverArr(serverArr[0]);
+        if (serverArr == null) {
+          System.out.println(args[0] + " is in no group of the shard map");
+          System.exit(1);
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("error reading the shard map: " + e);
+      System.exit(1);
+    }
 
     try {
-      FileStore obj = new FileStoreImpl(serverArr);
-      LocateRegistry.createRegistry(serverArr[0]);
-      Naming.rebind("rmi://localhost:" + serverArr[0] + "/filestore" + serverArr[0], obj);
-      System.out.println(serverArr[0] + " RPC server started");
+      start(serverArr);
     } catch (Exception e) {
       System.out.println("error in rpc server: " + e);
     }
   }
 
-}
\ No newline at end of file
+}
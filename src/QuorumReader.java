@@ -0,0 +1,229 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * QuorumReader sends a read to the servers in parallel and returns as soon as
+ * a majority of them agree, so a read takes as long as the third fastest
+ * server instead of the slowest.
+ *
+ * With hedging on a read first goes to just a majority. Another server is only
+ * asked when one of them fails, disagrees, or is slower than the given
+ * percentile of recent read latencies.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class QuorumReader {
+  // recent latencies kept for the hedge delay, and how many we need first
+  static final int SAMPLES = 128;
+  static final int MIN_SAMPLES = 16;
+
+  /**
+   * a read from one server
+   */
+  interface Read<T> {
+    T call(FileStore server) throws RemoteException;
+  }
+
+  /**
+   * the answer a majority agreed on and the servers that gave it
+   */
+  static class Result<T> {
+    final T value;
+    final List<Integer> servers;
+
+    Result(T value, List<Integer> servers) {
+      this.value = value;
+      this.servers = servers;
+    }
+  }
+
+  /**
+   * one server's answer, or its failure
+   */
+  private static class Reply<T> {
+    final int port;
+    final T value;
+    final boolean failed;
+
+    Reply(int port, T value, boolean failed) {
+      this.port = port;
+      this.value = value;
+      this.failed = failed;
+    }
+  }
+
+  private final StubRegistry stubs;
+  private final int[] servers;
+  private final boolean hedge;
+  private final double percentile;
+  private final long timeout;
+  private final long initialDelay;
+
+  // servers that hang keep their thread until the rmi call times out, so
+  // threads are made as needed instead of queueing behind them
+  private final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "read");
+    t.setDaemon(true);
+    return t;
+  });
+
+  // ring of recent latencies in nanos
+  private final long[] latencies = new long[SAMPLES];
+  private long samples = 0;
+
+  // spreads the first servers asked across all of them
+  private final AtomicInteger next = new AtomicInteger();
+
+  final AtomicLong reads = new AtomicLong();
+  final AtomicLong hedges = new AtomicLong();
+  final AtomicLong noQuorum = new AtomicLong();
+
+  /**
+   * Constructor for a quorum reader
+   *
+   * @param stubs        stubs for the servers
+   * @param servers      ports of every server
+   * @param hedge        true to ask a majority first and hedge the rest
+   * @param percentile   latency percentile after which a read is hedged
+   * @param timeout      millis to wait for a majority before giving up
+   * @param initialDelay hedge delay in millis until enough reads were timed
+   */
+  QuorumReader(StubRegistry stubs, int[] servers, boolean hedge, double percentile, long timeout,
+      long initialDelay) {
+    this.stubs = stubs;
+    this.servers = servers;
+    this.hedge = hedge;
+    this.percentile = percentile;
+    this.timeout = timeout;
+    this.initialDelay = initialDelay;
+  }
+
+  /**
+   * @param stubs   stubs for the servers
+   * @param servers ports of every server
+   * @return a reader set up from the paxos.read system properties
+   */
+  static QuorumReader fromProperties(StubRegistry stubs, int[] servers) {
+    return new QuorumReader(stubs, servers, Boolean.getBoolean("paxos.read.hedge"),
+        Double.parseDouble(System.getProperty("paxos.read.hedge.percentile", "95")),
+        Long.getLong("paxos.read.timeout", 10000), Long.getLong("paxos.read.hedge.delay", 50));
+  }
+
+  /**
+   * read from the servers until a majority agree
+   *
+   * @param read the read to send to each server
+   * @param key  what answers have to agree on
+   * @return the agreed answer and the servers that gave it, or null if no
+   *         majority agreed in time
+   */
+  <T> Result<T> read(Read<T> read, Function<T, Object> key) {
+    reads.incrementAndGet();
+    int majority = servers.length / 2 + 1;
+    int start = Math.floorMod(next.getAndIncrement(), servers.length);
+    LinkedBlockingQueue<Reply<T>> replies = new LinkedBlockingQueue<Reply<T>>();
+    Map<Object, List<Integer>> votes = new HashMap<Object, List<Integer>>();
+    long deadline = System.currentTimeMillis() + timeout;
+
+    int sent = 0;
+    int answered = 0;
+    int best = 0;
+    while (sent < (hedge ? majority : servers.length)) {
+      send(servers[(start + sent++) % servers.length], read, replies);
+    }
+
+    try {
+      while (answered < sent) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        Reply<T> reply = replies.poll(hedge && sent < servers.length ? Math.min(remaining, delay()) : remaining,
+            TimeUnit.MILLISECONDS);
+        if (reply == null) {
+          // the servers asked are slow, ask one more
+          if (hedge && sent < servers.length) {
+            hedges.incrementAndGet();
+            send(servers[(start + sent++) % servers.length], read, replies);
+          }
+          continue;
+        }
+
+        answered++;
+        if (!reply.failed) {
+          List<Integer> agreed = votes.computeIfAbsent(key.apply(reply.value), k -> new ArrayList<Integer>());
+          agreed.add(reply.port);
+          if (agreed.size() >= majority) {
+            return new Result<T>(reply.value, agreed);
+          }
+          best = Math.max(best, agreed.size());
+        }
+
+        // keep enough reads out that a majority is still possible
+        while (sent < servers.length && best + (sent - answered) < majority) {
+          send(servers[(start + sent++) % servers.length], read, replies);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    noQuorum.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * send the read to one server on the pool
+   */
+  private <T> void send(int port, Read<T> read, LinkedBlockingQueue<Reply<T>> replies) {
+    pool.execute(() -> {
+      long start = System.nanoTime();
+      FileStore server = null;
+      try {
+        server = stubs.get(port);
+        T value = read.call(server);
+        record(System.nanoTime() - start);
+        replies.add(new Reply<T>(port, value, false));
+      } catch (Exception e) {
+        stubs.failed(port, server, e);
+        replies.add(new Reply<T>(port, null, true));
+      }
+    });
+  }
+
+  /**
+   * @param nanos latency of one successful read
+   */
+  private synchronized void record(long nanos) {
+    latencies[(int) (samples++ % SAMPLES)] = nanos;
+  }
+
+  /**
+   * @return millis to wait on the servers asked before hedging
+   */
+  private synchronized long delay() {
+    if (samples < MIN_SAMPLES) {
+      return initialDelay;
+    }
+    long[] sorted = Arrays.copyOf(latencies, (int) Math.min(samples, SAMPLES));
+    Arrays.sort(sorted);
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile / 100) - 1);
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]));
+  }
+
+  public String toString() {
+    return "reads=" + reads.get() + " hedges=" + hedges.get() + " noQuorum=" + noQuorum.get() + " hedgeDelayMillis="
+        + delay();
+  }
+}
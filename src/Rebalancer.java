@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebalancer moves the files a group stores that the shard map now gives to
+ * another group, after a group was added. Each file is streamed chunk by chunk
+ * to a replica of its new group and adopted there through that group's
+ * consensus, then removed here through ours. A file the new group already
+ * wrote or removed since the map changed is left as the new group has it and
+ * only removed here.
+ *
+ * Only the first replica of a group's line in the shard map moves files, so
+ * they are sent once. It looks for files to move whenever the map is
+ * reloaded and when it starts, so a move cut short by a restart carries on.
+ * The transfers are rate limited like catch-up, so client requests aren't
+ * slowed down much while a group fills up.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Rebalancer {
+  // bytes a second sent to other groups, 0 for no limit
+  static final long RATE = Long.getLong("paxos.rebalance.rate", 8L << 20);
+  // files looked at in one page of the index
+  static final int PAGE = 1000;
+  // how often a busy group is asked again, and the first wait in between
+  static final int BUSY_RETRIES = 5;
+  static final long BUSY_BACKOFF = 50;
+
+  private final FileStoreImpl replica;
+  private final CatchUp.Throttle throttle = new CatchUp.Throttle(RATE);
+  private final AtomicBoolean pending = new AtomicBoolean();
+  private final ExecutorService worker;
+  private final SimpleDateFormat date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss:SSS");
+
+  private final Histogram latency;
+  private final AtomicLong moved;
+  private final AtomicLong kept;
+  private final AtomicLong bytes;
+
+  /**
+   * Constructor for a replica's rebalancer, nothing runs until it is requested
+   *
+   * @param replica the replica whose files are moved
+   */
+  Rebalancer(FileStoreImpl replica) {
+    this.replica = replica;
+    this.worker = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "rebalance-" + replica.serverArr[0]);
+      t.setDaemon(true);
+      return t;
+    });
+    this.latency = replica.metrics.histogram("rebalance");
+    this.moved = replica.metrics.counter("rebalance.moved");
+    this.kept = replica.metrics.counter("rebalance.kept");
+    this.bytes = replica.metrics.counter("rebalance.bytes");
+  }
+
+  /**
+   * looks for files to move soon if we are the replica that moves our group's
+   * files, unless a look is already waiting to run
+   */
+  void request() {
+    int[] group = replica.shards.groupOf(replica.serverArr[0]);
+    if (group == null || group[0] != replica.serverArr[0] || !pending.compareAndSet(false, true)) {
+      return;
+    }
+    worker.execute(() -> {
+      pending.set(false);
+      run();
+    });
+  }
+
+  /**
+   * moves every file that belongs to another group, never throws so the
+   * worker thread lives on
+   */
+  private void run() {
+    long start = System.nanoTime();
+    long count = 0;
+    try {
+      String after = null;
+      while (true) {
+        List<FileMeta> page = replica.index.page(after, PAGE);
+        for (FileMeta meta : page) {
+          ShardMap map = replica.shards;
+          if (!meta.removed() && !map.owns(replica.serverArr[0], meta.fileName)
+              && move(meta, map.group(meta.fileName))) {
+            count++;
+          }
+        }
+        if (page.size() < PAGE) {
+          break;
+        }
+        after = page.get(page.size() - 1).fileName;
+      }
+      latency.recordSince(start);
+      if (count > 0) {
+        System.out.println(date.format(new Date()) + ": rebalance moved " + count + " files to other groups");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      System.err.println(date.format(new Date()) + ": rebalance failed: " + e);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * moves one file to the first replica of its new group that takes it
+   *
+   * @param meta  our metadata for the file
+   * @param group ports of the replicas of the file's new group
+   * @return true if the file is now only in the new group
+   */
+  private boolean move(FileMeta meta, int[] group) throws InterruptedException {
+    for (int port : group) {
+      String res;
+      FileStore stub = null;
+      try {
+        stub = replica.stubs.get(port);
+        res = send(stub, meta);
+      } catch (IOException e) {
+        replica.stubs.failed(port, stub, e);
+        continue;
+      }
+      if (res == null) {
+        // changed or removed here while we read it, the next look gets it
+        return false;
+      }
+      if (res.equals("exists")) {
+        kept.incrementAndGet();
+      } else if (res.equals("Successful!")) {
+        moved.incrementAndGet();
+      } else {
+        System.out.println(date.format(new Date()) + ": moving " + meta.fileName + " to " + port + ": " + res);
+        return false;
+      }
+      String removed = replica.write(new Operation("remove", meta.fileName, null));
+      return removed.equals("deleted") || removed.equals("failed");
+    }
+    return false;
+  }
+
+  /**
+   * streams our copy of a file to a replica of its new group and asks the
+   * group to adopt it
+   *
+   * @param target a replica of the new group
+   * @param meta   our metadata for the file
+   * @return the group's answer, or null if our copy changed while we read it
+   */
+  private String send(FileStore target, FileMeta meta) throws IOException, InterruptedException {
+    String uploadId = target.beginUpload(meta.fileName);
+    MessageDigest md = FileIndex.sha256();
+    long offset = 0;
+    while (offset < meta.size) {
+      byte[] packed = replica.downloadChunk(meta.fileName, offset, CatchUp.CHUNK, Codecs.configured().name());
+      byte[] chunk = packed == null ? new byte[0] : Codecs.unpack(packed);
+      if (chunk.length == 0) {
+        break;
+      }
+      throttle.acquire(chunk.length);
+      target.uploadChunk(uploadId, offset, packed);
+      md.update(chunk);
+      offset += chunk.length;
+      bytes.addAndGet(chunk.length);
+    }
+    if (offset != meta.size || !FileIndex.hex(md.digest()).equals(meta.digest)) {
+      return null;
+    }
+
+    String res = target.adoptUpload(uploadId);
+    for (int i = 0; Admission.busy(res) && i < BUSY_RETRIES; i++) {
+      Thread.sleep(BUSY_BACKOFF << i);
+      res = target.adoptUpload(uploadId);
+    }
+    return res;
+  }
+
+  /**
+   * @return counts of what was moved, in a human readable form
+   */
+  public String toString() {
+    return "rebalance: " + moved.get() + " moved, " + kept.get() + " kept by the new group, " + bytes.get()
+        + " bytes";
+  }
+}
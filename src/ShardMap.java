@@ -0,0 +1,218 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ShardMap splits the file names between groups of replicas, each group
+ * running its own consensus over its own files. A name goes to a group by
+ * consistent hashing: every group has VNODES points on a ring of 64 bit
+ * hashes and a file belongs to the group of the first point at or after the
+ * hash of its name. Adding a group only takes over the names between its
+ * points and the points before them, about 1/n of the files, and every other
+ * name stays where it was.
+ *
+ * The map is read from the file named by the paxos.shards property, one group
+ * per line with the ports of its replicas separated by spaces. Blank lines
+ * and lines starting with # are skipped. A group is known by its first port,
+ * so a group's line can gain or lose replicas without moving any files.
+ * Without the property every file belongs to the one group of replicas given
+ * on the command line.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class ShardMap {
+  // points each group has on the ring, more spread the files more evenly
+  static final int VNODES = Integer.getInteger("paxos.shards.vnodes", 64);
+
+  // answer to a write sent to a group the file doesn't belong to
+  static final String WRONG_GROUP = "wrong group, reload the shard map";
+
+  private final List<int[]> groups;
+  private final TreeMap<Long, int[]> ring = new TreeMap<Long, int[]>();
+
+  /**
+   * Constructor for a map of groups
+   *
+   * @param groups ports of the replicas of each group
+   */
+  ShardMap(List<int[]> groups) {
+    if (groups.isEmpty()) {
+      throw new IllegalArgumentException("a shard map needs at least one group");
+    }
+    this.groups = Collections.unmodifiableList(new ArrayList<int[]>(groups));
+    for (int[] group : groups) {
+      for (int i = 0; i < VNODES; i++) {
+        ring.put(hash(group[0] + "#" + i), group);
+      }
+    }
+  }
+
+  /**
+   * @param ports ports of the replicas given on the command line, used when
+   *              there is no shard map file
+   * @return the map from the file named by paxos.shards, or one group of the
+   *         given ports
+   * @throws IOException if the file can't be read or has no groups
+   */
+  static ShardMap fromProperties(int[] ports) throws IOException {
+    String path = System.getProperty("paxos.shards");
+    if (path == null) {
+      return new ShardMap(Collections.singletonList(ports));
+    }
+    return load(new File(path));
+  }
+
+  /**
+   * @return true if the groups come from a shard map file
+   */
+  static boolean configured() {
+    return System.getProperty("paxos.shards") != null;
+  }
+
+  /**
+   * reads a shard map file
+   *
+   * @param file the file
+   * @return the map
+   * @throws IOException if the file can't be read or has no groups
+   */
+  static ShardMap load(File file) throws IOException {
+    List<int[]> groups = new ArrayList<int[]>();
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] ports = line.split("\\s+");
+      int[] group = new int[ports.length];
+      try {
+        for (int i = 0; i < ports.length; i++) {
+          group[i] = Integer.parseInt(ports[i]);
+        }
+      } catch (NumberFormatException e) {
+        throw new IOException(file + ": not a list of ports: " + line);
+      }
+      groups.add(group);
+    }
+    if (groups.isEmpty()) {
+      throw new IOException(file + " has no groups");
+    }
+    return new ShardMap(groups);
+  }
+
+  /**
+   * @param fileName name of a file
+   * @return ports of the replicas of the group the file belongs to
+   */
+  int[] group(String fileName) {
+    Map.Entry<Long, int[]> point = ring.ceilingEntry(hash(fileName));
+    return (point == null ? ring.firstEntry() : point).getValue();
+  }
+
+  /**
+   * @param port port of a replica
+   * @return ports of the replicas of the replica's group, or null if it is in
+   *         none
+   */
+  int[] groupOf(int port) {
+    for (int[] group : groups) {
+      for (int p : group) {
+        if (p == port) {
+          return group;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param port port of a replica
+   * @return the replica's port and then the rest of its group, the way
+   *         PaxosServer takes them, or null if it is in no group
+   */
+  int[] serverArr(int port) {
+    int[] group = groupOf(port);
+    if (group == null) {
+      return null;
+    }
+    int[] serverArr = new int[group.length];
+    serverArr[0] = port;
+    for (int i = 0, k = 1; i < group.length; i++) {
+      if (group[i] != port) {
+        serverArr[k++] = group[i];
+      }
+    }
+    return serverArr;
+  }
+
+  /**
+   * @param port     port of a replica
+   * @param fileName name of a file
+   * @return true if the file belongs to the replica's group
+   */
+  boolean owns(int port, String fileName) {
+    return group(fileName) == groupOf(port);
+  }
+
+  /**
+   * @return ports of the replicas of every group
+   */
+  List<int[]> groups() {
+    return groups;
+  }
+
+  /**
+   * @return ports of every replica, group by group
+   */
+  int[] ports() {
+    int count = 0;
+    for (int[] group : groups) {
+      count += group.length;
+    }
+    int[] ports = new int[count];
+    int k = 0;
+    for (int[] group : groups) {
+      for (int port : group) {
+        ports[k++] = port;
+      }
+    }
+    return ports;
+  }
+
+  /**
+   * @return the first 64 bits of a sha-256 of the key, the same in every JVM
+   */
+  private static long hash(String key) {
+    MessageDigest md = FileIndex.sha256();
+    byte[] d = md.digest(key.getBytes(StandardCharsets.UTF_8));
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (d[i] & 0xff);
+    }
+    return h;
+  }
+
+  /**
+   * @return the groups, one per line, the way the file has them
+   */
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int[] group : groups) {
+      if (sb.length() > 0) {
+        sb.append('\n');
+      }
+      for (int i = 0; i < group.length; i++) {
+        sb.append(i == 0 ? "" : " ").append(group[i]);
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,152 @@
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StubRegistry keeps the resolved RMI stubs for the servers so we only pay for a
+ * Naming lookup the first time we talk to a server or after a call to it
+ * failed. With the NIO transport the stubs are NioClient connections instead.
+ * Servers that can't be reached are backed off exponentially so we don't sit
+ * in a connect timeout on every request. Used by both the client and the
+ * servers.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class StubRegistry {
+  // backoff bounds for servers we failed to reach
+  static final long MIN_BACKOFF = 100;
+  static final long MAX_BACKOFF = 10000;
+
+  private final ConcurrentHashMap<Integer, Entry> stubs = new ConcurrentHashMap<Integer, Entry>();
+
+  // counters so we can tell how much lookup work is being done
+  final AtomicLong lookups = new AtomicLong();
+  final AtomicLong lookupsAvoided = new AtomicLong();
+  final AtomicLong lookupFailures = new AtomicLong();
+  final AtomicLong lookupNanos = new AtomicLong();
+
+  private final Metrics metrics;
+  private final Histogram lookupLatency;
+
+  /**
+   * Constructor for a registry with no stubs yet
+   *
+   * @param metrics where lookup latencies and failed calls are counted
+   */
+  StubRegistry(Metrics metrics) {
+    this.metrics = metrics;
+    this.lookupLatency = metrics.histogram("lookup");
+  }
+
+  /**
+   * a cached stub, or the backoff state of a server we couldn't reach
+   */
+  private static class Entry {
+    final FileStore stub;
+    final int failures;
+    final long retryAt;
+
+    Entry(FileStore stub, int failures, long retryAt) {
+      this.stub = stub;
+      this.failures = failures;
+      this.retryAt = retryAt;
+    }
+  }
+
+  /**
+   * get the stub for the server on a port, looking it up if we don't have it
+   *
+   * @param port port the server is on
+   * @return the rpc stub
+   * @throws RemoteException if the server can't be looked up or is backed off
+   */
+  FileStore get(int port) throws RemoteException {
+    Entry entry = stubs.get(port);
+    if (entry != null && entry.stub != null) {
+      lookupsAvoided.incrementAndGet();
+      return entry.stub;
+    }
+    if (entry != null && System.currentTimeMillis() < entry.retryAt) {
+      lookupsAvoided.incrementAndGet();
+      throw new RemoteException("server " + port + " unreachable, backing off");
+    }
+
+    long start = System.nanoTime();
+    lookups.incrementAndGet();
+    try {
+      FileStore stub = NioServer.ENABLED ? NioClient.connect(port + NioServer.OFFSET)
+          : (FileStore) Naming.lookup("rmi://localhost:" + port + "/filestore" + port);
+      stubs.put(port, new Entry(stub, 0, 0));
+      return stub;
+    } catch (Exception e) {
+      lookupFailures.incrementAndGet();
+      backoff(port, entry);
+      throw e instanceof RemoteException ? (RemoteException) e : new RemoteException("lookup failed", e);
+    } finally {
+      lookupNanos.addAndGet(System.nanoTime() - start);
+      lookupLatency.recordSince(start);
+    }
+  }
+
+  /**
+   * count a failed call to a server. If the call failed in the transport the
+   * stub is closed and evicted, and the next get looks it up again after the
+   * backoff. An error the server answered with leaves the stub alone, since
+   * the other calls sharing its connection are fine. A stub some other
+   * thread already replaced isn't evicted again.
+   *
+   * @param port port the server is on
+   * @param stub the stub the call was made on, null if get failed
+   * @param e    what the call threw
+   */
+  void failed(int port, FileStore stub, Exception e) {
+    metrics.counter("rpcFailures." + port).incrementAndGet();
+    if (stub == null || !transport(e)) {
+      return;
+    }
+    NioClient.close(stub);
+    Entry entry = stubs.get(port);
+    if (entry != null && entry.stub == stub) {
+      stubs.replace(port, entry, next(entry));
+    }
+  }
+
+  /**
+   * @param e what a call threw
+   * @return true if the call failed in the transport, not on the server
+   */
+  static boolean transport(Exception e) {
+    return e instanceof RemoteException && !(e instanceof ServerException);
+  }
+
+  private void backoff(int port, Entry previous) {
+    stubs.put(port, next(previous));
+  }
+
+  /**
+   * @param previous the entry of a server we just failed to reach, or null
+   * @return the backoff entry to replace it with
+   */
+  private Entry next(Entry previous) {
+    int failures = previous == null ? 1 : previous.failures + 1;
+    long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 16));
+    // the first failure of a cached stub is retried right away, it may have just
+    // been restarted
+    if (previous != null && previous.stub != null) {
+      failures = 0;
+      delay = 0;
+    }
+    return new Entry(null, failures, System.currentTimeMillis() + delay);
+  }
+
+  /**
+   * @return the lookup counters in a human readable form
+   */
+  public String toString() {
+    return "lookups=" + lookups.get() + " avoided=" + lookupsAvoided.get() + " failed=" + lookupFailures.get()
+        + " lookupMillis=" + lookupNanos.get() / 1000000;
+  }
+}
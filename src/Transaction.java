@@ -0,0 +1,163 @@
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transaction holds the batch of writes and the vote and ack counts for a
+ * round of consensus that this server is coordinating. The reply rpc signals it and the
+ * coordinating thread parks on it until it reaches quorum, receives an abort or
+ * times out, instead of polling the counters.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Transaction {
+  final String id;
+  // the writes get their versions once a majority voted
+  volatile List<Operation> ops;
+  final Date time;
+
+  // newest version of each file among the replicas that voted
+  private final Map<String, Long> newest = new HashMap<String, Long>();
+  private int votes = 0;
+  private int acks = 0;
+  private boolean aborted = false;
+  // set once the commit is sent, the writes can't be aborted by a vote then
+  private boolean decided = false;
+
+  /**
+   * Constructor for a new transaction
+   *
+   * @param id  unique transaction id used in all of its messages
+   * @param ops the writes decided by the transaction, in order
+   */
+  Transaction(String id, List<Operation> ops) {
+    this.id = id;
+    this.ops = ops;
+    this.time = new Date();
+  }
+
+  /**
+   * record a vote-commit from a replica and wake the coordinator
+   */
+  synchronized void vote() {
+    votes += 1;
+    notifyAll();
+  }
+
+  /**
+   * record a vote-commit along with the replica's version of each file
+   *
+   * @param versions the replica's version of the file of each write, in order
+   */
+  synchronized void vote(List<Long> versions) {
+    for (int i = 0; i < versions.size() && i < ops.size(); i++) {
+      newest.merge(ops.get(i).fileName, versions.get(i), Math::max);
+    }
+    vote();
+  }
+
+  /**
+   * @param fileName name of a file the transaction writes
+   * @return the newest version of the file any voter has, 0 if none has it
+   */
+  synchronized long newest(String fileName) {
+    return newest.getOrDefault(fileName, 0L);
+  }
+
+  /**
+   * record an ack from a replica and wake the coordinator
+   */
+  synchronized void ack() {
+    acks += 1;
+    notifyAll();
+  }
+
+  /**
+   * mark the transaction as aborted and wake the coordinator
+   */
+  synchronized void abort() {
+    aborted = true;
+    notifyAll();
+  }
+
+  /**
+   * record a vote-abort from a replica. It aborts the transaction unless the
+   * commit was already sent, a late vote can't undo a decided write.
+   */
+  synchronized void abortVote() {
+    if (!decided) {
+      abort();
+    }
+  }
+
+  /**
+   * decide to commit, unless the transaction was aborted first
+   *
+   * @return true if the commit can be sent
+   */
+  synchronized boolean decide() {
+    if (aborted) {
+      return false;
+    }
+    decided = true;
+    return true;
+  }
+
+  /**
+   * @return true if a replica voted to abort or the coordinator gave up
+   */
+  synchronized boolean isAborted() {
+    return aborted;
+  }
+
+  /**
+   * park until we have a quorum of votes, an abort, or the deadline passes
+   *
+   * @param quorum   number of replica votes needed
+   * @param deadline wall clock time in millis to give up at
+   * @return true if the quorum was reached
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  synchronized boolean awaitVotes(int quorum, long deadline) throws InterruptedException {
+    while (!aborted && votes < quorum) {
+      if (!park(deadline)) {
+        return false;
+      }
+    }
+    return !aborted;
+  }
+
+  /**
+   * park until we have a quorum of acks, an abort, or the deadline passes
+   *
+   * @param quorum   number of replica acks needed
+   * @param deadline wall clock time in millis to give up at
+   * @return true if the quorum was reached
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  synchronized boolean awaitAcks(int quorum, long deadline) throws InterruptedException {
+    while (!aborted && acks < quorum) {
+      if (!park(deadline)) {
+        return false;
+      }
+    }
+    return !aborted;
+  }
+
+  /**
+   * wait on this monitor until signalled or the deadline passes. caller must hold
+   * the lock.
+   *
+   * @return false if the deadline has already passed
+   */
+  private boolean park(long deadline) throws InterruptedException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      return false;
+    }
+    wait(remaining);
+    return true;
+  }
+}
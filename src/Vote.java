@@ -0,0 +1,33 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Vote is a replica's answer to a server running for leader in multi-paxos
+ * mode: the entries it accepted after the slot the candidate asked from, and
+ * how far its own log goes. A replica drops entries once it applied them, so
+ * a candidate that is behind a voter's applied slot can't learn those slots
+ * from the election and has to catch up before it may lead.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class Vote implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final long applied;
+  final long last;
+  final List<LogEntry> accepted;
+
+  /**
+   * Constructor for a vote
+   *
+   * @param applied  highest slot the voter applied
+   * @param last     highest slot the voter has an entry for
+   * @param accepted the entries the voter accepted after the asked slot
+   */
+  Vote(long applied, long last, List<LogEntry> accepted) {
+    this.applied = applied;
+    this.last = last;
+    this.accepted = accepted;
+  }
+}
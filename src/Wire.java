@@ -0,0 +1,189 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Wire writes the arguments and results of FileStore calls for the NIO
+ * transport. Each value is a type tag followed by its fields, so no Java
+ * serialization is involved. Only the types the FileStore interface uses are
+ * supported.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class Wire {
+  // type tags
+  static final byte NULL = 0;
+  static final byte STRING = 1;
+  static final byte LONG = 2;
+  static final byte INT = 3;
+  static final byte BOOLEAN = 4;
+  static final byte BYTES = 5;
+  static final byte DATE = 6;
+  static final byte LIST = 7;
+  static final byte OPERATION = 8;
+  static final byte LOG_ENTRY = 9;
+  static final byte FILE_META = 10;
+  static final byte VOTE = 11;
+
+  private Wire() {
+  }
+
+  /**
+   * @param out   where to write
+   * @param value a value of one of the supported types, or null
+   * @throws IOException if the value can't be written
+   */
+  static void write(DataOutputStream out, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INT);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof byte[]) {
+      out.writeByte(BYTES);
+      out.writeInt(((byte[]) value).length);
+      out.write((byte[]) value);
+    } else if (value instanceof Date) {
+      out.writeByte(DATE);
+      out.writeLong(((Date) value).getTime());
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      out.writeByte(LIST);
+      out.writeInt(list.size());
+      for (Object item : list) {
+        write(out, item);
+      }
+    } else if (value instanceof Operation) {
+      Operation op = (Operation) value;
+      out.writeByte(OPERATION);
+      writeString(out, op.command);
+      writeString(out, op.fileName);
+      write(out, op.contents == null ? null : Operation.pack(op.contents));
+      write(out, op.staged);
+      out.writeLong(op.length);
+      out.writeLong(op.version);
+    } else if (value instanceof LogEntry) {
+      LogEntry entry = (LogEntry) value;
+      out.writeByte(LOG_ENTRY);
+      out.writeLong(entry.slot);
+      out.writeLong(entry.ballot);
+      write(out, entry.ops);
+    } else if (value instanceof FileMeta) {
+      FileMeta meta = (FileMeta) value;
+      out.writeByte(FILE_META);
+      writeString(out, meta.fileName);
+      out.writeLong(meta.size);
+      out.writeLong(meta.version);
+      out.writeLong(meta.modified);
+      write(out, meta.digest);
+      writeString(out, meta.codec);
+      out.writeLong(meta.stored);
+    } else if (value instanceof Vote) {
+      Vote vote = (Vote) value;
+      out.writeByte(VOTE);
+      out.writeLong(vote.applied);
+      out.writeLong(vote.last);
+      write(out, vote.accepted);
+    } else {
+      throw new IOException("can't send a " + value.getClass().getName());
+    }
+  }
+
+  /**
+   * @param in where to read from
+   * @return the next value
+   * @throws IOException if the value is damaged
+   */
+  @SuppressWarnings("unchecked")
+  static Object read(DataInputStream in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case LONG:
+        return in.readLong();
+      case INT:
+        return in.readInt();
+      case BOOLEAN:
+        return in.readBoolean();
+      case BYTES: {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+      }
+      case DATE:
+        return new Date(in.readLong());
+      case LIST: {
+        int size = in.readInt();
+        List<Object> list = new ArrayList<Object>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+          list.add(read(in));
+        }
+        return list;
+      }
+      case OPERATION: {
+        String command = readString(in);
+        String fileName = readString(in);
+        byte[] contents = (byte[]) read(in);
+        String staged = (String) read(in);
+        long length = in.readLong();
+        long version = in.readLong();
+        return new Operation(command, fileName, contents == null ? null : Operation.unpack(contents), staged, length,
+            version);
+      }
+      case LOG_ENTRY: {
+        long slot = in.readLong();
+        long ballot = in.readLong();
+        return new LogEntry(slot, ballot, (List<Operation>) read(in));
+      }
+      case FILE_META: {
+        String fileName = readString(in);
+        long size = in.readLong();
+        long version = in.readLong();
+        long modified = in.readLong();
+        String digest = (String) read(in);
+        String codec = readString(in);
+        long stored = in.readLong();
+        return new FileMeta(fileName, size, version, modified, digest, codec, stored);
+      }
+      case VOTE: {
+        long applied = in.readLong();
+        long last = in.readLong();
+        return new Vote(applied, last, (List<LogEntry>) read(in));
+      }
+      default:
+        throw new IOException("unknown type tag " + tag);
+    }
+  }
+
+  /**
+   * strings can be longer than writeUTF allows, so they go as utf-8 bytes
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
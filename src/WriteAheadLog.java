@@ -0,0 +1,412 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog is an append only binary log of the promises, accepts and
+ * commits of a server, kept in 'ServerLog<port>/wal.log'. A commit is written
+ * and forced to disk before it is applied to the 'ServerFiles<port>' directory
+ * so a crash never loses a committed write, and on startup the log is replayed
+ * to redo anything the file directory is missing.
+ *
+ * Forcing the log is shared: a thread that needs its record durable either
+ * forces everything appended so far or waits for the force already running,
+ * so concurrent commits pay for one fsync between them.
+ *
+ * Each record is [length int][crc int][type byte][payload]. A torn record at
+ * the end of the log from a crash during append is dropped on replay.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+class WriteAheadLog {
+  // record types
+  static final byte PROMISE = 1;
+  static final byte ACCEPT = 2;
+  static final byte COMMIT = 3;
+
+  // rewrite the log once it is larger than this, after this many commits, or
+  // this many seconds after the first commit since the last rewrite
+  static final long CHECKPOINT_BYTES = Long.getLong("paxos.wal.checkpoint", 64L << 20);
+  static final long CHECKPOINT_COMMITS = Long.getLong("paxos.wal.checkpoint.commits", 10000);
+  static final long CHECKPOINT_INTERVAL = Long.getLong("paxos.wal.checkpoint.interval", 300);
+
+  /**
+   * gets the records back on replay, in the order they were written
+   */
+  interface Handler {
+    void promise(long ballot);
+
+    void accept(LogEntry entry);
+
+    void commit(long slot, List<Operation> ops);
+  }
+
+  /**
+   * saves state built from the applied commits, so they can be dropped
+   */
+  interface Snapshot {
+    void save() throws IOException;
+  }
+
+  private final File file;
+  private final File dataDir;
+  private FileChannel channel;
+
+  // bytes appended over the life of the log, bytes of that known to be on
+  // disk, and bytes in the current file
+  private long written = 0;
+  private long fileBytes = 0;
+  private long durable = 0;
+  private boolean forcing = false;
+  private final Object syncLock = new Object();
+
+  // commits appended but not applied yet, and files changed since the last
+  // checkpoint that have to be forced before their records are dropped
+  private int unapplied = 0;
+  private final Set<String> dirty = new HashSet<String>();
+
+  // commits appended since the last checkpoint, and when the first of them was
+  private long commits = 0;
+  private long firstCommit = 0;
+
+  /**
+   * Constructor opening or creating the log
+   *
+   * @param dir     directory to keep the log in
+   * @param dataDir the file directory the commits are applied to
+   * @throws IOException if the log can't be opened
+   */
+  WriteAheadLog(File dir, File dataDir) throws IOException {
+    dir.mkdirs();
+    this.file = new File(dir, "wal.log");
+    this.dataDir = dataDir;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * replays every whole record in the log and cuts off a torn tail
+   *
+   * @param handler gets each record
+   * @throws IOException if the log can't be read
+   */
+  synchronized void replay(Handler handler) throws IOException {
+    long position = 0;
+    long size = channel.size();
+    ByteBuffer header = ByteBuffer.allocate(8);
+    while (position + 8 <= size) {
+      header.clear();
+      channel.read(header, position);
+      header.flip();
+      int length = header.getInt();
+      int crc = header.getInt();
+      if (length < 1 || position + 8 + length > size) {
+        break;
+      }
+
+      ByteBuffer body = ByteBuffer.allocate(length);
+      while (body.hasRemaining() && channel.read(body, position + 8 + body.position()) > 0) {
+      }
+      if (checksum(body.array()) != crc) {
+        break;
+      }
+      dispatch(body.array(), handler);
+      position += 8 + length;
+    }
+
+    if (position < size) {
+      System.out.println("wal: dropping " + (size - position) + " bytes of torn log");
+      channel.truncate(position);
+    }
+    channel.position(position);
+    written = position;
+    fileBytes = position;
+    durable = position;
+  }
+
+  /**
+   * log a promise, durable once sync returns
+   *
+   * @param ballot the promised ballot
+   * @return position to pass to sync
+   */
+  long promise(long ballot) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(ballot);
+    return append(PROMISE, bytes.toByteArray());
+  }
+
+  /**
+   * log an accepted entry, durable once sync returns
+   *
+   * @param entry the accepted entry
+   * @return position to pass to sync
+   */
+  long accept(LogEntry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(entry.slot);
+    out.writeLong(entry.ballot);
+    writeOps(out, entry.ops);
+    return append(ACCEPT, bytes.toByteArray());
+  }
+
+  /**
+   * log a commit. The caller must sync, apply the writes and then call applied,
+   * and call applied too if the sync fails, or checkpoints would wait on the
+   * commit forever. A commit that fails to append is never counted.
+   *
+   * @param slot log slot in multi-paxos mode, -1 for writes only applied over
+   *             older versions, 0 otherwise
+   * @param ops  the committed writes
+   * @return position to pass to sync
+   */
+  long commit(long slot, List<Operation> ops) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(slot);
+    writeOps(out, ops);
+    synchronized (this) {
+      if (commits++ == 0) {
+        firstCommit = System.currentTimeMillis();
+      }
+      for (Operation op : ops) {
+        dirty.add(op.fileName);
+      }
+      long position = append(COMMIT, bytes.toByteArray());
+      unapplied += 1;
+      return position;
+    }
+  }
+
+  /**
+   * a logged commit has been applied to the file directory
+   */
+  synchronized void applied() {
+    unapplied -= 1;
+  }
+
+  /**
+   * park until everything up to a position is forced to disk, forcing it
+   * ourselves if nobody else is
+   *
+   * @param position a position returned by one of the append methods
+   * @throws IOException if the force fails
+   */
+  void sync(long position) throws IOException {
+    synchronized (syncLock) {
+      while (durable < position && forcing) {
+        try {
+          syncLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted waiting for the log");
+        }
+      }
+      if (durable >= position) {
+        return;
+      }
+      forcing = true;
+    }
+
+    // force everything appended so far, for us and everyone queued behind us.
+    // appends carry on while we wait on the disk.
+    long target;
+    FileChannel c;
+    synchronized (this) {
+      target = written;
+      c = channel;
+    }
+    boolean forced = false;
+    try {
+      c.force(false);
+      forced = true;
+    } catch (ClosedChannelException e) {
+      // a checkpoint replaced the log and forced what it kept
+      forced = true;
+    } finally {
+      synchronized (syncLock) {
+        if (forced) {
+          durable = Math.max(durable, target);
+        }
+        forcing = false;
+        syncLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return true if the log is big enough, holds enough commits, or has held
+   *         one long enough to be rewritten
+   */
+  synchronized boolean due() {
+    return fileBytes >= CHECKPOINT_BYTES || commits >= CHECKPOINT_COMMITS
+        || (commits > 0 && System.currentTimeMillis() - firstCommit >= CHECKPOINT_INTERVAL * 1000);
+  }
+
+  /**
+   * rewrites the log once it is due. Only done when every logged commit has
+   * been applied: the files they changed are forced to disk and the log is
+   * replaced by just the promise, the applied slot and the accepted entries
+   * still needed.
+   *
+   * @param promised the highest ballot promised
+   * @param applied  the highest slot applied in multi-paxos mode, 0 otherwise
+   * @param keep     accepted entries that aren't applied yet
+   * @param snapshot saves what the dropped commits built besides the files
+   * @return true if the log was rewritten
+   * @throws IOException if the rewrite fails
+   */
+  synchronized boolean checkpoint(long promised, long applied, List<LogEntry> keep, Snapshot snapshot)
+      throws IOException {
+    if (!due() || unapplied > 0) {
+      return false;
+    }
+
+    // the dropped commits are only safe once the files they wrote are on disk
+    for (String name : dirty) {
+      File f = new File(dataDir, name);
+      if (f.exists()) {
+        try (FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+          c.force(true);
+        }
+      }
+    }
+    dirty.clear();
+    snapshot.save();
+
+    File next = new File(file.getParentFile(), "wal.log.next");
+    FileChannel old = channel;
+    channel = FileChannel.open(next.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    fileBytes = 0;
+    commits = 0;
+    if (promised >= 0) {
+      promise(promised);
+    }
+    if (applied > 0) {
+      // an empty commit keeps the applied slot, so a replica restarted after a
+      // checkpoint still knows where to catch up from
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(applied);
+      writeOps(out, new ArrayList<Operation>());
+      append(COMMIT, bytes.toByteArray());
+    }
+    for (LogEntry entry : keep) {
+      accept(entry);
+    }
+    channel.force(true);
+    Files.move(next.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    try (FileChannel dir = FileChannel.open(file.getParentFile().toPath(), StandardOpenOption.READ)) {
+      dir.force(true);
+    }
+    old.close();
+    synchronized (syncLock) {
+      durable = Math.max(durable, written);
+    }
+    System.out.println("wal: checkpoint, log is now " + fileBytes + " bytes");
+    return true;
+  }
+
+  /**
+   * @return bytes in the log
+   */
+  synchronized long size() {
+    return fileBytes;
+  }
+
+  /**
+   * append one framed record
+   */
+  private synchronized long append(byte type, byte[] payload) throws IOException {
+    byte[] body = new byte[payload.length + 1];
+    body[0] = type;
+    System.arraycopy(payload, 0, body, 1, payload.length);
+
+    ByteBuffer buf = ByteBuffer.allocate(8 + body.length);
+    buf.putInt(body.length);
+    buf.putInt(checksum(body));
+    buf.put(body);
+    buf.flip();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    written += 8 + body.length;
+    fileBytes += 8 + body.length;
+    return written;
+  }
+
+  private void dispatch(byte[] body, Handler handler) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+    if (body[0] == PROMISE) {
+      handler.promise(in.readLong());
+    } else if (body[0] == ACCEPT) {
+      long slot = in.readLong();
+      long ballot = in.readLong();
+      handler.accept(new LogEntry(slot, ballot, readOps(in)));
+    } else if (body[0] == COMMIT) {
+      long slot = in.readLong();
+      handler.commit(slot, readOps(in));
+    }
+  }
+
+  private static int checksum(byte[] body) {
+    CRC32 crc = new CRC32();
+    crc.update(body, 0, body.length);
+    return (int) crc.getValue();
+  }
+
+  private static void writeOps(DataOutputStream out, List<Operation> ops) throws IOException {
+    out.writeInt(ops.size());
+    for (Operation op : ops) {
+      out.writeUTF(op.command);
+      out.writeUTF(op.fileName);
+      byte[] contents = op.contents == null ? null : Operation.pack(op.contents);
+      out.writeInt(contents == null ? -1 : contents.length);
+      if (contents != null) {
+        out.write(contents);
+      }
+      out.writeUTF(op.staged == null ? "" : op.staged);
+      out.writeLong(op.length);
+      out.writeLong(op.version);
+    }
+  }
+
+  private static List<Operation> readOps(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<Operation> ops = new ArrayList<Operation>(count);
+    for (int i = 0; i < count; i++) {
+      String command = in.readUTF();
+      String fileName = in.readUTF();
+      int length = in.readInt();
+      String contents = null;
+      if (length >= 0) {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        contents = Operation.unpack(bytes);
+      }
+      String staged = in.readUTF();
+      long stagedLength = in.readLong();
+      long version = in.readLong();
+      ops.add(new Operation(command, fileName, contents, staged.isEmpty() ? null : staged, stagedLength, version));
+    }
+    return ops;
+  }
+}
@@ -0,0 +1,99 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that packed chunks and sealed files come back as they went in, and
+ * that a file is only read as sealed when it is sealed the way the index says.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class CodecsTest {
+  // contents that compress well
+  private static final byte[] TEXT = repeat("a line of a log file that repeats\n", 200);
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void packRoundTrip() throws Exception {
+    Codec deflate = Codecs.forName("deflate");
+    byte[] packed = Codecs.pack(TEXT, 0, TEXT.length, deflate);
+    assertEquals(deflate.id(), packed[0]);
+    assertTrue(packed.length < TEXT.length);
+    assertArrayEquals(TEXT, Codecs.unpack(packed));
+
+    // part of an array, and contents that don't compress go plain
+    byte[] noise = new byte[4096];
+    new Random(1).nextBytes(noise);
+    packed = Codecs.pack(noise, 100, 2000, deflate);
+    assertEquals(NoopCodec.INSTANCE.id(), packed[0]);
+    assertArrayEquals(Arrays.copyOfRange(noise, 100, 2100), Codecs.unpack(packed));
+  }
+
+  @Test
+  public void sealRoundTrip() throws Exception {
+    Codec deflate = Codecs.forName("deflate");
+    byte[] sealed = Codecs.seal(TEXT, deflate);
+    assertNotNull(sealed);
+    assertArrayEquals(TEXT, readSealed(sealed, deflate, TEXT.length));
+
+    // too small to be worth sealing
+    assertNull(Codecs.seal(Arrays.copyOf(TEXT, (int) Codecs.MIN_SIZE - 1), deflate));
+  }
+
+  @Test
+  public void refusesWhatIsNotSealedThatWay() throws Exception {
+    Codec deflate = Codecs.forName("deflate");
+    byte[] sealed = Codecs.seal(TEXT, deflate);
+    assertRefused(sealed, deflate, TEXT.length + 1);
+    assertRefused(sealed, NoopCodec.INSTANCE, TEXT.length);
+    assertRefused(Arrays.copyOf(sealed, sealed.length - 10), deflate, TEXT.length);
+
+    // a plain file that happens to start with the signature
+    byte[] plain = Arrays.copyOf(Codecs.SIGNATURE, 2000);
+    assertRefused(plain, deflate, plain.length);
+    assertRefused(TEXT, deflate, TEXT.length);
+  }
+
+  private void assertRefused(byte[] stored, Codec codec, long plainLength) throws Exception {
+    try {
+      readSealed(stored, codec, plainLength);
+      fail("read a file that isn't sealed with " + codec.name() + " as if it were");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private byte[] readSealed(byte[] stored, Codec codec, long plainLength) throws IOException {
+    File f = tmp.newFile();
+    Files.write(f.toPath(), stored);
+    try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      return Codecs.readSealed(in, codec, plainLength);
+    }
+  }
+
+  private static byte[] repeat(String line, int times) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      sb.append(line);
+    }
+    return sb.toString().getBytes();
+  }
+}
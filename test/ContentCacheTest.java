@@ -0,0 +1,80 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Checks that the content cache keeps within its bytes and files by evicting
+ * the least recently used file, and only hands out the version asked for.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class ContentCacheTest {
+  // bytes in each cached file
+  private static final int FILE = 100;
+
+  @Test
+  public void evictsLeastRecentlyUsedByBytes() {
+    ContentCache cache = new ContentCache(3 * FILE, 10, FILE);
+    cache.put("a", 1, new byte[FILE]);
+    cache.put("b", 1, new byte[FILE]);
+    cache.put("c", 1, new byte[FILE]);
+    // reading a makes b the least recently used
+    assertNotNull(cache.get("a", 1));
+    cache.put("d", 1, new byte[FILE]);
+
+    assertNull(cache.get("b", 1));
+    assertNotNull(cache.get("a", 1));
+    assertNotNull(cache.get("c", 1));
+    assertNotNull(cache.get("d", 1));
+    assertEquals(1, cache.evictions.get());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedByEntries() {
+    ContentCache cache = new ContentCache(100 * FILE, 2, FILE);
+    cache.put("a", 1, new byte[1]);
+    cache.put("b", 1, new byte[1]);
+    cache.put("c", 1, new byte[1]);
+
+    assertNull(cache.get("a", 1));
+    assertNotNull(cache.get("b", 1));
+    assertNotNull(cache.get("c", 1));
+    assertEquals(1, cache.evictions.get());
+  }
+
+  @Test
+  public void missesOtherVersion() {
+    ContentCache cache = new ContentCache(3 * FILE, 10, FILE);
+    cache.put("a", 1, new byte[] { 1 });
+    assertNull(cache.get("a", 2));
+    assertEquals(1, cache.misses.get());
+    assertEquals(0, cache.hits.get());
+
+    cache.update("a", 2, new byte[] { 2 });
+    assertNull(cache.get("a", 1));
+    assertArrayEquals(new byte[] { 2 }, cache.get("a", 2));
+    assertEquals(1, cache.hits.get());
+  }
+
+  @Test
+  public void skipsFilesTooBigOrNotCached() {
+    ContentCache cache = new ContentCache(3 * FILE, 10, FILE);
+    assertFalse(cache.fits(FILE + 1));
+    cache.put("big", 1, new byte[FILE + 1]);
+    assertNull(cache.get("big", 1));
+
+    // a write only refreshes files already cached
+    cache.update("new", 1, new byte[1]);
+    assertNull(cache.get("new", 1));
+
+    cache.put("gone", 1, new byte[1]);
+    cache.invalidate("gone");
+    assertNull(cache.get("gone", 1));
+    assertEquals(0, cache.evictions.get());
+  }
+}
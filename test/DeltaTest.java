@@ -0,0 +1,87 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that a file rebuilt from a delta and the old version is the new
+ * version byte for byte, and that a delta made against another version is
+ * refused.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class DeltaTest {
+  // bytes in the old version
+  private static final int SIZE = 256 * 1024;
+  // version the delta is made against
+  private static final long BASE = 3;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void rebuildsEditedFile() throws Exception {
+    byte[] old = random(SIZE, 1);
+    // an edit in the middle, bytes put in near the start and the tail cut off
+    byte[] edited = old.clone();
+    System.arraycopy(random(3000, 2), 0, edited, SIZE / 2, 3000);
+    byte[] inserted = random(777, 3);
+    byte[] now = new byte[SIZE + inserted.length - 5000];
+    System.arraycopy(edited, 0, now, 0, 10000);
+    System.arraycopy(inserted, 0, now, 10000, inserted.length);
+    System.arraycopy(edited, 10000, now, 10000 + inserted.length, SIZE - 15000);
+
+    File delta = encode(old, now);
+    assertTrue(delta.length() < now.length / 4);
+    File to = tmp.newFile();
+    assertTrue(Delta.rebuild(delta, BASE, source(old), to));
+    assertArrayEquals(now, Files.readAllBytes(to.toPath()));
+  }
+
+  @Test
+  public void refusesOtherVersion() throws Exception {
+    byte[] old = random(SIZE, 4);
+    byte[] now = old.clone();
+    now[SIZE / 3] ^= 1;
+    File delta = encode(old, now);
+
+    assertFalse(Delta.rebuild(delta, BASE + 1, source(old), tmp.newFile()));
+    // the right version number over other contents fails the digest
+    byte[] other = random(SIZE, 5);
+    assertFalse(Delta.rebuild(delta, BASE, source(other), tmp.newFile()));
+  }
+
+  /**
+   * @return a delta of the new contents against the old
+   */
+  private File encode(byte[] old, byte[] now) throws Exception {
+    int blockSize = Delta.blockSize(old.length);
+    List<Long> sums = Delta.sums(source(old), old.length, blockSize);
+    File file = tmp.newFile();
+    Files.write(file.toPath(), now);
+    File delta = tmp.newFile();
+    Delta.encode(file, FileIndex.digest(now), BASE, blockSize, sums, delta);
+    return delta;
+  }
+
+  private static Delta.Source source(byte[] bytes) {
+    return (offset, length) -> Arrays.copyOfRange(bytes, (int) offset,
+        (int) Math.min(bytes.length, offset + length));
+  }
+
+  private static byte[] random(int size, long seed) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,86 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the file index lists files a page at a time in name order, and
+ * never moves a file's version backwards.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class FileIndexTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private FileIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    index = new FileIndex(tmp.newFolder("files"), new File(tmp.getRoot(), "index"));
+    for (String name : Arrays.asList("a1", "a2", "a3", "a4", "b1", "b2")) {
+      write(name, 1);
+    }
+    // removed files keep their place in the index
+    index.update("a2", 2, 0, null, NoopCodec.INSTANCE.name(), 0);
+  }
+
+  @Test
+  public void listsPagesSkippingRemoved() {
+    assertEquals(Arrays.asList("a1", "a3"), names(index.list("a", null, 2)));
+    assertEquals(Arrays.asList("a4"), names(index.list("a", "a3", 2)));
+    assertEquals(Arrays.asList(), names(index.list("a", "a4", 2)));
+    // a cursor before the prefix starts at the prefix
+    assertEquals(Arrays.asList("b1", "b2"), names(index.list("b", "a1", 10)));
+    assertEquals(Arrays.asList("a1", "a3", "a4", "b1", "b2"), names(index.list("", null, 10)));
+  }
+
+  @Test
+  public void pagesIncludeRemoved() {
+    assertEquals(Arrays.asList("a1", "a2", "a3"), names(index.page(null, 3)));
+    assertEquals(Arrays.asList("a4", "b1", "b2"), names(index.page("a3", 3)));
+    assertEquals(Arrays.asList(), names(index.page("b2", 3)));
+    assertNull(index.get("a2"));
+    assertEquals(2, index.entry("a2").version);
+  }
+
+  @Test
+  public void keepsNewestVersion() {
+    write("a1", 5);
+    String digest = index.get("a1").digest;
+    index.update("a1", 4, 1, FileIndex.digest(new byte[] { 4 }), NoopCodec.INSTANCE.name(), 1);
+    index.update("a1", 5, 1, FileIndex.digest(new byte[] { 6 }), NoopCodec.INSTANCE.name(), 1);
+    assertEquals(5, index.version("a1"));
+    assertEquals(digest, index.get("a1").digest);
+
+    // a removed file is written again from its version on
+    index.update("a2", 1, 1, digest, NoopCodec.INSTANCE.name(), 1);
+    assertNull(index.get("a2"));
+    write("a2", 3);
+    assertEquals(3, index.version("a2"));
+    assertEquals(0, index.version("c1"));
+  }
+
+  private void write(String name, long version) {
+    byte[] contents = (name + version).getBytes();
+    index.update(name, version, contents.length, FileIndex.digest(contents), NoopCodec.INSTANCE.name(),
+        contents.length);
+  }
+
+  private static List<String> names(List<FileMeta> page) {
+    List<String> names = new ArrayList<String>();
+    for (FileMeta meta : page) {
+      names.add(meta.fileName);
+    }
+    return names;
+  }
+}
@@ -0,0 +1,98 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Checks that a coordinator waiting on a transaction parks on its monitor
+ * instead of polling the counters, so many waiting transactions cost no CPU.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class TransactionTest {
+  // transactions parked at once
+  private static final int WAITERS = 32;
+  // millis the parked threads are measured for
+  private static final long WAIT = 1000;
+  // most CPU all of them together may use while parked, in millis
+  private static final long MAX_CPU = 100;
+
+  @Test
+  public void awaitAcksParksWithoutSpinning() throws Exception {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    assumeTrue(mx.isThreadCpuTimeSupported());
+    mx.setThreadCpuTimeEnabled(true);
+
+    List<Transaction> txs = new ArrayList<Transaction>();
+    List<Thread> threads = new ArrayList<Thread>();
+    CountDownLatch started = new CountDownLatch(WAITERS);
+    AtomicInteger reached = new AtomicInteger();
+    long deadline = System.currentTimeMillis() + 30000;
+    for (int i = 0; i < WAITERS; i++) {
+      Transaction tx = new Transaction("tx-" + i, Collections.<Operation>emptyList());
+      Thread t = new Thread(() -> {
+        started.countDown();
+        try {
+          if (tx.awaitAcks(2, deadline)) {
+            reached.incrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      txs.add(tx);
+      threads.add(t);
+      t.start();
+    }
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    // one ack each, so every thread wakes once and parks again
+    for (Transaction tx : txs) {
+      tx.ack();
+    }
+    Thread.sleep(200);
+
+    long before = cpu(mx, threads);
+    Thread.sleep(WAIT);
+    long used = cpu(mx, threads) - before;
+
+    for (Transaction tx : txs) {
+      tx.ack();
+    }
+    for (Thread t : threads) {
+      t.join(10000);
+    }
+    assertTrue("only " + reached.get() + " of " + WAITERS + " reached quorum", reached.get() == WAITERS);
+    assertTrue(WAITERS + " parked threads used " + used / 1000000 + " ms of CPU in " + WAIT + " ms",
+        used < TimeUnit.MILLISECONDS.toNanos(MAX_CPU));
+  }
+
+  @Test
+  public void awaitAcksGivesUpAtTheDeadline() throws Exception {
+    Transaction tx = new Transaction("tx", Collections.<Operation>emptyList());
+    tx.ack();
+    long start = System.nanoTime();
+    assertTrue(!tx.awaitAcks(2, System.currentTimeMillis() + 200));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+  }
+
+  /**
+   * @return CPU time the threads used so far, in nanos
+   */
+  private static long cpu(ThreadMXBean mx, List<Thread> threads) {
+    long total = 0;
+    for (Thread t : threads) {
+      total += Math.max(0, mx.getThreadCpuTime(t.getId()));
+    }
+    return total;
+  }
+}
@@ -0,0 +1,131 @@
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the write ahead log gives back every whole record in the order
+ * it was written, and cuts off what a crash left half written.
+ *
+ * @author Neil Routley, Sanchit Saini, Abasiama Akpan
+ * @since 04/24/2020
+ */
+public class WriteAheadLogTest {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /**
+   * writes down each replayed record as a line
+   */
+  private static class Recorder implements WriteAheadLog.Handler {
+    final List<String> records = new ArrayList<String>();
+
+    public void promise(long ballot) {
+      records.add("promise " + ballot);
+    }
+
+    public void accept(LogEntry entry) {
+      records.add("accept " + entry.slot + " " + entry.ballot + " " + describe(entry.ops));
+    }
+
+    public void commit(long slot, List<Operation> ops) {
+      records.add("commit " + slot + " " + describe(ops));
+    }
+
+    private static String describe(List<Operation> ops) {
+      StringBuilder sb = new StringBuilder();
+      for (Operation op : ops) {
+        sb.append(op.command).append(':').append(op.fileName).append(':').append(op.contents).append(':')
+            .append(op.staged).append(':').append(op.length).append(':').append(op.version).append(';');
+      }
+      return sb.toString();
+    }
+  }
+
+  @Test
+  public void replaysRecordsInOrder() throws Exception {
+    File dir = tmp.newFolder("log");
+    List<String> written = writeSome(dir);
+
+    Recorder recorder = new Recorder();
+    new WriteAheadLog(dir, tmp.getRoot()).replay(recorder);
+    assertEquals(written, recorder.records);
+  }
+
+  @Test
+  public void dropsTornTail() throws Exception {
+    File dir = tmp.newFolder("log");
+    List<String> written = writeSome(dir);
+    File file = new File(dir, "wal.log");
+    long whole = file.length();
+
+    // the header of a record whose body never made it to disk
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 5, 6 });
+    }
+    Recorder recorder = new Recorder();
+    WriteAheadLog wal = new WriteAheadLog(dir, tmp.getRoot());
+    wal.replay(recorder);
+    assertEquals(written, recorder.records);
+    assertEquals(whole, file.length());
+
+    // records logged after the cut replay behind the old ones
+    wal.sync(wal.promise(9));
+    recorder = new Recorder();
+    new WriteAheadLog(dir, tmp.getRoot()).replay(recorder);
+    List<String> expected = new ArrayList<String>(written);
+    expected.add("promise 9");
+    assertEquals(expected, recorder.records);
+  }
+
+  @Test
+  public void stopsAtDamagedRecord() throws Exception {
+    File dir = tmp.newFolder("log");
+    List<String> written = writeSome(dir);
+    File file = new File(dir, "wal.log");
+
+    // flip the last byte, so the checksum of the last record no longer matches
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xff);
+    }
+    Recorder recorder = new Recorder();
+    new WriteAheadLog(dir, tmp.getRoot()).replay(recorder);
+    assertEquals(written.subList(0, written.size() - 1), recorder.records);
+  }
+
+  /**
+   * logs a promise, an accept and two commits
+   *
+   * @param dir directory of the log
+   * @return the records as the recorder writes them down
+   */
+  private List<String> writeSome(File dir) throws Exception {
+    WriteAheadLog wal = new WriteAheadLog(dir, tmp.getRoot());
+    wal.replay(new Recorder());
+    List<Operation> put = Arrays.asList(new Operation("put", "a.txt", "hello"));
+    List<Operation> moved = Arrays.asList(new Operation("put", "b.bin", null, "1-2-3", 4096, 7),
+        new Operation("delete", "a.txt", null));
+    wal.promise(5);
+    wal.accept(new LogEntry(1, 5, put));
+    wal.commit(1, put);
+    wal.sync(wal.commit(2, moved));
+
+    Recorder recorder = new Recorder();
+    recorder.promise(5);
+    recorder.accept(new LogEntry(1, 5, put));
+    recorder.commit(1, put);
+    recorder.commit(2, moved);
+    return recorder.records;
+  }
+}